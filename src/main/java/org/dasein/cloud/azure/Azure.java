@@ -19,12 +19,7 @@
 package org.dasein.cloud.azure;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.http.config.Registry;
-import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
-import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
 import org.dasein.cloud.CloudException;
@@ -36,16 +31,12 @@ import org.dasein.cloud.azure.network.AzureNetworkServices;
 import org.dasein.cloud.azure.platform.AzurePlatformServices;
 import org.dasein.cloud.azure.storage.AzureStorageServices;
 import org.dasein.cloud.azure.storage.model.CreateStorageServiceInputModel;
-import org.w3c.dom.Document;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.JAXBException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.io.InputStream;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Properties;
@@ -90,7 +81,9 @@ public class Azure extends AbstractCloud {
     }
 
 
-    public Azure() { }
+    public Azure() {
+        AzureJAXBRegistry.preloadInBackground();
+    }
 
 
     static private final Random random = new Random();
@@ -149,68 +142,33 @@ public class Azure extends AbstractCloud {
     	return new AzureNetworkServices(this);
     }
 
-    private transient String storageEndpoint;
-
-    public @Nullable String getStorageEndpoint() throws CloudException, InternalException {
-        if( storageEndpoint == null ) {
-            ProviderContext ctx = getContext();
-
-            if( ctx == null ) {
-                throw new AzureConfigException("No configuration was set for this request");
-            }
-            AzureMethod method = new AzureMethod(this);
-
-            Document xml = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices");
+    private transient StorageAccountCache storageAccount;
 
-            if( xml == null ) {
-                throw new CloudException("Unable to identify the blob endpoint");
-            }
-            XPathFactory xPathfactory = XPathFactory.newInstance();
-            XPath xpath = xPathfactory.newXPath();
-
-            try {
-                XPathExpression expr = xpath.compile("(/StorageServices/StorageService/StorageServiceProperties[GeoPrimaryRegion='"+ctx.getRegionId()+"']/Endpoints/Endpoint[contains(.,'.blob.')])[1]");
-                storageEndpoint = expr.evaluate(xml).trim();
-            } catch (XPathExpressionException e) {
-                throw new CloudException("Invalid blob endpoint search expression");
-            }
-
-            if( storageEndpoint == null || storageEndpoint.isEmpty())
-                storageEndpoint = null;
+    /**
+     * @return the storage service of the region of this provider, shared with other providers using the same credentials
+     */
+    private @Nonnull StorageAccountCache getStorageAccount() throws CloudException, InternalException {
+        if( storageAccount == null ) {
+            storageAccount = StorageAccountCache.getInstance(this);
         }
-        return storageEndpoint;
+        return storageAccount;
     }
 
-    private transient String storageService;
+    public @Nullable String getStorageEndpoint() throws CloudException, InternalException {
+        return getStorageAccount().getEndpoint(this);
+    }
 
     public @Nullable String getStorageService() throws CloudException, InternalException {
-        if( storageService == null ) {
-            ProviderContext ctx = getContext();
-
-            if( ctx == null ) {
-                throw new AzureConfigException("No configuration was set for this request");
-            }
-            AzureMethod method = new AzureMethod(this);
-
-            Document xml = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices");
-
-            if( xml == null ) {
-                throw new CloudException("Unable to identify the storage service");
-            }
-            XPathFactory xPathfactory = XPathFactory.newInstance();
-            XPath xpath = xPathfactory.newXPath();
-
-            try {
-                XPathExpression expr = xpath.compile("(/StorageServices/StorageService/StorageServiceProperties[GeoPrimaryRegion='"+ctx.getRegionId()+"']/../ServiceName)[1]");
-                storageService = expr.evaluate(xml).trim();
-            } catch (XPathExpressionException e) {
-                throw new CloudException("Failed to find storage service in the current region: " + ctx.getRegionId());
-            }
+        return getStorageAccount().getServiceName(this);
+    }
 
-            if( storageService == null || storageService.isEmpty())
-                storageService = null;
-        }
-        return storageService;
+    /**
+     * @return the base64 encoded key of the storage service of the region of this provider
+     * @throws CloudException the region has no storage service or its keys could not be fetched
+     * @throws InternalException the keys could not be fetched due to a local error
+     */
+    public @Nonnull byte[] getStorageKey() throws CloudException, InternalException {
+        return getStorageAccount().getKey(this);
     }
 
     public void createDefaultStorageService() throws CloudException, InternalException {
@@ -241,16 +199,11 @@ public class Azure extends AbstractCloud {
         }
 
         if (requestId != null) {
-            int httpCode = azureMethod.getOperationStatus(requestId);
-            while (httpCode == -1) {
-                try {
-                    Thread.sleep(15000L);
-                } catch (InterruptedException ignored) {
-                }
-                httpCode = azureMethod.getOperationStatus(requestId);
-            }
+            int httpCode = AzureOperationTracker.waitFor(this, requestId);
+
             if (httpCode == HttpServletResponse.SC_OK) {
-                storageEndpoint = "https://" + serviceName + ".blob.core.windows.net/";
+                // the next lookup finds the new service
+                getStorageAccount().invalidate();
             }
         }
     }
@@ -266,6 +219,47 @@ public class Azure extends AbstractCloud {
         return "Microsoft";
     }
 
+    /**
+     * Looks up a tuning setting for this provider. Settings in the context custom properties take precedence
+     * over system properties of the same name.
+     * @param name the name of the setting
+     * @return the configured value, or <code>null</code> if the setting is not configured
+     */
+    public @Nullable String getSetting(@Nonnull String name) {
+        ProviderContext ctx = getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty(name));
+
+        if( value == null ) {
+            value = System.getProperty(name);
+        }
+        return value;
+    }
+
+    /**
+     * Looks up a positive numeric tuning setting for this provider.
+     * @param name the name of the setting
+     * @param defaultValue the value to use if the setting is missing, invalid or not positive
+     * @return the configured value or the default value
+     */
+    public long getSetting(@Nonnull String name, long defaultValue) {
+        String value = getSetting(name);
+
+        if( value != null ) {
+            try {
+                long l = Long.parseLong(value.trim());
+
+                if( l > 0L ) {
+                    return l;
+                }
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Ignoring invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
     public @Nonnull String getVMProductsResource() {
         ProviderContext ctx = getContext();
         String value;
@@ -336,10 +330,13 @@ public class Azure extends AbstractCloud {
                 logger.debug("X509 key: "+new String(ctx.getX509Key(), "utf-8"));
                 logger.debug("--------------Context-------------");
                 */
-                if( method.getAsStream(ctx.getAccountNumber(), "/locations") == null ) {
+                InputStream input = method.getAsStream(ctx.getAccountNumber(), "/locations");
+
+                if( input == null ) {
                     logger.warn("Account number was invalid for context test: " + ctx.getAccountNumber());
                     return null;
                 }
+                input.close();
                 if( logger.isDebugEnabled() ) {
                     logger.debug("Valid account: " + ctx.getAccountNumber());
                 }
@@ -358,15 +355,26 @@ public class Azure extends AbstractCloud {
         }
     }
 
+    /**
+     * @return the pooled connections used for service management calls made with the current credentials
+     * @throws CloudException the context is incomplete
+     * @throws InternalException the credentials could not be loaded
+     */
+    public @Nonnull AzureConnectionPool getManagementConnectionPool() throws CloudException, InternalException {
+        return AzureConnectionPool.getManagementPool(this);
+    }
+
+    /**
+     * @return the pooled connections used for blob storage calls
+     * @throws CloudException the context is incomplete
+     */
+    public @Nonnull AzureConnectionPool getStorageConnectionPool() throws CloudException {
+        return AzureConnectionPool.getStoragePool(this);
+    }
+
     public HttpClientBuilder getAzureClientBuilder() throws CloudException {
         try {
-            HttpClientBuilder builder = HttpClientBuilder.create();
-            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
-                    .register("https", new AzureSSLSocketFactory(new AzureX509(this)))
-                    .build();
-            HttpClientConnectionManager ccm = new BasicHttpClientConnectionManager(registry);
-            builder.setConnectionManager(ccm);
-            return builder;
+            return getManagementConnectionPool().newClientBuilder();
         } catch (Exception e) {
             throw new CloudException(e.getMessage());
         }
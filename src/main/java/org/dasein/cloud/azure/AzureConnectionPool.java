@@ -0,0 +1,326 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.http.Consts;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.ConnectionConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived, bounded pool of HTTP connections shared by all requests made with the same credentials.
+ * Management calls authenticate with the subscription X509 keypair during the TLS handshake, so every
+ * connection that can be reused saves a full mutual-TLS handshake against the management endpoint.
+ * <p>
+ * Pools are registered process-wide and keyed by credential fingerprint, endpoint and proxy so that
+ * short-lived {@link Azure} instances created for the same subscription end up sharing connections.
+ * The limits are read from the provider context custom properties, falling back to system properties:
+ * </p>
+ * <ul>
+ *     <li>{@value #MAX_CONNECTIONS} - total connections in the pool (default 100)</li>
+ *     <li>{@value #MAX_CONNECTIONS_PER_ROUTE} - connections per target host (default 20)</li>
+ *     <li>{@value #IDLE_TIMEOUT} - seconds an unused connection is kept alive (default 60)</li>
+ *     <li>{@value #STALE_CONNECTION_CHECK} - whether pooled connections are checked before reuse (default true)</li>
+ * </ul>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class AzureConnectionPool {
+    static private final Logger logger = Azure.getLogger(AzureConnectionPool.class);
+
+    static public final String MAX_CONNECTIONS           = "azure.http.maxConnections";
+    static public final String MAX_CONNECTIONS_PER_ROUTE = "azure.http.maxConnectionsPerRoute";
+    static public final String IDLE_TIMEOUT              = "azure.http.idleTimeoutSeconds";
+    static public final String STALE_CONNECTION_CHECK    = "azure.http.staleConnectionCheck";
+
+    static private final int  DEFAULT_MAX_CONNECTIONS           = 100;
+    static private final int  DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+    static private final long DEFAULT_IDLE_TIMEOUT              = 60L;
+
+    static private final int CONNECT_TIMEOUT = 10000;
+    static private final int SOCKET_TIMEOUT  = 300000;
+    static private final int LEASE_TIMEOUT   = 60000;
+
+    static private final ConcurrentHashMap<String,AzureConnectionPool> pools = new ConcurrentHashMap<String, AzureConnectionPool>();
+
+    static private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure connection evictor");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Provides the pool used for calls against the service management API, authenticated with the
+     * X509 keypair of the provider context.
+     * @param provider the provider making the request
+     * @return the pool shared by all providers using the same credentials, endpoint and proxy
+     * @throws CloudException the provider context is incomplete
+     * @throws InternalException the credentials could not be loaded into a key store
+     */
+    static public @Nonnull AzureConnectionPool getManagementPool(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was defined for this request");
+        }
+        String endpoint = ctx.getEndpoint();
+
+        if( endpoint == null ) {
+            throw new AzureConfigException("No cloud endpoint was defined");
+        }
+        HttpHost proxy = getProxy(ctx);
+        String key = "management:" + AzureX509.getFingerprint(provider) + "@" + endpoint + "|" + proxy;
+        AzureConnectionPool pool = pools.get(key);
+
+        if( pool == null ) {
+            synchronized( pools ) {
+                pool = pools.get(key);
+                if( pool == null ) {
+                    ConnectionSocketFactory sslFactory = new AzureSSLSocketFactory(AzureX509.getInstance(provider));
+
+                    pool = new AzureConnectionPool(key, provider, proxy, sslFactory);
+                    pools.put(key, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Provides the pool used for calls against the blob storage endpoints. Storage requests are signed
+     * individually, so the pool is only keyed by the proxy configuration.
+     * @param provider the provider making the request
+     * @return the pool shared by all providers using the same proxy
+     * @throws CloudException the provider context is incomplete
+     */
+    static public @Nonnull AzureConnectionPool getStoragePool(@Nonnull Azure provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was defined for this request");
+        }
+        HttpHost proxy = getProxy(ctx);
+        String key = "storage|" + proxy;
+        AzureConnectionPool pool = pools.get(key);
+
+        if( pool == null ) {
+            synchronized( pools ) {
+                pool = pools.get(key);
+                if( pool == null ) {
+                    pool = new AzureConnectionPool(key, provider, proxy, SSLConnectionSocketFactory.getSocketFactory());
+                    pools.put(key, pool);
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Closes every pooled connection and forgets all registered pools. Intended for application shutdown;
+     * subsequent requests will transparently create new pools.
+     */
+    static public void shutdownAll() {
+        synchronized( pools ) {
+            for( AzureConnectionPool pool : pools.values() ) {
+                pool.shutdown();
+            }
+            pools.clear();
+        }
+    }
+
+    static private @Nullable HttpHost getProxy(@Nonnull ProviderContext ctx) {
+        Properties p = ctx.getCustomProperties();
+
+        if( p == null || p.getProperty("proxyHost") == null || p.getProperty("proxyPort") == null ) {
+            p = System.getProperties();
+        }
+        String host = p.getProperty("proxyHost");
+        String port = p.getProperty("proxyPort");
+
+        if( host == null || host.length() < 1 || port == null || port.length() < 1 ) {
+            return null;
+        }
+        return new HttpHost(host, Integer.parseInt(port));
+    }
+
+    private final String                             key;
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final RequestConfig                      requestConfig;
+    private final CloseableHttpClient                client;
+    private final ScheduledFuture<?>                 eviction;
+
+    private AzureConnectionPool(@Nonnull String key, @Nonnull Azure provider, @Nullable HttpHost proxy, @Nonnull ConnectionSocketFactory sslFactory) {
+        this.key = key;
+
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("https", sslFactory)
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        String staleCheck = provider.getSetting(STALE_CONNECTION_CHECK);
+        final long idleTimeout = provider.getSetting(IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+
+        connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal((int)provider.getSetting(MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS));
+        connectionManager.setDefaultMaxPerRoute((int)provider.getSetting(MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+        connectionManager.setDefaultConnectionConfig(ConnectionConfig.custom().setCharset(Consts.UTF_8).build());
+
+        requestConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT)
+                .setSocketTimeout(SOCKET_TIMEOUT)
+                .setConnectionRequestTimeout(LEASE_TIMEOUT)
+                .setStaleConnectionCheckEnabled(staleCheck == null || Boolean.parseBoolean(staleCheck))
+                .setProxy(proxy)
+                .build();
+        client = newClientBuilder().build();
+
+        long period = Math.max(1L, idleTimeout / 2L);
+
+        eviction = evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+                }
+                catch( Throwable t ) {
+                    logger.warn("Failed to evict idle connections: " + t.getMessage());
+                }
+            }
+        }, period, period, TimeUnit.SECONDS);
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Created connection pool " + key + " (max=" + connectionManager.getMaxTotal() + ", perRoute=" + connectionManager.getDefaultMaxPerRoute() + ", idle=" + idleTimeout + "s)");
+        }
+    }
+
+    /**
+     * @return the shared client; it must never be closed by callers and response entities must always be consumed
+     */
+    public @Nonnull HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Creates a client builder that leases its connections from this pool. Closing a client built from it
+     * does not shut the pool down.
+     * @return a new builder preconfigured with the pool defaults
+     */
+    public @Nonnull HttpClientBuilder newClientBuilder() {
+        // the pool is already scoped to a single credential, so connections must not be partitioned by the
+        // TLS principal or a connection authenticated with the client certificate would never be reused
+        return HttpClientBuilder.create()
+                .setConnectionManager(new SharedConnectionManager(connectionManager))
+                .setDefaultRequestConfig(requestConfig)
+                .setUserAgent("Dasein Cloud")
+                .disableConnectionState();
+    }
+
+    /**
+     * @return the configuration of requests made through this pool that do not carry a configuration of their own
+     */
+    public @Nonnull RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    public @Nonnull PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    private void shutdown() {
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Shutting down connection pool " + key);
+        }
+        eviction.cancel(false);
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Hands the pooled manager to clients that may try to shut it down when they are closed.
+     */
+    static private class SharedConnectionManager implements HttpClientConnectionManager {
+        private final HttpClientConnectionManager delegate;
+
+        SharedConnectionManager(@Nonnull HttpClientConnectionManager delegate) {
+            this.delegate = delegate;
+        }
+
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            return delegate.requestConnection(route, state);
+        }
+
+        public void releaseConnection(HttpClientConnection conn, Object newState, long validDuration, TimeUnit timeUnit) {
+            delegate.releaseConnection(conn, newState, validDuration, timeUnit);
+        }
+
+        public void connect(HttpClientConnection conn, HttpRoute route, int connectTimeout, HttpContext context) throws IOException {
+            delegate.connect(conn, route, connectTimeout, context);
+        }
+
+        public void upgrade(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            delegate.upgrade(conn, route, context);
+        }
+
+        public void routeComplete(HttpClientConnection conn, HttpRoute route, HttpContext context) throws IOException {
+            delegate.routeComplete(conn, route, context);
+        }
+
+        public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+            delegate.closeIdleConnections(idleTime, timeUnit);
+        }
+
+        public void closeExpiredConnections() {
+            delegate.closeExpiredConnections();
+        }
+
+        public void shutdown() {
+            // owned by the pool
+        }
+    }
+}
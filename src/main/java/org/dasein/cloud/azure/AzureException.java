@@ -28,8 +28,6 @@ import org.xml.sax.SAXException;
 
 import javax.annotation.Nonnegative;
 import javax.annotation.Nullable;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
@@ -63,10 +61,7 @@ public class AzureException extends CloudException {
         try {
             ByteArrayInputStream bas = new ByteArrayInputStream(xml.getBytes());
 
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder parser = factory.newDocumentBuilder();
-            
-            doc = parser.parse(bas);
+            doc = AzureXmlParser.parse(bas);
             bas.close();
         }
         catch( IOException e ) {
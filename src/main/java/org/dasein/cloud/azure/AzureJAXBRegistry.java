@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.azure.compute.disk.model.DataVirtualHardDiskModel;
+import org.dasein.cloud.azure.compute.image.model.OSImageModel;
+import org.dasein.cloud.azure.compute.image.model.OSImagesModel;
+import org.dasein.cloud.azure.compute.image.model.VMImageModel;
+import org.dasein.cloud.azure.compute.image.model.VMImagesModel;
+import org.dasein.cloud.azure.compute.model.AffinityGroupModel;
+import org.dasein.cloud.azure.compute.model.AffinityGroupsModel;
+import org.dasein.cloud.azure.compute.model.CreateAffinityGroupModel;
+import org.dasein.cloud.azure.compute.model.UpdateAffinityGroupModel;
+import org.dasein.cloud.azure.compute.vm.model.ConfigurationSetModel;
+import org.dasein.cloud.azure.compute.vm.model.CreateHostedServiceModel;
+import org.dasein.cloud.azure.compute.vm.model.DeploymentModel;
+import org.dasein.cloud.azure.compute.vm.model.Operation;
+import org.dasein.cloud.azure.network.model.DefinitionModel;
+import org.dasein.cloud.azure.network.model.DefinitionsModel;
+import org.dasein.cloud.azure.network.model.PersistentVMRoleModel;
+import org.dasein.cloud.azure.network.model.ProfileModel;
+import org.dasein.cloud.azure.network.model.ProfilesModel;
+import org.dasein.cloud.azure.platform.model.CreateDatabaseRestoreModel;
+import org.dasein.cloud.azure.platform.model.DatabaseServiceResourceModel;
+import org.dasein.cloud.azure.platform.model.DatabaseServiceResourcesModel;
+import org.dasein.cloud.azure.platform.model.RecoverableDatabaseModel;
+import org.dasein.cloud.azure.platform.model.RecoverableDatabasesModel;
+import org.dasein.cloud.azure.platform.model.ServerModel;
+import org.dasein.cloud.azure.platform.model.ServerNameModel;
+import org.dasein.cloud.azure.platform.model.ServerServiceResourceModel;
+import org.dasein.cloud.azure.platform.model.ServerServiceResourcesModel;
+import org.dasein.cloud.azure.platform.model.ServersModel;
+import org.dasein.cloud.azure.storage.model.CreateStorageServiceInputModel;
+
+import javax.annotation.Nonnull;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide registry of JAXB contexts for the Azure model classes. Creating a {@link JAXBContext} means
+ * introspecting the whole annotated class graph, so each context is built once and shared. Contexts are
+ * thread safe, but marshallers and unmarshallers are not; those are cached per thread and reused.
+ * <p>
+ * Setting the system property {@value #PRELOAD} to <code>false</code> disables warming up the contexts
+ * of the known model classes in the background when the first provider is created.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class AzureJAXBRegistry {
+    static private final Logger logger = Azure.getLogger(AzureJAXBRegistry.class);
+
+    static public final String PRELOAD = "azure.jaxb.preload";
+
+    static private final Class<?>[] MODEL_CLASSES = {
+            AffinityGroupModel.class, AffinityGroupsModel.class, CreateAffinityGroupModel.class, UpdateAffinityGroupModel.class,
+            DataVirtualHardDiskModel.class,
+            OSImageModel.class, OSImagesModel.class, VMImageModel.class, VMImagesModel.class,
+            ConfigurationSetModel.class, CreateHostedServiceModel.class, DeploymentModel.class, Operation.class,
+            DefinitionModel.class, DefinitionsModel.class, PersistentVMRoleModel.class, ProfileModel.class, ProfilesModel.class,
+            CreateDatabaseRestoreModel.class, DatabaseServiceResourceModel.class, DatabaseServiceResourcesModel.class,
+            RecoverableDatabaseModel.class, RecoverableDatabasesModel.class, ServerModel.class, ServerNameModel.class,
+            ServerServiceResourceModel.class, ServerServiceResourcesModel.class, ServersModel.class,
+            CreateStorageServiceInputModel.class
+    };
+
+    static private final ConcurrentHashMap<Class<?>,JAXBContext> contexts = new ConcurrentHashMap<Class<?>, JAXBContext>();
+
+    static private final ThreadLocal<Map<Class<?>,Unmarshaller>> unmarshallers = new ThreadLocal<Map<Class<?>,Unmarshaller>>() {
+        @Override
+        protected Map<Class<?>,Unmarshaller> initialValue() {
+            return new HashMap<Class<?>, Unmarshaller>();
+        }
+    };
+
+    static private final ThreadLocal<Map<Class<?>,Marshaller>> marshallers = new ThreadLocal<Map<Class<?>,Marshaller>>() {
+        @Override
+        protected Map<Class<?>,Marshaller> initialValue() {
+            return new HashMap<Class<?>, Marshaller>();
+        }
+    };
+
+    static private final AtomicBoolean preloaded = new AtomicBoolean(false);
+
+    /**
+     * Provides the shared JAXB context bound to the specified class, creating it on first use.
+     * @param classType the root element class
+     * @return the shared context for the class
+     * @throws JAXBException the class could not be bound
+     */
+    static public @Nonnull JAXBContext getContext(@Nonnull Class<?> classType) throws JAXBException {
+        JAXBContext context = contexts.get(classType);
+
+        if( context == null ) {
+            context = JAXBContext.newInstance(classType);
+
+            JAXBContext existing = contexts.putIfAbsent(classType, context);
+
+            if( existing != null ) {
+                context = existing;
+            }
+        }
+        return context;
+    }
+
+    /**
+     * Provides an unmarshaller for the specified class that is owned by the calling thread.
+     * @param classType the root element class
+     * @return an unmarshaller that must not be handed to other threads
+     * @throws JAXBException the class could not be bound
+     */
+    static public @Nonnull Unmarshaller getUnmarshaller(@Nonnull Class<?> classType) throws JAXBException {
+        Map<Class<?>,Unmarshaller> cache = unmarshallers.get();
+        Unmarshaller u = cache.get(classType);
+
+        if( u == null ) {
+            u = getContext(classType).createUnmarshaller();
+            cache.put(classType, u);
+        }
+        return u;
+    }
+
+    /**
+     * Provides a marshaller for the specified class that is owned by the calling thread.
+     * @param classType the root element class
+     * @return a marshaller that must not be handed to other threads
+     * @throws JAXBException the class could not be bound
+     */
+    static public @Nonnull Marshaller getMarshaller(@Nonnull Class<?> classType) throws JAXBException {
+        Map<Class<?>,Marshaller> cache = marshallers.get();
+        Marshaller m = cache.get(classType);
+
+        if( m == null ) {
+            m = getContext(classType).createMarshaller();
+            cache.put(classType, m);
+        }
+        return m;
+    }
+
+    static public @Nonnull <T> T unmarshal(@Nonnull Class<T> classType, @Nonnull InputStream input) throws JAXBException {
+        return classType.cast(getUnmarshaller(classType).unmarshal(input));
+    }
+
+    static public @Nonnull String marshal(@Nonnull Object object) throws JAXBException {
+        StringWriter writer = new StringWriter();
+
+        getMarshaller(object.getClass()).marshal(object, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Builds the contexts for all known model classes in the calling thread.
+     */
+    static public void preload() {
+        long start = System.currentTimeMillis();
+
+        for( Class<?> cls : MODEL_CLASSES ) {
+            try {
+                getContext(cls);
+            }
+            catch( JAXBException e ) {
+                logger.warn("Unable to create JAXB context for " + cls.getName() + ": " + e.getMessage());
+            }
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Preloaded " + MODEL_CLASSES.length + " JAXB contexts in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Builds the contexts for all known model classes on a background daemon thread. Only the first call
+     * in the process has any effect.
+     */
+    static public void preloadInBackground() {
+        if( "false".equalsIgnoreCase(System.getProperty(PRELOAD)) || !preloaded.compareAndSet(false, true) ) {
+            return;
+        }
+        Thread t = new Thread("Azure JAXB preload") {
+            public void run() {
+                preload();
+            }
+        };
+
+        t.setDaemon(true);
+        t.start();
+    }
+}
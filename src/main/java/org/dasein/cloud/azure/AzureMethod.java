@@ -22,19 +22,7 @@ package org.dasein.cloud.azure;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.*;
-import org.apache.http.conn.ClientConnectionManager;
-import org.apache.http.conn.params.ConnRoutePNames;
-import org.apache.http.conn.scheme.PlainSocketFactory;
-import org.apache.http.conn.scheme.Scheme;
-import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.CoreConnectionPNames;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
@@ -46,21 +34,11 @@ import org.xml.sax.SAXException;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.UnrecoverableKeyException;
-import java.util.Properties;
 
 /**
  * Handles connectivity to Microsoft Azure services.
@@ -77,26 +55,6 @@ public class AzureMethod {
         public Object body;
     }
 
-    private class HttpProxyConfig
-    {
-        private String host;
-        private Integer port;
-
-        public HttpProxyConfig(String host, Integer port)
-        {
-            this.host = host;
-            this.port = port;
-        }
-
-        public String getHost() {
-            return host;
-        }
-
-        public Integer getPort() {
-            return port;
-        }
-    }
-
     private String endpoint;
     private Azure provider;
     private RequestTrackingStrategy strategy;
@@ -183,6 +141,7 @@ public class AzureMethod {
             }
 
             if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                EntityUtils.consumeQuietly(response.getEntity());
                 return null;
             }
             if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
@@ -264,34 +223,26 @@ public class AzureMethod {
             return null;
         }
         try {
-            JAXBContext context = JAXBContext.newInstance(classType);
-            Unmarshaller u = context.createUnmarshaller();
-            return (T)u.unmarshal(responseAsStream);
+            return AzureJAXBRegistry.unmarshal(classType, WireLoggingInputStream.wrap(responseAsStream, wire));
         }
         catch(Exception ex)
         {
             logger.error(ex.getMessage());
             throw new InternalException(ex);
         }
+        finally {
+            try { responseAsStream.close(); }
+            catch( IOException ignore ) { }
+        }
 
     }
 
     public <T> String post(String resource, T object) throws JAXBException, CloudException, InternalException {
-        StringWriter stringWriter = new StringWriter();
-        JAXBContext jc = JAXBContext.newInstance(object.getClass());
-        Marshaller m = jc.createMarshaller();
-        m.marshal(object, stringWriter);
-
-        return post(provider.getContext().getAccountNumber(), resource, stringWriter.toString());
+        return post(provider.getContext().getAccountNumber(), resource, AzureJAXBRegistry.marshal(object));
     }
 
     public <T> String put(String resource, T object) throws JAXBException, CloudException, InternalException {
-        StringWriter stringWriter = new StringWriter();
-        JAXBContext jc = JAXBContext.newInstance( object.getClass());
-        Marshaller m = jc.createMarshaller();
-        m.marshal(object, stringWriter);
-
-        return invoke("PUT",provider.getContext().getAccountNumber(), resource,stringWriter.toString());
+        return invoke("PUT",provider.getContext().getAccountNumber(), resource, AzureJAXBRegistry.marshal(object));
     }
 
     public @Nullable Document getAsXML(@Nonnull String account, @Nonnull URI uri) throws CloudException, InternalException {
@@ -303,89 +254,7 @@ public class AzureMethod {
     }
     
     protected @Nonnull HttpClient getClient() throws CloudException, InternalException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new AzureConfigException("No context was defined for this request");
-        }
-        String endpoint = ctx.getEndpoint();
-
-        if( endpoint == null ) {
-            throw new AzureConfigException("No cloud endpoint was defined");
-        }
-        boolean ssl = endpoint.startsWith("https");
-        int targetPort;
-
-        try {
-            URI uri = new URI(endpoint);
-
-            targetPort = uri.getPort();
-            if( targetPort < 1 ) {
-                targetPort = (ssl ? 443 : 80);
-            }
-        }
-        catch( URISyntaxException e ) {
-            throw new AzureConfigException(e);
-        }
-        HttpParams params = new BasicHttpParams();
-        SchemeRegistry registry = new SchemeRegistry();
-
-        try {
-            registry.register(new Scheme(ssl ? "https" : "http", targetPort, new AzureSSLSocketFactory(new AzureX509(provider))));
-        }
-        catch( KeyManagementException e ) {
-            e.printStackTrace();
-            throw new InternalException(e);
-        }
-        catch( UnrecoverableKeyException e ) {
-            e.printStackTrace();
-            throw new InternalException(e);
-        }
-        catch( NoSuchAlgorithmException e ) {
-            e.printStackTrace();
-            throw new InternalException(e);
-        }
-        catch( KeyStoreException e ) {
-            e.printStackTrace();
-            throw new InternalException(e);
-        }
-
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-        HttpProtocolParams.setUserAgent(params, "Dasein Cloud");
-        params.setParameter(CoreConnectionPNames.CONNECTION_TIMEOUT, 10000);
-        params.setParameter(CoreConnectionPNames.SO_TIMEOUT, 300000);
-
-        HttpProxyConfig httpProxyConfig = getHttpProxyConfigData();
-        if(httpProxyConfig != null){
-            params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(httpProxyConfig.getHost(), httpProxyConfig.getPort()));
-            registry.register(new Scheme("http", httpProxyConfig.getPort(), new PlainSocketFactory()));
-        }
-
-        ClientConnectionManager ccm = new ThreadSafeClientConnManager(registry);
-
-        return new DefaultHttpClient(ccm, params);
-    }
-
-    private HttpProxyConfig getHttpProxyConfigData()
-    {
-        Properties p = provider.getContext().getCustomProperties();
-
-        HttpProxyConfig httpProxyConfig = null;
-        if( p != null && p.getProperty("proxyHost") != null && p.getProperty("proxyPort") != null) {
-            if(p.getProperty("proxyPort").length() > 0) {
-                httpProxyConfig = new HttpProxyConfig(p.getProperty("proxyHost"), Integer.parseInt(p.getProperty("proxyPort")));
-            }
-        }
-        else {
-            p = System.getProperties();
-            if (p != null && p.getProperty("proxyHost") != null && p.getProperty("proxyPort") != null) {
-                if (p.getProperty("proxyPort").length() > 0) {
-                    httpProxyConfig = new HttpProxyConfig(p.getProperty("proxyHost"), Integer.parseInt(p.getProperty("proxyPort")));
-                }
-            }
-        }
-        return httpProxyConfig;
+        return provider.getManagementConnectionPool().getClient();
     }
 
     public @Nonnull Document parseResponse(@Nonnull String responseBody, boolean withWireLogging) throws CloudException, InternalException {
@@ -403,9 +272,7 @@ public class AzureMethod {
             }
             ByteArrayInputStream bas = new ByteArrayInputStream(responseBody.getBytes());
 
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder parser = factory.newDocumentBuilder();
-            Document doc = parser.parse(bas);
+            Document doc = AzureXmlParser.parse(bas);
 
             bas.close();
             return doc;
@@ -422,21 +289,24 @@ public class AzureMethod {
     }
     
     public @Nonnull Document parseResponse(@Nonnull InputStream responseBodyAsStream, boolean withWireLogging) throws CloudException, InternalException {
-        try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(responseBodyAsStream));
-            StringBuilder sb = new StringBuilder();
-            String line;
+        InputStream input = (withWireLogging ? WireLoggingInputStream.wrap(responseBodyAsStream, wire) : responseBodyAsStream);
 
-            while( (line = in.readLine()) != null ) {
-                sb.append(line);
-                sb.append("\n");
-            }
-            in.close();
-            return parseResponse(sb.toString(), withWireLogging);
+        try {
+            return AzureXmlParser.parse(input);
         }
         catch( IOException e ) {
             throw new CloudException(e);
         }
+        catch( ParserConfigurationException e ) {
+            throw new CloudException(e);
+        }
+        catch( SAXException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            try { input.close(); }
+            catch( IOException ignore ) { }
+        }
     }
 
     public String post(@Nonnull String account, @Nonnull String resource, @Nonnull String body) throws CloudException, InternalException {
@@ -568,6 +438,7 @@ public class AzureMethod {
                 logger.error("post(): [" + status.getStatusCode() + " : " + items.message + "] " + items.details);
                 throw new AzureException(items);
             }
+            EntityUtils.consumeQuietly(response.getEntity());
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -763,6 +634,7 @@ public class AzureMethod {
                 logger.error("post(): [" + status.getStatusCode() + " : " + items.message + "] " + items.details);
                 throw new AzureException(items);
             }
+            EntityUtils.consumeQuietly(response.getEntity());
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -898,6 +770,7 @@ public class AzureMethod {
                 logger.error("post(): [" + status.getStatusCode() + " : " + items.message + "] " + items.details);
                 throw new AzureException(items);
             }
+            EntityUtils.consumeQuietly(response.getEntity());
         }
         finally {
             if( logger.isTraceEnabled() ) {
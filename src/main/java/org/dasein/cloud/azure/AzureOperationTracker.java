@@ -0,0 +1,455 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks asynchronous Azure management operations until they complete. Instead of every caller sleeping on its
+ * own thread between status checks, operations are registered here and a single scheduler thread hands the
+ * status checks of all operations that are due to the shared request pool, backing off exponentially from a
+ * sub-second interval for each operation. The scheduler thread never waits for a check itself, so a slow
+ * subscription cannot hold up the others. Fast operations are therefore noticed quickly, and hundreds of concurrent long-running
+ * operations do not need a thread each.
+ * <p>
+ * The interval between status checks starts at {@link #INITIAL_POLL} milliseconds and doubles after each check up
+ * to {@link #MAX_POLL} milliseconds. Both can be overridden through the provider settings. Status checks are also
+ * limited to {@link #MAX_CHECKS_PER_SECOND} per subscription; checks over the limit are deferred to the next second
+ * so that many pending operations cannot get a subscription throttled.
+ * </p>
+ * <p>
+ * Every status check is reported to {@link APITrace}, and the number of checks and time taken by each operation
+ * are logged when it completes.
+ * </p>
+ * <p>
+ * Other asynchronous work followed by status checks, such as blob copies, shares the scheduler thread through
+ * {@link #schedule(Runnable, long)} and the same polling settings.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class AzureOperationTracker {
+    static private final Logger logger = Azure.getLogger(AzureOperationTracker.class);
+
+    static public final String INITIAL_POLL = "azure.operations.initialPollMillis";
+    static public final String MAX_POLL     = "azure.operations.maxPollMillis";
+    static public final String TIMEOUT      = "azure.operations.timeoutMinutes";
+    static public final String MAX_CHECKS_PER_SECOND = "azure.operations.maxChecksPerSecond";
+
+    static private final long DEFAULT_INITIAL_POLL = 500L;
+    static private final long DEFAULT_MAX_POLL     = 15000L;
+    static private final long DEFAULT_TIMEOUT      = 60L;
+    static private final long DEFAULT_MAX_CHECKS   = 4L;
+
+    // checks falling due this close to a sweep are made in that sweep rather than in one of their own
+    static private final long BATCH_WINDOW = 250L;
+
+    static private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "Azure operation tracker");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final List<Operation> pending = new ArrayList<Operation>();
+
+    // start and number of checks of the current one second window per subscription, used by the scheduler thread only;
+    // windows are dropped once they have closed, so the map only holds subscriptions checked in the last second
+    static private final HashMap<String,long[]> checkWindows = new HashMap<String, long[]>();
+    static private long lastWindowPurge = 0L;
+
+    static private final Runnable sweeper = new Runnable() {
+        public void run() {
+            sweep();
+        }
+    };
+
+    /**
+     * A pending Azure operation. The result is the HTTP status code reported by Azure for a successful operation,
+     * or <code>-2</code> if Azure does not know the operation. A failed operation completes with the
+     * {@link CloudException} describing the failure.
+     */
+    static public class Operation implements Future<Integer> {
+        private final Azure          provider;
+        private final String         requestId;
+        private final long           maxDelay;
+        private final long           started = System.currentTimeMillis();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        private long    delay;
+        private volatile long nextCheck;
+        private int     checks    = 0;
+        private boolean finished  = false;
+        private boolean cancelled = false;
+        private Integer result    = null;
+        private Throwable error   = null;
+
+        private Operation(@Nonnull Azure provider, @Nonnull String requestId, long initialDelay, long maxDelay) {
+            this.provider = provider;
+            this.requestId = requestId;
+            this.delay = initialDelay;
+            this.maxDelay = maxDelay;
+            this.nextCheck = System.currentTimeMillis() + initialDelay;
+        }
+
+        public @Nonnull String getRequestId() {
+            return requestId;
+        }
+
+        /**
+         * @return the number of status checks made for this operation so far
+         */
+        public synchronized int getStatusChecks() {
+            return checks;
+        }
+
+        /**
+         * @return the time in milliseconds since tracking of this operation started
+         */
+        public long getElapsedMillis() {
+            return (System.currentTimeMillis() - started);
+        }
+
+        /**
+         * Stops tracking the operation. This does not cancel the operation in Azure.
+         * @param mayInterruptIfRunning ignored
+         * @return <code>true</code> if the operation was still being tracked
+         */
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized( this ) {
+                if( finished ) {
+                    return false;
+                }
+                finished = true;
+                cancelled = true;
+            }
+            done.countDown();
+            return true;
+        }
+
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        public synchronized boolean isDone() {
+            return finished;
+        }
+
+        public Integer get() throws InterruptedException, ExecutionException {
+            done.await();
+            return report();
+        }
+
+        public Integer get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if( !done.await(timeout, unit) ) {
+                throw new TimeoutException("Operation " + requestId + " is still in progress");
+            }
+            return report();
+        }
+
+        private synchronized Integer report() throws ExecutionException {
+            if( cancelled ) {
+                throw new CancellationException("Tracking of operation " + requestId + " was cancelled");
+            }
+            if( error != null ) {
+                throw new ExecutionException(error);
+            }
+            return result;
+        }
+
+        private void complete(Integer result, Throwable error) {
+            synchronized( this ) {
+                if( finished ) {
+                    return;
+                }
+                finished = true;
+                this.result = result;
+                this.error = error;
+            }
+            done.countDown();
+            if( logger.isInfoEnabled() ) {
+                logger.info("Operation " + requestId + (error == null ? " completed" : " failed") + " after " + getStatusChecks() + " status checks in " + getElapsedMillis() + "ms");
+            }
+        }
+
+        private synchronized void defer(long until) {
+            nextCheck = until;
+        }
+
+        private synchronized long backOff() {
+            checks++;
+            nextCheck = System.currentTimeMillis() + delay;
+            long current = delay;
+
+            delay = Math.min(delay * 2, maxDelay);
+            return current;
+        }
+    }
+
+    /**
+     * Starts tracking the specified operation.
+     * @param provider the provider with which the operation was started
+     * @param requestId the request ID returned by Azure for the operation
+     * @return a future completing with the outcome of the operation
+     */
+    static public @Nonnull Operation track(@Nonnull Azure provider, @Nonnull String requestId) {
+        long initial = getInitialPoll(provider);
+        Operation op = new Operation(provider, requestId, initial, getMaxPoll(provider));
+
+        synchronized( pending ) {
+            pending.add(op);
+        }
+        scheduler.schedule(sweeper, initial, TimeUnit.MILLISECONDS);
+        return op;
+    }
+
+    /**
+     * Waits for the specified operation to complete, for no longer than the timeout configured in the
+     * {@link #TIMEOUT} setting.
+     * @param provider the provider with which the operation was started
+     * @param requestId the request ID returned by Azure for the operation
+     * @return the HTTP status code of the completed operation, or <code>-2</code> if Azure does not know the operation
+     * @throws CloudException the operation failed or did not complete in time
+     * @throws InternalException the wait was interrupted or the status could not be checked
+     */
+    static public int waitFor(@Nonnull Azure provider, @Nonnull String requestId) throws CloudException, InternalException {
+        return waitFor(provider, requestId, getTimeout(provider));
+    }
+
+    /**
+     * Waits for the specified operation to complete.
+     * @param provider the provider with which the operation was started
+     * @param requestId the request ID returned by Azure for the operation
+     * @param timeoutMillis the maximum time to wait in milliseconds
+     * @return the HTTP status code of the completed operation, or <code>-2</code> if Azure does not know the operation
+     * @throws CloudException the operation failed or did not complete in time
+     * @throws InternalException the wait was interrupted or the status could not be checked
+     */
+    static public int waitFor(@Nonnull Azure provider, @Nonnull String requestId, long timeoutMillis) throws CloudException, InternalException {
+        Operation op = track(provider, requestId);
+
+        try {
+            return op.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch( TimeoutException e ) {
+            op.cancel(false);
+            throw new CloudException("Operation " + requestId + " did not complete within " + (timeoutMillis / 1000L) + " seconds");
+        }
+        catch( InterruptedException e ) {
+            op.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while waiting for operation " + requestId);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+
+    /**
+     * @param provider the provider whose settings apply
+     * @return the interval before the first status check, in milliseconds
+     */
+    static public long getInitialPoll(@Nonnull Azure provider) {
+        return Math.max(1L, provider.getSetting(INITIAL_POLL, DEFAULT_INITIAL_POLL));
+    }
+
+    /**
+     * @param provider the provider whose settings apply
+     * @return the longest interval between two status checks, in milliseconds
+     */
+    static public long getMaxPoll(@Nonnull Azure provider) {
+        return Math.max(getInitialPoll(provider), provider.getSetting(MAX_POLL, DEFAULT_MAX_POLL));
+    }
+
+    /**
+     * @param provider the provider whose settings apply
+     * @return the time after which waiting for completion gives up, in milliseconds
+     */
+    static public long getTimeout(@Nonnull Azure provider) {
+        return TimeUnit.MINUTES.toMillis(provider.getSetting(TIMEOUT, DEFAULT_TIMEOUT));
+    }
+
+    /**
+     * Runs a task on the scheduler thread of the tracker. The thread is shared by everything being tracked, so the
+     * task must hand any request off to the request pool rather than make it itself.
+     * @param task the task to run
+     * @param delayMillis the time to wait before running the task, in milliseconds
+     */
+    static public void schedule(@Nonnull Runnable task, long delayMillis) {
+        scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static private void sweep() {
+        long now = System.currentTimeMillis();
+        ArrayList<Operation> due = new ArrayList<Operation>();
+
+        synchronized( pending ) {
+            Iterator<Operation> it = pending.iterator();
+
+            while( it.hasNext() ) {
+                Operation op = it.next();
+
+                if( op.isDone() ) {
+                    it.remove();
+                }
+                else if( op.nextCheck <= now + BATCH_WINDOW ) {
+                    it.remove();
+                    due.add(op);
+                }
+            }
+        }
+        if( due.isEmpty() ) {
+            return;
+        }
+        LinkedHashMap<Azure,LinkedHashMap<String,Operation>> batches = new LinkedHashMap<Azure, LinkedHashMap<String, Operation>>();
+
+        for( Operation op : due ) {
+            LinkedHashMap<String,Operation> batch = batches.get(op.provider);
+
+            if( batch == null ) {
+                batch = new LinkedHashMap<String, Operation>();
+                batches.put(op.provider, batch);
+            }
+            // the same operation may be tracked more than once
+            batch.put(op.requestId + "#" + batch.size(), op);
+        }
+        for( Map.Entry<Azure,LinkedHashMap<String,Operation>> batch : batches.entrySet() ) {
+            try {
+                check(batch.getKey(), batch.getValue());
+            }
+            catch( Throwable t ) {
+                logger.error("Unable to check the status of pending operations: " + t.getMessage());
+                for( Operation op : batch.getValue().values() ) {
+                    op.complete(null, t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands the status checks of a batch to the request pool and returns at once; each check completes its
+     * operation, or puts it back in {@link #pending}, from a worker thread.
+     */
+    static private void check(@Nonnull final Azure provider, @Nonnull Map<String,Operation> batch) {
+        long[] window = getCheckWindow(provider);
+        long limit = Math.max(1L, provider.getSetting(MAX_CHECKS_PER_SECOND, DEFAULT_MAX_CHECKS));
+
+        for( Map.Entry<String,Operation> entry : batch.entrySet() ) {
+            final Operation op = entry.getValue();
+
+            if( window[1] >= limit ) {
+                // over the limit for this second; check again once the next window opens
+                op.defer(window[0] + 1000L);
+                reschedule(op, Math.max(1L, window[0] + 1000L - System.currentTimeMillis()));
+                continue;
+            }
+            window[1]++;
+            AzureParallelRequests.submit(provider, new Callable<Void>() {
+                public Void call() {
+                    Integer status;
+
+                    APITrace.begin(provider, "Operation.getOperationStatus");
+                    try {
+                        status = new AzureMethod(provider).getOperationStatus(op.requestId);
+                    }
+                    catch( Throwable t ) {
+                        op.backOff();
+                        op.complete(null, t);
+                        return null;
+                    }
+                    finally {
+                        APITrace.end();
+                    }
+                    long delay = op.backOff();
+
+                    if( status != null && status != -1 ) {
+                        op.complete(status, null);
+                    }
+                    else if( !op.isDone() ) {
+                        // still in progress
+                        reschedule(op, delay);
+                    }
+                    return null;
+                }
+            });
+        }
+    }
+
+    static private void reschedule(@Nonnull Operation op, long delayMillis) {
+        synchronized( pending ) {
+            pending.add(op);
+        }
+        scheduler.schedule(sweeper, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static private @Nonnull long[] getCheckWindow(@Nonnull Azure provider) {
+        ProviderContext ctx = provider.getContext();
+        String subscription = (ctx == null ? "" : ctx.getEndpoint() + "|" + ctx.getAccountNumber());
+        long now = System.currentTimeMillis();
+
+        if( now - lastWindowPurge >= 1000L ) {
+            Iterator<long[]> windows = checkWindows.values().iterator();
+
+            while( windows.hasNext() ) {
+                if( now - windows.next()[0] >= 1000L ) {
+                    windows.remove();
+                }
+            }
+            lastWindowPurge = now;
+        }
+        long[] window = checkWindows.get(subscription);
+
+        if( window == null || now - window[0] >= 1000L ) {
+            window = new long[] { now, 0L };
+            checkWindows.put(subscription, window);
+        }
+        return window;
+    }
+}
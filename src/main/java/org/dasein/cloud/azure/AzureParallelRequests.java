@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Runs a batch of independent API requests concurrently with a bounded degree of parallelism and an overall
+ * deadline. Worker threads come from a process-wide pool of at most {@link #MAX_THREADS} daemon threads with a
+ * bounded queue; each batch never occupies more than its own parallelism limit, so a large fan-out cannot starve
+ * the connection pool. Once the queue is full as well, work runs on the thread submitting it.
+ * <p>
+ * Results are returned in the iteration order of the submitted tasks regardless of completion order, and
+ * every task gets its own {@link Outcome}, so a failure in one request does not hide the results of the others.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class AzureParallelRequests {
+    static private final Logger logger = Azure.getLogger(AzureParallelRequests.class);
+
+    /**
+     * The maximum number of worker threads shared by every caller in the process.
+     */
+    static public final int MAX_THREADS = 64;
+
+    static private final int MAX_QUEUED = 1024;
+
+    static private final ThreadPoolExecutor workers = createWorkers();
+
+    static private @Nonnull ThreadPoolExecutor createWorkers() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            public Thread newThread(@Nonnull Runnable r) {
+                Thread t = new Thread(r, "Azure request worker-" + count.incrementAndGet());
+
+                t.setDaemon(true);
+                return t;
+            }
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+
+        // idle workers go away, so the pool costs nothing between bursts
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * The result of a single task of a batch.
+     * @param <T> the type of the task result
+     */
+    static public class Outcome<T> {
+        private final String    key;
+        private final T         result;
+        private final Throwable error;
+
+        private Outcome(@Nonnull String key, @Nullable T result, @Nullable Throwable error) {
+            this.key = key;
+            this.result = result;
+            this.error = error;
+        }
+
+        /**
+         * @return the key under which the task was submitted
+         */
+        public @Nonnull String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the value returned by the task, <code>null</code> if it failed
+         */
+        public @Nullable T getResult() {
+            return result;
+        }
+
+        /**
+         * @return the failure of the task, a {@link TimeoutException} if the deadline passed before it completed,
+         * or <code>null</code> if it succeeded
+         */
+        public @Nullable Throwable getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return (error == null);
+        }
+    }
+
+    /**
+     * Executes the specified tasks and waits until all of them have completed or the timeout has expired.
+     * Tasks that have not completed by the deadline are reported as timed out; requests already in flight are
+     * left to finish in the background and their results are discarded.
+     * @param provider the provider on whose behalf the requests are made
+     * @param tasks the tasks to run, keyed by a name used for reporting; the iteration order is the result order
+     * @param parallelism the maximum number of tasks of this batch running at the same time
+     * @param timeoutMillis the overall deadline for the batch in milliseconds
+     * @param <T> the type of the task results
+     * @return one outcome per task, in the iteration order of the tasks
+     */
+    static public @Nonnull <T> List<Outcome<T>> invokeAll(@Nonnull final Azure provider, @Nonnull Map<String,? extends Callable<T>> tasks, int parallelism, long timeoutMillis) {
+        final List<String> keys = new ArrayList<String>(tasks.keySet());
+        final List<Callable<T>> calls = new ArrayList<Callable<T>>(tasks.values());
+        final AtomicReferenceArray<Outcome<T>> outcomes = new AtomicReferenceArray<Outcome<T>>(calls.size());
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicBoolean expired = new AtomicBoolean(false);
+        int threads = Math.max(1, Math.min(parallelism, calls.size()));
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        for( int t=0; t<threads; t++ ) {
+            Runnable worker = new Runnable() {
+                public void run() {
+                    provider.hold();
+                    try {
+                        int i;
+
+                        // a worker running on the calling thread cannot be abandoned, so it checks the deadline itself
+                        while( !expired.get() && System.currentTimeMillis() < deadline && (i = next.getAndIncrement()) < calls.size() ) {
+                            Outcome<T> outcome;
+
+                            try {
+                                outcome = new Outcome<T>(keys.get(i), calls.get(i).call(), null);
+                            }
+                            catch( Throwable e ) {
+                                outcome = new Outcome<T>(keys.get(i), null, e);
+                            }
+                            outcomes.compareAndSet(i, null, outcome);
+                        }
+                    }
+                    finally {
+                        provider.release();
+                        done.countDown();
+                    }
+                }
+            };
+
+            // even a single worker runs on the pool, so that the caller can give up on it at the deadline
+            workers.execute(worker);
+        }
+        try {
+            if( !done.await(timeoutMillis, TimeUnit.MILLISECONDS) ) {
+                logger.warn("Parallel requests did not complete within " + timeoutMillis + "ms");
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        expired.set(true);
+
+        List<Outcome<T>> results = new ArrayList<Outcome<T>>(calls.size());
+
+        for( int i=0; i<calls.size(); i++ ) {
+            // tasks completing after this point lose the race and are discarded
+            outcomes.compareAndSet(i, null, new Outcome<T>(keys.get(i), null, new TimeoutException("Request " + keys.get(i) + " did not complete in time")));
+            results.add(outcomes.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * Runs a single task on the shared worker pool. Callers submitting many tasks are responsible for bounding how
+     * many of them are in flight at the same time.
+     * @param provider the provider on whose behalf the request is made
+     * @param task the task to run
+     * @param <T> the type of the task result
+     * @return the pending result of the task
+     */
+    static public @Nonnull <T> Future<T> submit(@Nonnull final Azure provider, @Nonnull final Callable<T> task) {
+        return workers.submit(new Callable<T>() {
+            public T call() throws Exception {
+                provider.hold();
+                try {
+                    return task.call();
+                }
+                finally {
+                    provider.release();
+                }
+            }
+        });
+    }
+}
@@ -18,12 +18,9 @@
 
 package org.dasein.cloud.azure;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
-import org.apache.http.HttpVersion;
 import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpDelete;
@@ -35,16 +32,10 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.client.methods.HttpTrace;
-import org.apache.http.conn.params.ConnRoutePNames;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.FileEntity;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.protocol.HTTP;
 import org.apache.http.util.EntityUtils;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudErrorType;
@@ -52,16 +43,10 @@ import org.dasein.cloud.CloudException;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletResponse;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -71,27 +56,21 @@ import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Properties;
 import java.util.TimeZone;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 /**
  * Handles connectivity to Microsoft Azure Storage services.
@@ -113,8 +92,19 @@ public class AzureStorageMethod {
     public static final String  Storage_OPERATION_DELETE = "DELETE";
     public static final String  Storage_OPERATION_PUT = "PUT";
     public static final String  Storage_OPERATION_GET = "GET";
+    public static final String  Storage_OPERATION_HEAD = "HEAD";
+
+    static public final String AUTH_SHARED_KEY_LITE = "SharedKeyLite";
+    static public final String AUTH_SHARED_KEY      = "SharedKey";
+    static public final String AUTH_SAS             = "SAS";
+
+    static public final String API_VERSION = "azure.storage.apiVersion";
+    static public final String AUTH_SCHEME = "azure.storage.authScheme";
+    static public final String SAS_TOKEN   = "azure.storage.sasToken";
 
     private Azure  provider;
+    private String version;
+    private String authScheme;
 
     public AzureStorageMethod(Azure azure) throws AzureConfigException {
         provider = azure;
@@ -123,6 +113,41 @@ public class AzureStorageMethod {
         if( ctx == null ) {
             throw new AzureConfigException("No context was provided for this request");
         }        
+        version = provider.getSetting(API_VERSION);
+        if( version == null || version.trim().length() < 1 ) {
+            version = VERSION;
+        }
+        authScheme = provider.getSetting(AUTH_SCHEME);
+        if( authScheme == null || authScheme.trim().length() < 1 ) {
+            authScheme = (provider.getSetting(SAS_TOKEN) == null ? AUTH_SHARED_KEY_LITE : AUTH_SAS);
+        }
+    }
+
+    /**
+     * Sends the requests of this method with the specified storage API version instead of the configured one.
+     * @param version the storage API version, such as <code>2015-04-05</code>
+     * @return this method
+     */
+    public @Nonnull AzureStorageMethod withVersion(@Nonnull String version) {
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * Authorizes the requests of this method with the specified scheme instead of the configured one.
+     * @param authScheme one of {@link #AUTH_SHARED_KEY_LITE}, {@link #AUTH_SHARED_KEY} or {@link #AUTH_SAS}
+     * @return this method
+     */
+    public @Nonnull AzureStorageMethod withAuthScheme(@Nonnull String authScheme) {
+        this.authScheme = authScheme;
+        return this;
+    }
+
+    /**
+     * @return the storage API version the requests of this method are sent with
+     */
+    public @Nonnull String getVersion() {
+        return version;
     }
 
     private void fetchKeys() throws CloudException, InternalException {
@@ -133,59 +158,7 @@ public class AzureStorageMethod {
         }
 
         if( ctx.getStoragePrivate() == null ) {
-            AzureMethod method = new AzureMethod(provider);
-
-            String storageService = provider.getStorageService();
-            if( storageService == null || storageService.isEmpty()) {
-                throw new CloudException("Unable to find storage service in the current region: " + ctx.getRegionId());
-            }
-
-            Document doc = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices/" + storageService + "/keys");
-
-            if( doc == null ) {
-                throw new CloudException("Unable to identify the storage keys for this account");
-            }
-            NodeList keys = doc.getElementsByTagName("StorageServiceKeys");
-
-            for( int i=0; i<keys.getLength(); i++ ) {
-                Node key = keys.item(i);
-
-                if( key.getNodeName().equalsIgnoreCase("StorageServiceKeys") && key.hasChildNodes() ) {
-                    NodeList parts = key.getChildNodes();
-                    String p = null, s = null;
-
-                    for( int j=0; j<parts.getLength(); j++ ) {
-                        Node part = parts.item(j);
-
-                        if( part.getNodeName().equalsIgnoreCase("primary") && part.hasChildNodes() ) {
-                            p = part.getFirstChild().getNodeValue().trim();
-                        }
-                        else if( part.getNodeName().equalsIgnoreCase("secondary") && part.hasChildNodes() ) {
-                            s = part.getFirstChild().getNodeValue().trim();
-                        }
-                    }
-                    if( p != null ) {
-                        try {
-                            ctx.setStoragePrivate(p.getBytes("utf-8"));
-                        }
-                        catch( UnsupportedEncodingException e ) {
-                            logger.error("UTF-8 not supported: " + e.getMessage());
-                            throw new InternalException(e);
-                        }
-                        break;
-                    }
-                    else if( s != null ) {
-                        try {
-                            ctx.setStoragePrivate(s.getBytes("utf-8"));
-                        }
-                        catch( UnsupportedEncodingException e ) {
-                            logger.error("UTF-8 not supported: " + e.getMessage());
-                            throw new InternalException(e);
-                        }
-                        break;
-                    }
-                }
-            }
+            ctx.setStoragePrivate(provider.getStorageKey());
         }
     }
 
@@ -193,7 +166,7 @@ public class AzureStorageMethod {
         return provider.getStorageService();
     }
 
-    private String calculatedSharedKeyLiteSignature(@Nonnull HttpRequestBase method, @Nonnull Map<String, String> queryParams) throws  CloudException, InternalException {
+    private @Nonnull StorageKeySigner getSigner() throws CloudException, InternalException {
         fetchKeys();
 
         ProviderContext ctx = provider.getContext();
@@ -201,104 +174,106 @@ public class AzureStorageMethod {
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
-        Header h = method.getFirstHeader("content-type");
-        String contentType = (h == null ? null : h.getValue());
+        return StorageKeySigner.getInstance(getStorageAccount(), ctx.getStoragePrivate());
+    }
 
-        if( contentType == null ) {
-            contentType = "";
+    /**
+     * Executes the request, signing it first if it uses the SharedKey scheme. A signed request that is refused with
+     * 403 may have been signed with a key that has been rotated since it was fetched, so the key is fetched again
+     * and, if it changed, the request is signed again and retried once.
+     */
+    private @Nonnull HttpResponse execute(@Nonnull HttpClient client, @Nonnull HttpRequestBase method, @Nonnull Map<String, String> queries) throws IOException, CloudException, InternalException {
+        if( AUTH_SHARED_KEY.equalsIgnoreCase(authScheme) && method.containsHeader("Date") && !method.containsHeader("Authorization") ) {
+            // SharedKey covers the length of the body, which is only attached after getMethod()
+            method.addHeader("Authorization", getAuthorization(method, queries));
         }
-        StringBuilder stringToSign = new StringBuilder();
+        HttpResponse response = client.execute(method);
 
-        stringToSign.append(method.getMethod().toUpperCase()).append("\n");
-        stringToSign.append("\n"); // content-md5
-        stringToSign.append(contentType).append("\n");
-        stringToSign.append(method.getFirstHeader("date").getValue()).append("\n");
-
-        Header[] headers = method.getAllHeaders();
-        TreeSet<String> keys = new TreeSet<String>();
+        if( response.getStatusLine().getStatusCode() != HttpServletResponse.SC_FORBIDDEN || method.getFirstHeader("Authorization") == null ) {
+            return response;
+        }
+        if( method instanceof HttpEntityEnclosingRequestBase ) {
+            HttpEntity body = ((HttpEntityEnclosingRequestBase)method).getEntity();
 
-        for( Header header  : headers ) {
-            if( header.getName().startsWith(Header_Prefix_MS) ) {
-                keys.add(header.getName().toLowerCase());
+            if( body != null && !body.isRepeatable() ) {
+                return response;
             }
         }
+        ProviderContext ctx = provider.getContext();
+        StorageKeySigner signer = getSigner();
 
-        for( String key : keys ) {
-            Header header = method.getFirstHeader(key);
-
-            if( header != null ) {
-                Header[] all = method.getHeaders(key);
+        if( ctx == null || !signer.claimKeyRefresh() ) {
+            return response;
+        }
+        byte[] used = ctx.getStoragePrivate();
 
-                stringToSign.append(key.toLowerCase().trim()).append(":");
-                if( all != null && all.length > 0 ) {
-                    for( Header current : all ) {
-                        String v = (current.getValue() != null ? current.getValue() : "");
+        StorageAccountCache.getInstance(provider).invalidateKey(used);
+        // other threads keep signing with the context, so it holds the old key until the new one is known
+        byte[] fresh = provider.getStorageKey();
 
-                        stringToSign.append(v.trim().replaceAll("\n", " ")).append(",");
-                    }
-                }
-                stringToSign.deleteCharAt(stringToSign.lastIndexOf(","));
-            }
-            else {
-                stringToSign.append(key.toLowerCase().trim()).append(":");
-            }
-            stringToSign.append("\n");
+        if( Arrays.equals(used, fresh) ) {
+            return response;
         }
+        ctx.setStoragePrivate(fresh);
+        logger.info("The key of storage account " + getStorageAccount() + " has changed, retrying " + method.getRequestLine());
+        EntityUtils.consumeQuietly(response.getEntity());
+        method.reset();
+        method.removeHeaders("Date");
+        method.removeHeaders("Authorization");
+        method.addHeader("Date", formatDate(new Date()));
+        method.addHeader("Authorization", getAuthorization(method, queries));
+        return client.execute(method);
+    }
 
-        stringToSign.append("/").append(getStorageAccount()).append(method.getURI().getPath());
+    private @Nonnull String getAuthorization(@Nonnull HttpRequestBase method, @Nonnull Map<String, String> queries) throws CloudException, InternalException {
+        if( AUTH_SHARED_KEY.equalsIgnoreCase(authScheme) ) {
+            Header v = method.getFirstHeader(Header_Prefix_MS + "version");
 
-        keys.clear();
-        for( String key : queryParams.keySet() ) {
-            if( key.equalsIgnoreCase("comp") ) {
-                key = key.toLowerCase();
-                keys.add(key);
-            }
+            return getSigner().signSharedKey(method, queries, (v == null ? version : v.getValue()));
         }
-        if( !keys.isEmpty() ) {
-            stringToSign.append("?");
-            for( String key : keys ) {
-                String value = queryParams.get(key);
+        return getSigner().signSharedKeyLite(method, queries);
+    }
 
-                if( value == null ) {
-                    value = "";
-                }
-                stringToSign.append(key).append("=").append(value).append("&");
-            }
-            stringToSign.deleteCharAt(stringToSign.lastIndexOf("&"));
-        }
-        try {
-            if( logger.isDebugEnabled() ) {
-                logger.debug("BEGIN STRING TO SIGN");
-                logger.debug(stringToSign.toString());
-                logger.debug("END STRING TO SIGN");
-            }
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(new SecretKeySpec(Base64.decodeBase64(ctx.getStoragePrivate()), "HmacSHA256"));
+    /**
+     * Builds a URL that grants its holder access to a blob or container without further authorization, by means of
+     * a service shared access signature.
+     * @param resource the container, or the container and blob separated by a slash
+     * @param permissions the granted permissions, such as <code>r</code> to read
+     * @param expiry the time at which the URL expires
+     * @return the signed URL
+     * @throws CloudException the storage account or its key could not be determined
+     * @throws InternalException the signature could not be calculated
+     */
+    public @Nonnull String getSignedUrl(@Nonnull String resource, @Nonnull String permissions, @Nonnull Date expiry) throws CloudException, InternalException {
+        int idx = resource.indexOf('/');
+        String container = (idx < 0 ? resource : resource.substring(0, idx));
+        String blob = (idx < 0 ? null : resource.substring(idx + 1));
+        String sas = StorageSas.getServiceSas(getSigner(), container, blob, permissions, null, expiry, StorageSas.PROTOCOL_HTTPS_HTTP);
+
+        return buildUrl(resource, null) + "?" + sas;
+    }
 
-            String signature = new String(Base64.encodeBase64(mac.doFinal(stringToSign.toString().getBytes("UTF-8"))));
+    private @Nonnull String getSasToken() throws CloudException {
+        String token = provider.getSetting(SAS_TOKEN);
 
-            if( logger.isDebugEnabled() ) {
-                logger.debug("signature=" + signature);
-            }
-            return signature;
-        }
-        catch( UnsupportedEncodingException e ) {
-            logger.error("UTF-8 not supported: " + e.getMessage());
-            throw new InternalException(e);
-        }
-        catch( NoSuchAlgorithmException e ) {
-            logger.error("No such algorithm: " + e.getMessage());
-            throw new InternalException(e);
-        }
-        catch( InvalidKeyException e ) {
-            logger.error("Invalid key: " + e.getMessage());
-            throw new InternalException(e);
+        if( token == null || token.trim().length() < 1 ) {
+            throw new AzureConfigException("No shared access signature was configured in " + SAS_TOKEN);
         }
+        token = token.trim();
+        return (token.startsWith("?") ? token.substring(1) : token);
+    }
+
+    static private @Nonnull String formatDate(@Nonnull Date date) {
+        String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
+        DateFormat rfc1123Format = new SimpleDateFormat(RFC1123_PATTERN);
+
+        rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return rfc1123Format.format(date);
     }
 
     public static Document createDoc() throws InternalException{
 		try {
-			return DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+			return AzureXmlParser.newDocument();
 		} catch (ParserConfigurationException e) {
 			throw new InternalException(e);
 		}		
@@ -373,7 +348,7 @@ public class AzureStorageMethod {
             StatusLine status;
             
             try {
-                response = client.execute(method);
+                response = execute(client, method, queries);
                 status = response.getStatusLine();
             }
             catch( IOException e ) {
@@ -401,6 +376,7 @@ public class AzureStorageMethod {
             }
             
             if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                EntityUtils.consumeQuietly(response.getEntity());
                 return null;
             }
             if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
@@ -516,7 +492,7 @@ public class AzureStorageMethod {
             StatusLine status;
             
             try {
-                response = client.execute(method);
+                response = execute(client, method, queries);
                 status = response.getStatusLine();
             }
             catch( IOException e ) {
@@ -545,9 +521,11 @@ public class AzureStorageMethod {
             }
             
             if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                EntityUtils.consumeQuietly(response.getEntity());
                 return null;
             }
-            if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
+            // ranged reads answer with partial content
+            if( status.getStatusCode() != HttpServletResponse.SC_OK && status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION && status.getStatusCode() != HttpServletResponse.SC_PARTIAL_CONTENT ) {
                 logger.error(strMethod + "(): Expected OK for " + strMethod + "request, got " + status.getStatusCode());
                 
                 HttpEntity entity = response.getEntity();
@@ -576,7 +554,12 @@ public class AzureStorageMethod {
                 throw new AzureException(items);
             }
             else {
-
+                if( headerMap != null && headerMap.containsKey("x-ms-range") && status.getStatusCode() != HttpServletResponse.SC_PARTIAL_CONTENT ) {
+                    // the range was ignored and the content does not start where the caller expects it to
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    logger.error(strMethod + "(): Expected partial content for ranged request, got " + status.getStatusCode());
+                    throw new AzureException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), "The range " + headerMap.get("x-ms-range") + " of " + resource + " was not honoured");
+                }
                 HttpEntity entity = response.getEntity();
 
                 if( entity == null ) {
@@ -610,51 +593,80 @@ public class AzureStorageMethod {
         } 
     }
 
-    protected @Nonnull HttpClient getClient() throws InternalException, CloudException {
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new AzureConfigException("No context was defined for this request");
+    /**
+     * Reads the properties of a blob or container with a HEAD request, without transferring any content.
+     * @param resource the blob or container
+     * @param queries the query parameters of the request
+     * @return the response headers, keyed case-insensitively, or <code>null</code> if the resource does not exist
+     * @throws CloudException the properties could not be read
+     * @throws InternalException the request could not be built
+     */
+    public @Nullable Map<String, String> getBlobProperties(@Nonnull String resource, @Nonnull Map<String, String> queries) throws CloudException, InternalException {
+        if( logger.isTraceEnabled() ) {
+            logger.trace("enter - " + AzureStorageMethod.class.getName() + ".getBlobProperties(" + getStorageAccount() + "," + resource + ")");
         }
         String endpoint = getStorageEnpoint();
-        boolean ssl = endpoint.startsWith("https");
-        int targetPort;
 
+        if( wire.isDebugEnabled() ) {
+            wire.debug(Storage_OPERATION_HEAD + "--------------------------------------------------------> " + endpoint + getStorageAccount() + resource);
+            wire.debug("");
+        }
         try {
-        	
-            URI uri = new URI(endpoint);
-            targetPort = uri.getPort();
-            
-            if( targetPort < 1 ) {
-                targetPort = (ssl ? 443 : 80);
+            HttpClient client = getClient();
+            HttpRequestBase method = getMethod(Storage_OPERATION_HEAD, buildUrl(resource, queries), queries, new HashMap<String, String>(), true);
+
+            if( wire.isDebugEnabled() ) {
+                wire.debug(method.getRequestLine().toString());
+                for( Header header : method.getAllHeaders() ) {
+                    wire.debug(header.getName() + ": " + header.getValue());
+                }
+                wire.debug("");
             }
-        }
-        catch( URISyntaxException e ) {
-            throw new AzureConfigException(e);
-        }
-        HttpParams params = new BasicHttpParams();
-   
-        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
-       
-        HttpProtocolParams.setContentCharset(params, HTTP.UTF_8);
-        
-        Properties p = ctx.getCustomProperties();
+            HttpResponse response;
 
-        if( p != null ) {
-            String proxyHost = p.getProperty("proxyHost");
-            String proxyPort = p.getProperty("proxyPort");
+            try {
+                response = execute(client, method, queries);
+            }
+            catch( IOException e ) {
+                logger.error("getBlobProperties(): Failed to execute HTTP request due to a cloud I/O error: " + e.getMessage());
+                throw new CloudException(e);
+            }
+            StatusLine status = response.getStatusLine();
 
-            if( proxyHost != null ) {
-                int port = 0;
+            if( wire.isDebugEnabled() ) {
+                wire.debug(status.toString());
+                for( Header h : response.getAllHeaders() ) {
+                    wire.debug(h.getName() + ": " + (h.getValue() == null ? "" : h.getValue().trim()));
+                }
+                wire.debug("");
+            }
+            EntityUtils.consumeQuietly(response.getEntity());
+            if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                return null;
+            }
+            if( status.getStatusCode() != HttpServletResponse.SC_OK ) {
+                // responses to HEAD have no body, so there are no error details to parse
+                logger.error("getBlobProperties(): Expected OK for HEAD request, got " + status.getStatusCode());
+                throw new AzureException(CloudErrorType.GENERAL, status.getStatusCode(), status.getReasonPhrase(), "Unable to read the properties of " + resource);
+            }
+            TreeMap<String, String> properties = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
 
-                if( proxyPort != null && proxyPort.length() > 0 ) {
-                    port = Integer.parseInt(proxyPort);
+            for( Header h : response.getAllHeaders() ) {
+                if( h.getValue() != null ) {
+                    properties.put(h.getName(), h.getValue().trim());
                 }
-                params.setParameter(ConnRoutePNames.DEFAULT_PROXY, new HttpHost(proxyHost, port, ssl ? "https" : "http"));
+            }
+            return properties;
+        }
+        finally {
+            if( logger.isTraceEnabled() ) {
+                logger.trace("exit - " + AzureStorageMethod.class.getName() + ".getBlobProperties()");
             }
         }
-        return new DefaultHttpClient (params);
-        
+    }
+
+    protected @Nonnull HttpClient getClient() throws InternalException, CloudException {
+        return provider.getStorageConnectionPool().getClient();
     }
 
 
@@ -673,9 +685,7 @@ public class AzureStorageMethod {
             }
             ByteArrayInputStream bas = new ByteArrayInputStream(responseBody.getBytes());
 
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder parser = factory.newDocumentBuilder();
-            Document doc = parser.parse(bas);
+            Document doc = AzureXmlParser.parse(bas);
 
             bas.close();
             return doc;
@@ -692,31 +702,35 @@ public class AzureStorageMethod {
     }
     
     public @Nonnull Document parseResponse(@Nonnull InputStream responseBodyAsStream, boolean withWireLogging) throws CloudException, InternalException {
+        InputStream input = new BufferedInputStream(withWireLogging ? WireLoggingInputStream.wrap(responseBodyAsStream, wire) : responseBodyAsStream);
+
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(responseBodyAsStream, "UTF-8"));
-            StringBuilder sb = new StringBuilder();
-            String line;
-
-            while( (line = in.readLine()) != null ) {
-                sb.append(line);
-                sb.append("\n");
-            }
-            in.close();          
-            // The response may start with ? instead of <
-            String strResponse= sb.toString();
-                           
-            int index = strResponse.indexOf("<");
-            
-            if(index > 0){
-            	return parseResponse(strResponse.substring(index), withWireLogging);
-            }else{
-            	return parseResponse(strResponse, withWireLogging);
+            // The response may start with ? (a byte order mark) instead of <
+            while( true ) {
+                input.mark(1);
+
+                int b = input.read();
+
+                if( b == -1 || b == '<' ) {
+                    input.reset();
+                    break;
+                }
             }
-            
+            return AzureXmlParser.parse(input);
         }
         catch( IOException e ) {
             throw new CloudException(e);
         }
+        catch( ParserConfigurationException e ) {
+            throw new CloudException(e);
+        }
+        catch( SAXException e ) {
+            throw new CloudException(e);
+        }
+        finally {
+            try { input.close(); }
+            catch( IOException ignore ) { }
+        }
     }
     
 	public String buildUrl(String resource, Map<String, String> queries) throws InternalException, CloudException {
@@ -812,7 +826,7 @@ public class AzureStorageMethod {
             StatusLine status;
             
             try {
-                response = client.execute(method);
+                response = execute(client, method, queries);
                 status = response.getStatusLine();
             }
             catch( IOException e ) {
@@ -840,6 +854,7 @@ public class AzureStorageMethod {
                 wire.debug("");
             }
             if( status.getStatusCode() == HttpServletResponse.SC_NOT_FOUND ) {
+                EntityUtils.consumeQuietly(response.getEntity());
                 return null;
             }
             if((status.getStatusCode() != HttpServletResponse.SC_CREATED
@@ -876,6 +891,8 @@ public class AzureStorageMethod {
             }
             else{
             	Header header = response.getFirstHeader(propertyName);
+
+            	EntityUtils.consumeQuietly(response.getEntity());
             	if(header != null){
             		return header.getValue();          		
             	}else{
@@ -941,7 +958,7 @@ public class AzureStorageMethod {
             StatusLine status;
             
             try {
-                response = client.execute(method);
+                response = execute(client, method, queries);
                 status = response.getStatusLine();
             }
             catch( IOException e ) {
@@ -971,7 +988,8 @@ public class AzureStorageMethod {
  
             if((status.getStatusCode() != HttpServletResponse.SC_CREATED
             		&& status.getStatusCode() != HttpServletResponse.SC_ACCEPTED 
-            		&& status.getStatusCode() != HttpServletResponse.SC_OK ) 
+            		&& status.getStatusCode() != HttpServletResponse.SC_OK
+            		&& status.getStatusCode() != HttpServletResponse.SC_NO_CONTENT ) 
             		&& status.getStatusCode() != HttpServletResponse.SC_NON_AUTHORITATIVE_INFORMATION ) {
                 logger.error(strMethod + "(): Expected OK for " + strMethod + "request, got " + status.getStatusCode());
                 
@@ -1001,6 +1019,7 @@ public class AzureStorageMethod {
                     throw new AzureException(CloudErrorType.GENERAL, status.getStatusCode(), "UnknownError", result);
                 }
             }
+            EntityUtils.consumeQuietly(response.getEntity());
         } catch (UnsupportedEncodingException e) {			
         	throw new CloudException(e);
 		}
@@ -1067,7 +1086,7 @@ public class AzureStorageMethod {
             StatusLine status;
             
             try {
-                response = client.execute(method);
+                response = execute(client, method, queries);
                 status = response.getStatusLine();
             }
             catch( IOException e ) {
@@ -1124,6 +1143,7 @@ public class AzureStorageMethod {
                 logger.error(strMethod + "(): [" + status.getStatusCode() + " : " + items.message + "] " + items.details);
                 throw new AzureException(items);
             }
+            EntityUtils.consumeQuietly(response.getEntity());
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -1138,6 +1158,13 @@ public class AzureStorageMethod {
     
   
     public void putWithBytes(@Nonnull String strMethod, @Nonnull String resource, Map<String, String> queries, byte[] body, Map<String, String> headerMap, boolean authorization) throws CloudException, InternalException {
+        putWithEntity(strMethod, resource, queries, (body == null ? null : new ByteArrayEntity(body)), headerMap, authorization);
+    }
+
+    /**
+     * Sends the specified entity as the request body. The entity must be repeatable if the request may be retried.
+     */
+    public void putWithEntity(@Nonnull String strMethod, @Nonnull String resource, Map<String, String> queries, @Nullable HttpEntity body, Map<String, String> headerMap, boolean authorization) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("enter - " + AzureStorageMethod.class.getName() + "." + strMethod + "(" + getStorageAccount() + "," + resource + ")");
         }
@@ -1151,13 +1178,6 @@ public class AzureStorageMethod {
 
             HttpClient client =  getClient();
             
-            String contentLength = null;
-            if(body != null){        	
-            	contentLength = String.valueOf(body.length);            	
-            }else{
-            	contentLength = "0";        	
-            }
-
             HttpRequestBase method = getMethod(strMethod, buildUrl(resource, queries), queries, headerMap, authorization );
      	
             if( wire.isDebugEnabled() ) {
@@ -1167,7 +1187,7 @@ public class AzureStorageMethod {
                 }
                 wire.debug("");
                 if( body != null ) {
-                    wire.debug(body);
+                    wire.debug("<<" + body.getContentLength() + " bytes>>");
                     wire.debug("");
                 }
             }
@@ -1178,7 +1198,7 @@ public class AzureStorageMethod {
             	HttpEntityEnclosingRequestBase entityEnclosingMethod = (HttpEntityEnclosingRequestBase) method;
             	
 	            if (body != null) {
-					entityEnclosingMethod.setEntity(new ByteArrayEntity(body));
+					entityEnclosingMethod.setEntity(body);
 	            }           	
             }           
           
@@ -1186,7 +1206,7 @@ public class AzureStorageMethod {
             StatusLine status;
             
             try {
-                response = client.execute(method);
+                response = execute(client, method, queries);
                 status = response.getStatusLine();
             }
             catch( IOException e ) {
@@ -1241,6 +1261,7 @@ public class AzureStorageMethod {
                 logger.error(strMethod + "(): [" + status.getStatusCode() + " : " + items.message + "] " + items.details);
                 throw new AzureException(items);
             }
+            EntityUtils.consumeQuietly(response.getEntity());
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -1257,6 +1278,9 @@ public class AzureStorageMethod {
     protected HttpRequestBase getMethod(@Nonnull String httpMethod, @Nonnull String endpoint, @Nonnull Map<String, String> queryParams, @Nullable Map<String, String> headers, boolean authorization) throws CloudException, InternalException {
     	HttpRequestBase method;
 
+        if( authorization && AUTH_SAS.equalsIgnoreCase(authScheme) ) {
+            endpoint = endpoint + (endpoint.indexOf('?') < 0 ? "?" : "&") + getSasToken();
+        }
         if( httpMethod.equals("GET") ) {
         	method = new HttpGet(endpoint);
         }
@@ -1288,12 +1312,10 @@ public class AzureStorageMethod {
             headers = new TreeMap<String, String>();
         }
 
-        String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
-		DateFormat rfc1123Format = new SimpleDateFormat(RFC1123_PATTERN);
-
-		rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
-        headers.put("Date", rfc1123Format.format(new Date()));
-        headers.put(Header_Prefix_MS + "version", VERSION);
+        headers.put("Date", formatDate(new Date()));
+        if( !headers.containsKey(Header_Prefix_MS + "version") ) {
+            headers.put(Header_Prefix_MS + "version", version);
+        }
         for(String key: headers.keySet() ){
             method.addHeader(key, headers .get(key));
 		}
@@ -1301,7 +1323,9 @@ public class AzureStorageMethod {
         if(method.getFirstHeader("content-type") == null && !httpMethod.equals("GET") ) {
         	method.addHeader("content-type", "application/xml;charset=utf-8");
         }
-        method.addHeader("Authorization", "SharedKeyLite " + getStorageAccount() + ":" + calculatedSharedKeyLiteSignature(method, queryParams));
+        if( !AUTH_SAS.equalsIgnoreCase(authScheme) && !AUTH_SHARED_KEY.equalsIgnoreCase(authScheme) ) {
+            method.addHeader("Authorization", getAuthorization(method, queryParams));
+        }
         return method;
     }
 
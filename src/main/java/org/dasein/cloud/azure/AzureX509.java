@@ -18,6 +18,7 @@
 
 package org.dasein.cloud.azure;
 
+import org.apache.commons.codec.binary.Hex;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.util.io.pem.PemObject;
 import org.bouncycastle.util.io.pem.PemReader;
@@ -25,6 +26,12 @@ import org.dasein.cloud.ContextRequirements;
 import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.StringReader;
@@ -36,7 +43,9 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * X509 certficate management for integration with Azure's outmoded form of authentication.
@@ -49,35 +58,141 @@ public class AzureX509 {
     static public final String ENTRY_ALIAS = "";
     static public final String PASSWORD    = "memory";
 
+    static private final int MAX_CACHED_CREDENTIALS = 64;
+    static private final int SSL_SESSION_CACHE_SIZE = 100;
+    static private final int SSL_SESSION_TIMEOUT    = 3600;
+
+    /**
+     * Key stores and SSL contexts keyed by keypair fingerprint. Parsing the PEM keypair and initializing
+     * the key managers is expensive, so it is done once per distinct set of credentials. A change of
+     * credentials changes the fingerprint and therefore naturally misses the cache; the least recently
+     * used entries are dropped once the cache is full.
+     */
+    static private final Map<String,AzureX509> credentials = new LinkedHashMap<String, AzureX509>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String,AzureX509> eldest) {
+            return size() > MAX_CACHED_CREDENTIALS;
+        }
+    };
+
     static {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    /**
+     * Provides the parsed credentials for the keypair configured in the provider context, loading them
+     * only if no provider with the same keypair has done so before.
+     * @param provider the provider whose context holds the credentials
+     * @return the cached key store and SSL context for the provider credentials
+     * @throws InternalException the keypair could not be parsed
+     */
+    static public @Nonnull AzureX509 getInstance(@Nonnull Azure provider) throws InternalException {
+        String fingerprint = getFingerprint(provider);
+        AzureX509 x509;
+
+        synchronized( credentials ) {
+            x509 = credentials.get(fingerprint);
+        }
+        if( x509 == null ) {
+            // parse outside of the lock; two racing threads at worst both parse the same keypair
+            x509 = new AzureX509(getKeypair(provider));
+            synchronized( credentials ) {
+                AzureX509 existing = credentials.get(fingerprint);
+
+                if( existing != null ) {
+                    x509 = existing;
+                }
+                else {
+                    credentials.put(fingerprint, x509);
+                }
+            }
+        }
+        return x509;
+    }
+
+    /**
+     * Drops all cached key stores and SSL contexts, forcing the credentials to be parsed again on next use.
+     */
+    static public void clearCache() {
+        synchronized( credentials ) {
+            credentials.clear();
+        }
+    }
+
+    /**
+     * Extracts the raw PEM certificate and key configured for the KEYPAIR field of the provider context.
+     * @param provider the provider whose context holds the credentials
+     * @return the certificate and private key (in that order), or <code>null</code> if no keypair was configured
+     */
+    static public @Nullable byte[][] getKeypair(@Nonnull Azure provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            return null;
+        }
+        List<ContextRequirements.Field> fields = provider.getContextRequirements().getConfigurableValues();
+
+        for( ContextRequirements.Field f : fields ) {
+            if( f.type.equals(ContextRequirements.FieldType.KEYPAIR) ) {
+                return (byte[][])ctx.getConfigurationValue(f);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Calculates a stable SHA-256 fingerprint of the configured keypair. Anything that may be shared between
+     * provider instances using the same credentials (connection pools, key stores) is keyed by this value.
+     * @param provider the provider whose context holds the credentials
+     * @return a hex encoded fingerprint of the keypair, or an empty string if no keypair was configured
+     * @throws InternalException the platform does not support SHA-256
+     */
+    static public @Nonnull String getFingerprint(@Nonnull Azure provider) throws InternalException {
+        byte[][] keyPair = getKeypair(provider);
+
+        if( keyPair == null ) {
+            return "";
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+            for( byte[] part : keyPair ) {
+                if( part != null ) {
+                    digest.update(part);
+                }
+                digest.update((byte)0);
+            }
+            return new String(Hex.encodeHex(digest.digest()));
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new InternalException(e);
+        }
+    }
+
     private KeyStore        keystore;
+    private SSLContext      sslContext;
 
     public AzureX509(Azure provider) throws InternalException {
-        ProviderContext ctx = provider.getContext();
+        this(getKeypair(provider));
+    }
+
+    private AzureX509(@Nullable byte[][] keyPair) throws InternalException {
         try {
             String apiShared = "";
             String apiSecret = "";
             try {
-                List<ContextRequirements.Field> fields = provider.getContextRequirements().getConfigurableValues();
-                for(ContextRequirements.Field f : fields ) {
-                    if(f.type.equals(ContextRequirements.FieldType.KEYPAIR)){
-                        byte[][] keyPair = (byte[][])ctx.getConfigurationValue(f);
-                        apiShared = new String(keyPair[0], "utf-8");
-                        apiSecret = new String(keyPair[1], "utf-8");
-                    }
+                if( keyPair != null ) {
+                    apiShared = new String(keyPair[0], "utf-8");
+                    apiSecret = new String(keyPair[1], "utf-8");
                 }
             }
             catch (UnsupportedEncodingException ignore) {}
-            //  System.out.println(apiShared);
-            //  System.out.println(apiSecret);
 
             X509Certificate certificate = certFromString(apiShared);
             PrivateKey privateKey = keyFromString(apiSecret);
 
             keystore = createJavaKeystore(certificate, privateKey);
+            sslContext = createSSLContext(keystore);
         }
         catch( Exception e ) {
             throw new InternalException(e);
@@ -103,10 +218,33 @@ public class AzureX509 {
         store.setKeyEntry(ENTRY_ALIAS, key, pw, new Certificate[] {cert});
         return store;
     }
+
+    private SSLContext createSSLContext(KeyStore store) throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, KeyManagementException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+
+        kmf.init(store, PASSWORD.toCharArray());
+
+        SSLContext context = SSLContext.getInstance("TLS");
+
+        context.init(kmf.getKeyManagers(), null, null);
+        // sessions are cached per context, so sharing the context lets reconnects resume the TLS session
+        SSLSessionContext sessions = context.getClientSessionContext();
+
+        if( sessions != null ) {
+            sessions.setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(SSL_SESSION_TIMEOUT);
+        }
+        return context;
+    }
+
     public KeyStore getKeystore() {
         return keystore;
     }
 
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
     private PrivateKey keyFromString(String pem) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
         PemObject pemObject = (PemObject) readPemObject(pem);
         PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(pemObject.getContent());
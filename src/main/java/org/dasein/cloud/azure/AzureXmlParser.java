@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.annotation.Nonnull;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Shared DOM parsing for Azure responses. Looking up and configuring a {@link DocumentBuilderFactory} is
+ * far more expensive than the parse of a typical response, so a single factory is configured once and
+ * each thread keeps its own {@link DocumentBuilder}, which is reset before every use.
+ * <p>
+ * The factory refuses DOCTYPE declarations and never resolves external entities or DTDs; Azure responses
+ * do not use them, and accepting them would expose callers to XXE attacks.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class AzureXmlParser {
+    static private final Logger logger = Azure.getLogger(AzureXmlParser.class);
+
+    static private final DocumentBuilderFactory factory = createFactory();
+
+    static private final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>();
+
+    static private @Nonnull DocumentBuilderFactory createFactory() {
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+
+        setFeature(dbf, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        setFeature(dbf, "http://apache.org/xml/features/disallow-doctype-decl", true);
+        setFeature(dbf, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(dbf, "http://xml.org/sax/features/external-parameter-entities", false);
+        setFeature(dbf, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        dbf.setXIncludeAware(false);
+        dbf.setExpandEntityReferences(false);
+        return dbf;
+    }
+
+    static private void setFeature(@Nonnull DocumentBuilderFactory dbf, @Nonnull String feature, boolean value) {
+        try {
+            dbf.setFeature(feature, value);
+        }
+        catch( ParserConfigurationException e ) {
+            logger.warn("XML parser does not support " + feature + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Provides the document builder owned by the calling thread, reset to its initial configuration.
+     * The builder must not be handed to other threads or used across nested parses.
+     * @return a ready to use document builder
+     * @throws ParserConfigurationException the shared factory could not create a builder
+     */
+    static public @Nonnull DocumentBuilder getDocumentBuilder() throws ParserConfigurationException {
+        DocumentBuilder builder = builders.get();
+
+        if( builder == null ) {
+            synchronized( factory ) {
+                // factories are not guaranteed to be thread safe
+                builder = factory.newDocumentBuilder();
+            }
+            builders.set(builder);
+        }
+        else {
+            builder.reset();
+        }
+        return builder;
+    }
+
+    static public @Nonnull Document parse(@Nonnull InputStream input) throws IOException, SAXException, ParserConfigurationException {
+        return getDocumentBuilder().parse(input);
+    }
+
+    static public @Nonnull Document newDocument() throws ParserConfigurationException {
+        return getDocumentBuilder().newDocument();
+    }
+}
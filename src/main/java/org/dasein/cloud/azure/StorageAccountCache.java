@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The storage service of one region of a subscription, with its blob endpoint and account key, shared by every
+ * provider instance using the same credentials. Providers are often created per request, so without sharing,
+ * the first storage request of each provider would first list the storage services of the subscription and then
+ * fetch the account key.
+ * <p>
+ * The service name and endpoint are resolved from a single listing and refreshed once they are older than
+ * {@link #TTL} seconds; the key is fetched on first use and kept for as long. Only one thread loads either at a
+ * time and concurrent callers wait for and share its result. The entry of a region is dropped when a storage
+ * service is created in it, and the key is dropped when storage refuses it.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class StorageAccountCache {
+    static private final Logger logger = Azure.getLogger(StorageAccountCache.class);
+
+    static public final String TTL = "azure.storage.accountCacheSeconds";
+
+    static private final long DEFAULT_TTL = 900L;
+
+    static private final ConcurrentHashMap<String,StorageAccountCache> accounts = new ConcurrentHashMap<String, StorageAccountCache>();
+
+    /**
+     * @param provider the provider whose credentials, subscription and region identify the storage service
+     * @return the cache entry for the storage service of the provider
+     * @throws CloudException the provider context is incomplete
+     * @throws InternalException the credentials of the provider could not be read
+     */
+    static public @Nonnull StorageAccountCache getInstance(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        // the credentials are part of the key so that a key fetched with one certificate is never handed out to another
+        String key = AzureX509.getFingerprint(provider) + "@" + ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId();
+        StorageAccountCache account = accounts.get(key);
+
+        if( account == null ) {
+            account = new StorageAccountCache();
+
+            StorageAccountCache existing = accounts.putIfAbsent(key, account);
+
+            if( existing != null ) {
+                account = existing;
+            }
+        }
+        return account;
+    }
+
+    static private class Service {
+        private final String name;
+        private final String endpoint;
+        private final long   loadedAt = System.currentTimeMillis();
+
+        private Service(@Nullable String name, @Nullable String endpoint) {
+            this.name = name;
+            this.endpoint = endpoint;
+        }
+    }
+
+    private final Object serviceLock = new Object();
+    private final Object keyLock     = new Object();
+
+    private volatile Service service     = null;
+    private volatile byte[]  storageKey  = null;
+    private volatile long    keyLoadedAt = 0L;
+
+    private StorageAccountCache() { }
+
+    /**
+     * @param provider the provider on whose behalf the services are listed
+     * @return the name of the storage service of the region, or <code>null</code> if the region has none
+     * @throws CloudException the storage services could not be listed
+     * @throws InternalException the storage services could not be listed due to a local error
+     */
+    public @Nullable String getServiceName(@Nonnull Azure provider) throws CloudException, InternalException {
+        return getService(provider).name;
+    }
+
+    /**
+     * @param provider the provider on whose behalf the services are listed
+     * @return the blob endpoint of the storage service of the region, or <code>null</code> if the region has none
+     * @throws CloudException the storage services could not be listed
+     * @throws InternalException the storage services could not be listed due to a local error
+     */
+    public @Nullable String getEndpoint(@Nonnull Azure provider) throws CloudException, InternalException {
+        return getService(provider).endpoint;
+    }
+
+    /**
+     * Drops the storage service of the region, for example because one has just been created.
+     */
+    public void invalidate() {
+        synchronized( serviceLock ) {
+            service = null;
+        }
+        synchronized( keyLock ) {
+            storageKey = null;
+        }
+    }
+
+    /**
+     * @param provider the provider on whose behalf the key is fetched
+     * @return the base64 encoded primary key of the storage service, or the secondary key if it has no primary
+     * @throws CloudException the region has no storage service or its keys could not be fetched
+     * @throws InternalException the keys could not be fetched due to a local error
+     */
+    public @Nonnull byte[] getKey(@Nonnull Azure provider) throws CloudException, InternalException {
+        byte[] current = storageKey;
+
+        if( current != null && !isExpired(provider, keyLoadedAt) ) {
+            return current;
+        }
+        synchronized( keyLock ) {
+            if( storageKey != null && storageKey != current ) {
+                // another thread loaded the key while we were waiting
+                return storageKey;
+            }
+            byte[] key = loadKey(provider);
+
+            storageKey = key;
+            keyLoadedAt = System.currentTimeMillis();
+            return key;
+        }
+    }
+
+    /**
+     * Drops the cached key if it is the specified one, so that the next request for the key fetches it again. A key
+     * that has already been replaced is left alone, so that many requests refused at once fetch the key only once.
+     * @param refused the key that storage refused
+     */
+    public void invalidateKey(@Nullable byte[] refused) {
+        synchronized( keyLock ) {
+            if( storageKey != null && (refused == null || Arrays.equals(storageKey, refused)) ) {
+                storageKey = null;
+            }
+        }
+    }
+
+    private boolean isExpired(@Nonnull Azure provider, long loadedAt) {
+        return (System.currentTimeMillis() - loadedAt) > provider.getSetting(TTL, DEFAULT_TTL) * 1000L;
+    }
+
+    private @Nonnull Service getService(@Nonnull Azure provider) throws CloudException, InternalException {
+        Service current = service;
+
+        if( current != null && !isExpired(provider, current.loadedAt) ) {
+            return current;
+        }
+        synchronized( serviceLock ) {
+            if( service != null && service != current ) {
+                return service;
+            }
+            current = loadService(provider);
+            service = current;
+            return current;
+        }
+    }
+
+    private @Nonnull Service loadService(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No configuration was set for this request");
+        }
+        AzureMethod method = new AzureMethod(provider);
+        Document xml = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices");
+
+        if( xml == null ) {
+            throw new CloudException("Unable to identify the storage service");
+        }
+        XPath xpath = XPathFactory.newInstance().newXPath();
+
+        try {
+            Node node = (Node)xpath.evaluate("(/StorageServices/StorageService[StorageServiceProperties/GeoPrimaryRegion='" + ctx.getRegionId() + "'])[1]", xml, XPathConstants.NODE);
+
+            if( node == null ) {
+                return new Service(null, null);
+            }
+            String name = xpath.evaluate("ServiceName", node).trim();
+            String endpoint = xpath.evaluate("(StorageServiceProperties/Endpoints/Endpoint[contains(.,'.blob.')])[1]", node).trim();
+
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Storage service of " + ctx.getAccountNumber() + " in " + ctx.getRegionId() + " is " + name + " at " + endpoint);
+            }
+            return new Service(name.isEmpty() ? null : name, endpoint.isEmpty() ? null : endpoint);
+        }
+        catch( XPathExpressionException e ) {
+            throw new CloudException("Failed to find storage service in the current region: " + ctx.getRegionId());
+        }
+    }
+
+    private @Nonnull byte[] loadKey(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was set for this request");
+        }
+        String storageService = getServiceName(provider);
+
+        if( storageService == null || storageService.isEmpty() ) {
+            throw new CloudException("Unable to find storage service in the current region: " + ctx.getRegionId());
+        }
+        AzureMethod method = new AzureMethod(provider);
+        Document doc = method.getAsXML(ctx.getAccountNumber(), "/services/storageservices/" + storageService + "/keys");
+
+        if( doc == null ) {
+            throw new CloudException("Unable to identify the storage keys for this account");
+        }
+        NodeList keys = doc.getElementsByTagName("StorageServiceKeys");
+
+        for( int i=0; i<keys.getLength(); i++ ) {
+            Node key = keys.item(i);
+
+            if( key.getNodeName().equalsIgnoreCase("StorageServiceKeys") && key.hasChildNodes() ) {
+                NodeList parts = key.getChildNodes();
+                String p = null, s = null;
+
+                for( int j=0; j<parts.getLength(); j++ ) {
+                    Node part = parts.item(j);
+
+                    if( part.getNodeName().equalsIgnoreCase("primary") && part.hasChildNodes() ) {
+                        p = part.getFirstChild().getNodeValue().trim();
+                    }
+                    else if( part.getNodeName().equalsIgnoreCase("secondary") && part.hasChildNodes() ) {
+                        s = part.getFirstChild().getNodeValue().trim();
+                    }
+                }
+                String value = (p != null ? p : s);
+
+                if( value != null ) {
+                    try {
+                        return value.getBytes("utf-8");
+                    }
+                    catch( UnsupportedEncodingException e ) {
+                        logger.error("UTF-8 not supported: " + e.getMessage());
+                        throw new InternalException(e);
+                    }
+                }
+            }
+        }
+        throw new CloudException("Unable to identify the storage keys for this account");
+    }
+}
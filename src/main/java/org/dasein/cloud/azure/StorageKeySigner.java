@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Signs storage requests and shared access signatures of one storage account with the account key. A signer keeps
+ * the decoded account key and one initialized {@link Mac} per thread, so signing costs one HMAC and no key setup.
+ * <p>
+ * Requests are signed with either the SharedKeyLite or the SharedKey scheme. SharedKey covers the standard
+ * headers and every query parameter of the request as well, and is the scheme later storage API versions expect.
+ * </p>
+ * <p>
+ * Signers are shared by every context of the same storage account. A signer is replaced when the key of the
+ * context it is requested for differs from the key it was created with, which is how a rotated key fetched
+ * again after an authentication failure takes effect.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class StorageKeySigner {
+    static private final Logger logger = Azure.getLogger(StorageKeySigner.class);
+
+    static private final String  ALGORITHM       = "HmacSHA256";
+    static private final String  HEADER_PREFIX   = "x-ms-";
+    static private final Charset UTF8            = Charset.forName("UTF-8");
+
+    // the least time between two key re-fetches of an account triggered by failed requests
+    static private final long KEY_REFRESH_INTERVAL = 60000L;
+
+    static private final ConcurrentHashMap<String,StorageKeySigner> signers = new ConcurrentHashMap<String, StorageKeySigner>();
+
+    /**
+     * Provides the signer for the specified storage account and key.
+     * @param account the name of the storage account
+     * @param encodedKey the base64 encoded account key, as held by the provider context
+     * @return a signer using the specified key
+     * @throws InternalException the key is not a valid HMAC key
+     */
+    static public @Nonnull StorageKeySigner getInstance(@Nonnull String account, @Nonnull byte[] encodedKey) throws InternalException {
+        StorageKeySigner signer = signers.get(account);
+
+        if( signer != null && signer.hasKey(encodedKey) ) {
+            return signer;
+        }
+        StorageKeySigner replacement = new StorageKeySigner(account, encodedKey, signer);
+
+        // the first mac doubles as a check of the key
+        replacement.getMac();
+        signers.put(account, replacement);
+        return replacement;
+    }
+
+    private final String          account;
+    private final byte[]          encodedKey;
+    private final SecretKeySpec   key;
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+
+    private volatile long lastKeyRefresh;
+
+    private StorageKeySigner(@Nonnull String account, @Nonnull byte[] encodedKey, @Nullable StorageKeySigner previous) {
+        this.account = account;
+        this.encodedKey = encodedKey.clone();
+        this.key = new SecretKeySpec(Base64.decodeBase64(encodedKey), ALGORITHM);
+        this.lastKeyRefresh = (previous == null ? 0L : previous.lastKeyRefresh);
+    }
+
+    private boolean hasKey(@Nonnull byte[] encodedKey) {
+        return (encodedKey == this.encodedKey || Arrays.equals(encodedKey, this.encodedKey));
+    }
+
+    /**
+     * Claims the right to re-fetch the key of this account after a request failed authentication. At most one
+     * caller a minute is granted it, so that requests failing for other reasons cannot turn into a key download
+     * each.
+     * @return true if the caller should re-fetch the key
+     */
+    public synchronized boolean claimKeyRefresh() {
+        long now = System.currentTimeMillis();
+
+        if( now - lastKeyRefresh < KEY_REFRESH_INTERVAL ) {
+            return false;
+        }
+        lastKeyRefresh = now;
+        return true;
+    }
+
+    /**
+     * @return the name of the storage account whose key this signer holds
+     */
+    public @Nonnull String getAccount() {
+        return account;
+    }
+
+    /**
+     * Signs the request with the SharedKeyLite scheme.
+     * @param request the request, with all its headers including <code>Date</code> already set
+     * @param queryParams the query parameters of the request
+     * @return the value of the <code>Authorization</code> header for the request
+     * @throws InternalException the signature could not be calculated
+     */
+    public @Nonnull String signSharedKeyLite(@Nonnull HttpRequest request, @Nonnull Map<String, String> queryParams) throws InternalException {
+        return "SharedKeyLite " + account + ":" + sign(getSharedKeyLiteStringToSign(request, queryParams));
+    }
+
+    /**
+     * Signs the request with the SharedKey scheme.
+     * @param request the request, with all its headers including <code>Date</code> already set
+     * @param queryParams the query parameters of the request
+     * @param version the storage API version the request is sent with
+     * @return the value of the <code>Authorization</code> header for the request
+     * @throws InternalException the signature could not be calculated
+     */
+    public @Nonnull String signSharedKey(@Nonnull HttpRequest request, @Nonnull Map<String, String> queryParams, @Nonnull String version) throws InternalException {
+        return "SharedKey " + account + ":" + sign(getSharedKeyStringToSign(request, queryParams, version));
+    }
+
+    /**
+     * Calculates the base64 encoded HMAC-SHA256 of a string with the account key, as used by every signature of
+     * the storage services.
+     * @param stringToSign the string to sign
+     * @return the signature
+     * @throws InternalException the signature could not be calculated
+     */
+    public @Nonnull String sign(@Nonnull String stringToSign) throws InternalException {
+        if( logger.isDebugEnabled() ) {
+            logger.debug("BEGIN STRING TO SIGN");
+            logger.debug(stringToSign);
+            logger.debug("END STRING TO SIGN");
+        }
+        String signature = new String(Base64.encodeBase64(getMac().doFinal(stringToSign.getBytes(UTF8))), UTF8);
+
+        if( logger.isDebugEnabled() ) {
+            logger.debug("signature=" + signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Builds the canonical form of the request that is signed with the SharedKeyLite scheme.
+     * @param request the request, with all its headers including <code>Date</code> already set
+     * @param queryParams the query parameters of the request
+     * @return the string to sign
+     */
+    public @Nonnull String getSharedKeyLiteStringToSign(@Nonnull HttpRequest request, @Nonnull Map<String, String> queryParams) {
+        StringBuilder stringToSign = new StringBuilder(256);
+
+        stringToSign.append(request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH)).append('\n');
+        stringToSign.append('\n'); // content-md5
+        stringToSign.append(getHeader(request, "content-type")).append('\n');
+        stringToSign.append(getHeader(request, "date")).append('\n');
+        appendCanonicalHeaders(stringToSign, request.getAllHeaders());
+
+        stringToSign.append('/').append(account).append(getPath(request));
+
+        String comp = null;
+
+        for( Map.Entry<String, String> entry : queryParams.entrySet() ) {
+            if( entry.getKey().equalsIgnoreCase("comp") ) {
+                comp = (entry.getValue() == null ? "" : entry.getValue());
+                break;
+            }
+        }
+        if( comp != null ) {
+            stringToSign.append("?comp=").append(comp);
+        }
+        return stringToSign.toString();
+    }
+
+    /**
+     * Builds the canonical form of the request that is signed with the SharedKey scheme, in the format used since
+     * version 2009-09-19 of the storage API.
+     * @param request the request, with all its headers including <code>Date</code> already set
+     * @param queryParams the query parameters of the request
+     * @param version the storage API version the request is sent with
+     * @return the string to sign
+     */
+    public @Nonnull String getSharedKeyStringToSign(@Nonnull HttpRequest request, @Nonnull Map<String, String> queryParams, @Nonnull String version) {
+        StringBuilder stringToSign = new StringBuilder(256);
+
+        stringToSign.append(request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH)).append('\n');
+        stringToSign.append(getHeader(request, "content-encoding")).append('\n');
+        stringToSign.append(getHeader(request, "content-language")).append('\n');
+        stringToSign.append(getContentLength(request, version)).append('\n');
+        stringToSign.append(getHeader(request, "content-md5")).append('\n');
+        stringToSign.append(getHeader(request, "content-type")).append('\n');
+        // x-ms-date, when present, takes the place of the Date header
+        stringToSign.append(request.containsHeader("x-ms-date") ? "" : getHeader(request, "date")).append('\n');
+        stringToSign.append(getHeader(request, "if-modified-since")).append('\n');
+        stringToSign.append(getHeader(request, "if-match")).append('\n');
+        stringToSign.append(getHeader(request, "if-none-match")).append('\n');
+        stringToSign.append(getHeader(request, "if-unmodified-since")).append('\n');
+        stringToSign.append(getHeader(request, "range")).append('\n');
+        appendCanonicalHeaders(stringToSign, request.getAllHeaders());
+
+        stringToSign.append('/').append(account).append(getPath(request));
+
+        String[] names = new String[queryParams.size()];
+        int count = 0;
+
+        for( String name : queryParams.keySet() ) {
+            names[count++] = name;
+        }
+        Arrays.sort(names, String.CASE_INSENSITIVE_ORDER);
+        for( String name : names ) {
+            String value = queryParams.get(name);
+
+            stringToSign.append('\n').append(name.toLowerCase(Locale.ENGLISH)).append(':').append(value == null ? "" : value);
+        }
+        return stringToSign.toString();
+    }
+
+    static private @Nonnull String getHeader(@Nonnull HttpRequest request, @Nonnull String name) {
+        Header header = request.getFirstHeader(name);
+        String value = (header == null ? null : header.getValue());
+
+        return (value == null ? "" : value);
+    }
+
+    static private @Nonnull String getPath(@Nonnull HttpRequest request) {
+        return URI.create(request.getRequestLine().getUri()).getPath();
+    }
+
+    /**
+     * The length of the body as HttpClient will send it. A request that may carry a body always sends a length,
+     * if only 0; version 2015-02-21 and later sign an empty length instead of 0.
+     */
+    static private @Nonnull String getContentLength(@Nonnull HttpRequest request, @Nonnull String version) {
+        if( !(request instanceof HttpEntityEnclosingRequest) ) {
+            return "";
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest)request).getEntity();
+        long length = (entity == null ? 0L : entity.getContentLength());
+
+        if( length < 0L || (length == 0L && version.compareTo("2015-02-21") >= 0) ) {
+            return "";
+        }
+        return String.valueOf(length);
+    }
+
+    /**
+     * Appends the x-ms- headers by lower case name in alphabetical order, each on its own line, with the values
+     * of repeated headers joined by commas.
+     */
+    static private void appendCanonicalHeaders(@Nonnull StringBuilder target, @Nonnull Header[] headers) {
+        String[] names = new String[headers.length];
+        int count = 0;
+
+        for( Header header : headers ) {
+            String name = header.getName();
+
+            if( name.regionMatches(true, 0, HEADER_PREFIX, 0, HEADER_PREFIX.length()) ) {
+                names[count++] = name.trim().toLowerCase(Locale.ENGLISH);
+            }
+        }
+        Arrays.sort(names, 0, count);
+        for( int i=0; i<count; i++ ) {
+            if( i > 0 && names[i].equals(names[i-1]) ) {
+                continue;
+            }
+            boolean first = true;
+
+            target.append(names[i]).append(':');
+            for( Header header : headers ) {
+                if( header.getName().trim().equalsIgnoreCase(names[i]) ) {
+                    if( !first ) {
+                        target.append(',');
+                    }
+                    appendValue(target, header.getValue());
+                    first = false;
+                }
+            }
+            target.append('\n');
+        }
+    }
+
+    /**
+     * Appends the trimmed value with any line breaks within it folded into spaces.
+     */
+    static private void appendValue(@Nonnull StringBuilder target, @Nullable String value) {
+        if( value == null ) {
+            return;
+        }
+        int start = 0, end = value.length();
+
+        while( start < end && value.charAt(start) <= ' ' ) {
+            start++;
+        }
+        while( end > start && value.charAt(end - 1) <= ' ' ) {
+            end--;
+        }
+        for( int i=start; i<end; i++ ) {
+            char c = value.charAt(i);
+
+            target.append(c == '\n' ? ' ' : c);
+        }
+    }
+
+    private @Nonnull Mac getMac() throws InternalException {
+        Mac mac = macs.get();
+
+        if( mac == null ) {
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            }
+            catch( NoSuchAlgorithmException e ) {
+                logger.error("No such algorithm: " + e.getMessage());
+                throw new InternalException(e);
+            }
+            catch( InvalidKeyException e ) {
+                logger.error("Invalid key: " + e.getMessage());
+                throw new InternalException(e);
+            }
+            macs.set(mac);
+        }
+        return mac;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Builds shared access signatures (SAS) for the storage services. A SAS is a query string that grants its holder
+ * the listed permissions until it expires, without the account key. A service SAS grants access to a single blob
+ * or container, and an account SAS to whole services of the account.
+ * <p>
+ * Signatures are built in the format of version {@link #VERSION} of the storage API. This version is independent
+ * from the version the signing client sends its own requests with.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class StorageSas {
+    static public final String VERSION = "2015-04-05";
+
+    static public final String PROTOCOL_HTTPS      = "https";
+    static public final String PROTOCOL_HTTPS_HTTP = "https,http";
+
+    /**
+     * Builds a service SAS for a blob or, without a blob name, for a container.
+     * @param signer the signer holding the key of the storage account
+     * @param container the container
+     * @param blob the blob within the container, or <code>null</code> for the container itself
+     * @param permissions the granted permissions, such as <code>r</code> to read or <code>rw</code> to read and write
+     * @param start the time from which the signature is valid, or <code>null</code> to make it valid at once
+     * @param expiry the time at which the signature expires
+     * @param protocol {@link #PROTOCOL_HTTPS} or {@link #PROTOCOL_HTTPS_HTTP}
+     * @return the SAS query string, without a leading <code>?</code>
+     * @throws InternalException the signature could not be calculated
+     */
+    static public @Nonnull String getServiceSas(@Nonnull StorageKeySigner signer, @Nonnull String container, @Nullable String blob, @Nonnull String permissions, @Nullable Date start, @Nonnull Date expiry, @Nonnull String protocol) throws InternalException {
+        String st = (start == null ? "" : formatTime(start));
+        String se = formatTime(expiry);
+        String resource = "/blob/" + signer.getAccount() + "/" + container + (blob == null ? "" : "/" + blob);
+        StringBuilder stringToSign = new StringBuilder();
+
+        stringToSign.append(permissions).append('\n');
+        stringToSign.append(st).append('\n');
+        stringToSign.append(se).append('\n');
+        stringToSign.append(resource).append('\n');
+        stringToSign.append('\n'); // signed identifier
+        stringToSign.append('\n'); // signed IP
+        stringToSign.append(protocol).append('\n');
+        stringToSign.append(VERSION).append('\n');
+        stringToSign.append("\n\n\n\n"); // response header overrides
+
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+
+        params.put("sv", VERSION);
+        params.put("sr", (blob == null ? "c" : "b"));
+        if( start != null ) {
+            params.put("st", st);
+        }
+        params.put("se", se);
+        params.put("sp", permissions);
+        params.put("spr", protocol);
+        params.put("sig", signer.sign(stringToSign.toString()));
+        return toQuery(params);
+    }
+
+    /**
+     * Builds an account SAS.
+     * @param signer the signer holding the key of the storage account
+     * @param services the granted services: any of <code>b</code> (blob), <code>q</code> (queue), <code>t</code> (table) and <code>f</code> (file)
+     * @param resourceTypes the granted resource types: any of <code>s</code> (service), <code>c</code> (container) and <code>o</code> (object)
+     * @param permissions the granted permissions, such as <code>rl</code> to read and list
+     * @param start the time from which the signature is valid, or <code>null</code> to make it valid at once
+     * @param expiry the time at which the signature expires
+     * @param protocol {@link #PROTOCOL_HTTPS} or {@link #PROTOCOL_HTTPS_HTTP}
+     * @return the SAS query string, without a leading <code>?</code>
+     * @throws InternalException the signature could not be calculated
+     */
+    static public @Nonnull String getAccountSas(@Nonnull StorageKeySigner signer, @Nonnull String services, @Nonnull String resourceTypes, @Nonnull String permissions, @Nullable Date start, @Nonnull Date expiry, @Nonnull String protocol) throws InternalException {
+        String st = (start == null ? "" : formatTime(start));
+        String se = formatTime(expiry);
+        StringBuilder stringToSign = new StringBuilder();
+
+        stringToSign.append(signer.getAccount()).append('\n');
+        stringToSign.append(permissions).append('\n');
+        stringToSign.append(services).append('\n');
+        stringToSign.append(resourceTypes).append('\n');
+        stringToSign.append(st).append('\n');
+        stringToSign.append(se).append('\n');
+        stringToSign.append('\n'); // signed IP
+        stringToSign.append(protocol).append('\n');
+        stringToSign.append(VERSION).append('\n');
+
+        LinkedHashMap<String, String> params = new LinkedHashMap<String, String>();
+
+        params.put("sv", VERSION);
+        params.put("ss", services);
+        params.put("srt", resourceTypes);
+        params.put("sp", permissions);
+        if( start != null ) {
+            params.put("st", st);
+        }
+        params.put("se", se);
+        params.put("spr", protocol);
+        params.put("sig", signer.sign(stringToSign.toString()));
+        return toQuery(params);
+    }
+
+    static private @Nonnull String formatTime(@Nonnull Date date) {
+        SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return fmt.format(date);
+    }
+
+    static private @Nonnull String toQuery(@Nonnull Map<String, String> params) throws InternalException {
+        StringBuilder query = new StringBuilder();
+
+        try {
+            for( Map.Entry<String, String> param : params.entrySet() ) {
+                if( query.length() > 0 ) {
+                    query.append('&');
+                }
+                query.append(param.getKey()).append('=').append(URLEncoder.encode(param.getValue(), "utf-8").replace("+", "%20"));
+            }
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+        return query.toString();
+    }
+}
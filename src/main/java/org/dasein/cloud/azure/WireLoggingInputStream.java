@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure;
+
+import org.apache.log4j.Logger;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Copies the bytes of a response body to the wire log, line by line, as they are consumed by a parser.
+ * This lets responses be parsed straight from the connection without first buffering them as a string
+ * just so they can be logged.
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class WireLoggingInputStream extends FilterInputStream {
+    /**
+     * Wraps the specified stream so that its content is logged to the wire log. If wire logging is not
+     * enabled, the stream is returned as is.
+     * @param input the response body
+     * @param wire the wire logger of the calling class
+     * @return a stream delivering the same content as the input stream
+     */
+    static public @Nonnull InputStream wrap(@Nonnull InputStream input, @Nonnull Logger wire) {
+        if( !wire.isDebugEnabled() ) {
+            return input;
+        }
+        return new WireLoggingInputStream(input, wire);
+    }
+
+    private Logger                wire;
+    private ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+    private boolean               flushed = false;
+
+    private WireLoggingInputStream(@Nonnull InputStream input, @Nonnull Logger wire) {
+        super(input);
+        this.wire = wire;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+
+        if( b == -1 ) {
+            flush();
+        }
+        else {
+            log(b);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+
+        if( count == -1 ) {
+            flush();
+        }
+        else {
+            for( int i=0; i<count; i++ ) {
+                log(buffer[offset + i]);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // skipped bytes must still show up in the log
+        byte[] buffer = new byte[(int)Math.min(n, 8192L)];
+        int count = read(buffer, 0, buffer.length);
+
+        return (count < 0 ? 0 : count);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            super.close();
+        }
+    }
+
+    private void log(int b) {
+        if( b == '\n' ) {
+            writeLine();
+        }
+        else {
+            line.write(b);
+        }
+    }
+
+    private void flush() {
+        if( flushed ) {
+            return;
+        }
+        flushed = true;
+        if( line.size() > 0 ) {
+            writeLine();
+        }
+        wire.debug("");
+    }
+
+    private void writeLine() {
+        try {
+            wire.debug(line.toString("UTF-8"));
+        }
+        catch( UnsupportedEncodingException e ) {
+            wire.debug(line.toString());
+        }
+        line.reset();
+    }
+}
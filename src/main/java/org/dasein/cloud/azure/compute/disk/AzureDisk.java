@@ -29,6 +29,7 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
 import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.azure.AzureOperationTracker;
 import org.dasein.cloud.azure.compute.disk.model.DataVirtualHardDiskModel;
 import org.dasein.cloud.azure.compute.vm.AzureRoleDetails;
 import org.dasein.cloud.azure.compute.vm.model.DeploymentModel;
@@ -46,6 +47,8 @@ import org.w3c.dom.NodeList;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.xml.bind.JAXBException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -181,15 +184,7 @@ public class AzureDisk implements VolumeSupport {
         if(requestId == null)
             return;
 
-        AzureMethod method = new AzureMethod(provider);
-        int httpCode = method.getOperationStatus(requestId);
-        while (httpCode == -1) {
-            try {
-                Thread.sleep(15000L);
-            }
-            catch (InterruptedException ignored){}
-            httpCode = method.getOperationStatus(requestId);
-        }
+        AzureOperationTracker.waitFor(provider, requestId);
     }
 
     private String getDataDiskName(VirtualMachine virtualMachine, String lun) throws CloudException, InternalException {
@@ -360,17 +355,33 @@ public class AzureDisk implements VolumeSupport {
 
     @Override
     public @Nullable Volume getVolume(@Nonnull String volumeId) throws InternalException, CloudException {
-        //To change body of implemented methods use File | Settings | File Templates.
-    	
-    	ArrayList<Volume> list = (ArrayList<Volume>) listVolumes();
-    	if(list == null)
-    		return null;
-    	for(Volume disk : list){
-    		if(disk.getProviderVolumeId().equals(volumeId)){
-    			return disk;
-    		}    		
-    	}
-  		return null;
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        AzureMethod method = new AzureMethod(provider);
+
+        String diskName;
+
+        try {
+            diskName = URLEncoder.encode(volumeId, "utf-8").replace("+", "%20");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+        // fetch just the one disk rather than listing every disk in the subscription
+        Document doc = method.getAsXML(ctx.getAccountNumber(), DISK_SERVICES + "/" + diskName);
+
+        if( doc == null ) {
+            return null;
+        }
+        NodeList entries = doc.getElementsByTagName("Disk");
+
+        if( entries.getLength() < 1 ) {
+            return null;
+        }
+        return toVolume(ctx, entries.item(0));
     }
 
     @Nonnull
@@ -20,6 +20,8 @@ package org.dasein.cloud.azure.compute.image;
 
 import org.dasein.cloud.compute.MachineImage;
 
+import java.util.HashMap;
+
 /**
  * Created by IntelliJ IDEA.
  * User: greese
@@ -48,4 +50,29 @@ public class AzureMachineImage extends MachineImage {
     public void setAzureImageType(String azureImageType) {
         this.azureImageType = azureImageType;
     }
+
+    /**
+     * Creates an independent copy of this image, so that an image shared through a cache can be handed to callers
+     * that may modify it. Copies every attribute that {@link AzureOSImage} sets.
+     * @return a copy of this image
+     */
+    public AzureMachineImage copy() {
+        AzureMachineImage copy = new AzureMachineImage();
+
+        copy.setProviderOwnerId(getProviderOwnerId());
+        copy.setProviderRegionId(getProviderRegionId());
+        copy.setProviderMachineImageId(getProviderMachineImageId());
+        copy.setName(getName());
+        copy.setDescription(getDescription());
+        copy.setArchitecture(getArchitecture());
+        copy.setPlatform(getPlatform());
+        copy.setCurrentState(getCurrentState());
+        copy.setImageClass(getImageClass());
+        copy.setType(getType());
+        copy.setSoftware(getSoftware());
+        copy.setTags(getTags() == null ? new HashMap<String, String>() : new HashMap<String, String>(getTags()));
+        copy.setMediaLink(mediaLink);
+        copy.setAzureImageType(azureImageType);
+        return copy;
+    }
 }
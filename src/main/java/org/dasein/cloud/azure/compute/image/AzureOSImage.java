@@ -31,6 +31,7 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
 import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.azure.AzureOperationTracker;
 import org.dasein.cloud.azure.AzureService;
 import org.dasein.cloud.azure.compute.image.model.OSImageModel;
 import org.dasein.cloud.azure.compute.image.model.OSImagesModel;
@@ -66,6 +67,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.bind.JAXBException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Implements support for Azure OS images through the Dasein Cloud machine image API.
@@ -81,6 +83,18 @@ public class AzureOSImage extends AbstractImageSupport<Azure> {
     static private final String RESOURCE_VMIMAGES = "/services/vmimages?location=%s&category=%s";
     static private final String MICROSOFT = "--microsoft--";
 
+    /**
+     * Seconds the indexed image catalog used by {@link #getImage(String)} is reused before it is downloaded again.
+     */
+    static public final String IMAGE_CACHE_TTL      = "azure.images.cacheTtlSeconds";
+    /**
+     * Minimum age in seconds of the image catalog before a lookup of an unknown image downloads it again.
+     */
+    static public final String IMAGE_MISS_INTERVAL  = "azure.images.missRefreshSeconds";
+
+    static private final long DEFAULT_IMAGE_CACHE_TTL     = 600L;
+    static private final long DEFAULT_IMAGE_MISS_INTERVAL = 30L;
+
     private Azure provider;
 
     public AzureOSImage(Azure provider) {
@@ -155,8 +169,11 @@ public class AzureOSImage extends AbstractImageSupport<Azure> {
                 String operationUrl = String.format(AzureVM.OPERATIONS_RESOURCES, vm.getTag("serviceName").toString(),
                         vm.getTag("deploymentName").toString(), vm.getTag("roleName").toString());
                 AzureMethod method = new AzureMethod(provider);
+                String requestId;
+
                 try {
-                    method.post(operationUrl, captureVMImageOperation);
+                    requestId = method.post(operationUrl, captureVMImageOperation);
+                    getCatalog().invalidate();
                 }
                 catch (JAXBException e)
                 {
@@ -164,6 +181,11 @@ public class AzureOSImage extends AbstractImageSupport<Azure> {
                     throw new InternalException(e);
                 }
 
+                if( requestId != null ) {
+                    // the image is registered when the capture operation completes
+                    AzureOperationTracker.waitFor(provider, requestId);
+                    getCatalog().invalidate();
+                }
                 MachineImage img = null;
                 try {
                     long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 10L);
@@ -196,11 +218,19 @@ public class AzureOSImage extends AbstractImageSupport<Azure> {
                     logger.trace("EXIT: " + AzureOSImage.class.getName() + ".launch()");
                 }
             }
-        };
-
-        t.setName("Image " + options.getVirtualMachineId());
-        t.setDaemon(true);
-        t.start();
+        }
+        catch( CloudException e ) {
+            if( task != null ) {
+                task.complete(e);
+            }
+            throw e;
+        }
+        catch( InternalException e ) {
+            if( task != null ) {
+                task.complete(e);
+            }
+            throw e;
+        }
     }
 
     @Override
@@ -208,15 +238,32 @@ public class AzureOSImage extends AbstractImageSupport<Azure> {
         if(machineImageId == null)
             throw new InternalException("The parameter machineImageId cannot be null");
 
-        final Iterable<MachineImage> allImages = getAllImages(false, true, true);
-        for( MachineImage img : allImages ) {
-            if( machineImageId.equals(img.getProviderMachineImageId()) ) {
-                logger.debug("Found image i'm looking for "+machineImageId);
-                img.setImageClass(ImageClass.MACHINE);
-                return img;
+        long ttl = provider.getSetting(IMAGE_CACHE_TTL, DEFAULT_IMAGE_CACHE_TTL) * 1000L;
+        long missInterval = provider.getSetting(IMAGE_MISS_INTERVAL, DEFAULT_IMAGE_MISS_INTERVAL) * 1000L;
+        MachineImage img = getCatalog().getImage(machineImageId, ttl, missInterval, new Callable<Iterable<MachineImage>>() {
+            public Iterable<MachineImage> call() throws Exception {
+                return getAllImages(false, true, true);
             }
+        });
+
+        if( img != null ) {
+            logger.debug("Found image i'm looking for "+machineImageId);
+            // the catalog is shared by every caller, so each gets its own copy to modify; catalog images are
+            // built with their image class already set
+            if( img instanceof AzureMachineImage ) {
+                img = ((AzureMachineImage)img).copy();
+            }
+        }
+        return img;
+    }
+
+    private @Nonnull ImageCatalog getCatalog() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
         }
-        return null;
+        return ImageCatalog.getInstance(ctx.getEndpoint() + "|" + ctx.getAccountNumber() + "|" + ctx.getRegionId());
     }
 
     @Override
@@ -456,6 +503,7 @@ public class AzureOSImage extends AbstractImageSupport<Azure> {
 
             AzureMethod method = new AzureMethod(provider);
             method.invoke("DELETE", ctx.getAccountNumber(), url + "/" + machineImageId + "?comp=media", null);
+            getCatalog().invalidate();
         }
         finally {
             if( logger.isTraceEnabled() ) {
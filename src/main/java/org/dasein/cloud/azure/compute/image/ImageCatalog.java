@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.compute.image;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.MachineImage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Indexed snapshot of the image catalog (OS images and VM images) of one region and account. The catalogs
+ * hold thousands of entries, so looking up a single image must not mean downloading both of them each time.
+ * <p>
+ * A snapshot is refreshed once it is older than its time to live. Only one thread downloads a refresh at a time
+ * and concurrent callers wait for and share its result. A lookup for an unknown image triggers a refresh only if
+ * the snapshot is older than the miss interval, so repeated lookups of images that do not exist (or do not exist
+ * yet) cannot turn into a download per call.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class ImageCatalog {
+    static private final ConcurrentHashMap<String,ImageCatalog> catalogs = new ConcurrentHashMap<String, ImageCatalog>();
+
+    static @Nonnull ImageCatalog getInstance(@Nonnull String key) {
+        ImageCatalog catalog = catalogs.get(key);
+
+        if( catalog == null ) {
+            catalog = new ImageCatalog();
+
+            ImageCatalog existing = catalogs.putIfAbsent(key, catalog);
+
+            if( existing != null ) {
+                catalog = existing;
+            }
+        }
+        return catalog;
+    }
+
+    private final Object loadLock = new Object();
+
+    private volatile Map<String,MachineImage> index    = null;
+    private volatile long                     loadedAt = 0L;
+
+    private ImageCatalog() { }
+
+    /**
+     * Looks up an image by its provider machine image ID.
+     * @param machineImageId the image to look up
+     * @param timeToLive the maximum age of the snapshot in milliseconds
+     * @param missInterval the minimum age of the snapshot in milliseconds before a miss triggers a refresh
+     * @param loader downloads the complete catalog
+     * @return the matching image, or <code>null</code> if the catalog does not contain it
+     * @throws CloudException the catalog could not be downloaded
+     * @throws InternalException the catalog could not be downloaded due to a local error
+     */
+    @Nullable MachineImage getImage(@Nonnull String machineImageId, long timeToLive, long missInterval, @Nonnull Callable<Iterable<MachineImage>> loader) throws CloudException, InternalException {
+        Map<String,MachineImage> current = index;
+        long loaded = loadedAt;
+
+        if( current == null || (System.currentTimeMillis() - loaded) > timeToLive ) {
+            current = refresh(loaded, loader);
+            loaded = loadedAt;
+        }
+        MachineImage img = current.get(machineImageId);
+
+        if( img == null && (System.currentTimeMillis() - loaded) >= missInterval ) {
+            img = refresh(loaded, loader).get(machineImageId);
+        }
+        return img;
+    }
+
+    /**
+     * Drops the current snapshot so that the next lookup downloads the catalog again.
+     */
+    void invalidate() {
+        synchronized( loadLock ) {
+            index = null;
+            loadedAt = 0L;
+        }
+    }
+
+    private @Nonnull Map<String,MachineImage> refresh(long expectedLoadedAt, @Nonnull Callable<Iterable<MachineImage>> loader) throws CloudException, InternalException {
+        synchronized( loadLock ) {
+            Map<String,MachineImage> current = index;
+
+            if( current != null && loadedAt != expectedLoadedAt ) {
+                // another thread refreshed the snapshot while we were waiting
+                return current;
+            }
+            Iterable<MachineImage> images;
+
+            try {
+                images = loader.call();
+            }
+            catch( CloudException e ) {
+                throw e;
+            }
+            catch( InternalException e ) {
+                throw e;
+            }
+            catch( Exception e ) {
+                throw new InternalException(e);
+            }
+            HashMap<String,MachineImage> map = new HashMap<String, MachineImage>();
+
+            for( MachineImage img : images ) {
+                String id = img.getProviderMachineImageId();
+
+                // keep the first match, as the linear scan this replaces did
+                if( id != null && !map.containsKey(id) ) {
+                    map.put(id, img);
+                }
+            }
+            current = Collections.unmodifiableMap(map);
+            index = current;
+            loadedAt = System.currentTimeMillis();
+            return current;
+        }
+    }
+}
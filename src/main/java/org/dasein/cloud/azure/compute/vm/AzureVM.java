@@ -29,6 +29,8 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
 import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.azure.AzureOperationTracker;
+import org.dasein.cloud.azure.AzureParallelRequests;
 import org.dasein.cloud.azure.AzureService;
 import org.dasein.cloud.azure.compute.image.AzureMachineImage;
 import org.dasein.cloud.azure.compute.vm.model.ConfigurationSetModel;
@@ -78,6 +80,10 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * Implements virtual machine support for Microsoft Azure.
@@ -96,6 +102,18 @@ public class AzureVM extends AbstractVMSupport<Azure> {
     static public final String DEPLOYMENT_RESOURCE = "/services/hostedservices/%s/deployments/%s";
     static public final String OPERATIONS_RESOURCES = "/services/hostedservices/%s/deployments/%s/roleInstances/%s/Operations";
 
+    /**
+     * Maximum number of hosted service detail requests a VM listing runs at the same time.
+     */
+    static public final String LIST_PARALLELISM = "azure.vm.listParallelism";
+    /**
+     * Seconds a VM listing waits for all hosted service detail requests before giving up on the stragglers.
+     */
+    static public final String LIST_TIMEOUT     = "azure.vm.listTimeoutSeconds";
+
+    static private final long DEFAULT_LIST_PARALLELISM = 8L;
+    static private final long DEFAULT_LIST_TIMEOUT     = 300L;
+
     public AzureVM(Azure provider) {
         super(provider);
     }
@@ -216,25 +234,8 @@ public class AzureVM extends AbstractVMSupport<Azure> {
             else {
                 requestId="noChange";
             }
-
-                resourceDir = HOSTED_SERVICES + "/" + serviceName + "/deployments/" +  deploymentName + "/roles/" + roleName;
-                requestId = method.invoke("PUT", ctx.getAccountNumber(), resourceDir, xml.toString());
-            }
-            else {
-                requestId="noChange";
-            }
-            if (requestId != null) {
-                int httpCode = -1;
-                if (!requestId.equals("noChange")) {
-                    httpCode = method.getOperationStatus(requestId);
-                    while (httpCode == -1) {
-                        try {
-                            Thread.sleep(15000L);
-                        }
-                        catch (InterruptedException ignored){}
-                        httpCode = method.getOperationStatus(requestId);
-                    }
-                }
+            if (requestId != null && !requestId.equals("noChange")) {
+                AzureOperationTracker.waitFor(getProvider(), requestId);
             }
 
             return getVirtualMachine(virtualMachineId);
@@ -407,7 +408,7 @@ public class AzureVM extends AbstractVMSupport<Azure> {
                         if ( mynode.getNodeName().equalsIgnoreCase("name") && mynode.hasChildNodes() ) {
                             depName = mynode.getFirstChild().getNodeValue().trim();
                             if (depName.equals(deploymentName)) {
-                                parseDeployment(ctx, ctx.getRegionId(), sName + ":" + deploymentName, deployment, list);
+                                parseDeployment(ctx, new ListingContext(), ctx.getRegionId(), sName + ":" + deploymentName, deployment, list);
                                 if (list != null && list.size() > 0) {
                                     for(VirtualMachine vm : list) {
                                         if (vm.getTag("roleName").toString().equalsIgnoreCase(roleName)) {
@@ -530,14 +531,8 @@ public class AzureVM extends AbstractVMSupport<Azure> {
             VirtualMachine vm = null ;
 
             if (requestId != null) {
-                int httpCode = method.getOperationStatus(requestId);
-                while (httpCode == -1) {
-                    try {
-                        Thread.sleep(15000L);
-                    }
-                    catch (InterruptedException ignored){}
-                    httpCode = method.getOperationStatus(requestId);
-                }
+                int httpCode = AzureOperationTracker.waitFor(getProvider(), requestId);
+
                 if (httpCode == HttpServletResponse.SC_OK) {
                     try { vm = getVirtualMachine(hostName + ":" + hostName+":"+hostName); }
                     catch( Throwable ignore ) { }
@@ -864,6 +859,11 @@ public class AzureVM extends AbstractVMSupport<Azure> {
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
+        final String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new AzureConfigException("No region ID was specified for this request");
+        }
         AzureMethod method = new AzureMethod(getProvider());
 
         Document doc = method.getAsXML(ctx.getAccountNumber(), HOSTED_SERVICES);
@@ -871,11 +871,20 @@ public class AzureVM extends AbstractVMSupport<Azure> {
         if( doc == null ) {
             return Collections.emptyList();
         }
-        NodeList entries = doc.getElementsByTagName("HostedService");
+        final ListingContext lookups = new ListingContext();
+        Map<String,Callable<List<ResourceStatus>>> tasks = new LinkedHashMap<String, Callable<List<ResourceStatus>>>();
+
+        for( final HostedServiceEntry entry : HostedServiceEntry.parse(doc) ) {
+            tasks.put(entry.serviceName, new Callable<List<ResourceStatus>>() {
+                public List<ResourceStatus> call() throws Exception {
+                    return loadHostedServiceStatus(lookups, regionId, entry);
+                }
+            });
+        }
         ArrayList<ResourceStatus> status = new ArrayList<ResourceStatus>();
 
-        for( int i=0; i<entries.getLength(); i++ ) {
-            parseHostedServiceForStatus(ctx, entries.item(i), null, status);
+        for( List<ResourceStatus> list : fetchHostedServices(tasks) ) {
+            status.addAll(list);
         }
         return status;
     }
@@ -887,6 +896,11 @@ public class AzureVM extends AbstractVMSupport<Azure> {
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
+        final String regionId = ctx.getRegionId();
+
+        if( regionId == null ) {
+            throw new AzureConfigException("No region ID was specified for this request");
+        }
         AzureMethod method = new AzureMethod(getProvider());
 
         Document doc = method.getAsXML(ctx.getAccountNumber(), HOSTED_SERVICES);
@@ -894,15 +908,65 @@ public class AzureVM extends AbstractVMSupport<Azure> {
         if( doc == null ) {
             return Collections.emptyList();
         }
-        NodeList entries = doc.getElementsByTagName("HostedService");
+        final ListingContext lookups = new ListingContext();
+        Map<String,Callable<List<VirtualMachine>>> tasks = new LinkedHashMap<String, Callable<List<VirtualMachine>>>();
+
+        for( final HostedServiceEntry entry : HostedServiceEntry.parse(doc) ) {
+            tasks.put(entry.serviceName, new Callable<List<VirtualMachine>>() {
+                public List<VirtualMachine> call() throws Exception {
+                    return loadHostedService(lookups, regionId, entry);
+                }
+            });
+        }
         ArrayList<VirtualMachine> vms = new ArrayList<VirtualMachine>();
 
-        for( int i=0; i<entries.getLength(); i++ ) {
-            parseHostedService(ctx, entries.item(i), null, vms);
+        for( List<VirtualMachine> list : fetchHostedServices(tasks) ) {
+            vms.addAll(list);
         }
         return vms;
     }
 
+    /**
+     * Runs the per hosted service detail requests of a listing concurrently. Results are merged in the order in
+     * which the hosted services were listed. A hosted service that cannot be loaded is logged and left out of
+     * the listing, unless every single one failed, in which case the listing itself fails.
+     * @param tasks the detail requests keyed by hosted service name
+     * @param <T> the type of resource being listed
+     * @return the successfully loaded results in hosted service order
+     * @throws CloudException none of the hosted services could be loaded
+     * @throws InternalException none of the hosted services could be loaded due to a local error
+     */
+    private @Nonnull <T> List<List<T>> fetchHostedServices(@Nonnull Map<String,Callable<List<T>>> tasks) throws CloudException, InternalException {
+        int parallelism = (int)getProvider().getSetting(LIST_PARALLELISM, DEFAULT_LIST_PARALLELISM);
+        long timeout = getProvider().getSetting(LIST_TIMEOUT, DEFAULT_LIST_TIMEOUT) * 1000L;
+        List<AzureParallelRequests.Outcome<List<T>>> outcomes = AzureParallelRequests.invokeAll(getProvider(), tasks, parallelism, timeout);
+        List<List<T>> results = new ArrayList<List<T>>();
+        Throwable failure = null;
+
+        for( AzureParallelRequests.Outcome<List<T>> outcome : outcomes ) {
+            if( outcome.isSuccess() ) {
+                results.add(outcome.getResult());
+            }
+            else {
+                failure = outcome.getError();
+                logger.warn("Unable to load hosted service " + outcome.getKey() + ": " + failure.getMessage());
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Hosted service " + outcome.getKey() + " failed", failure);
+                }
+            }
+        }
+        if( results.isEmpty() && failure != null ) {
+            if( failure instanceof CloudException ) {
+                throw (CloudException)failure;
+            }
+            if( failure instanceof InternalException ) {
+                throw (InternalException)failure;
+            }
+            throw new CloudException(failure);
+        }
+        return results;
+    }
+
     @Nonnull
     @Override
     public Iterable<VirtualMachine> listVirtualMachines(@Nullable VMFilterOptions vmFilterOptions) throws InternalException, CloudException {
@@ -916,7 +980,7 @@ public class AzureVM extends AbstractVMSupport<Azure> {
         return list;
     }
 
-    private void parseDeployment(@Nonnull ProviderContext ctx, @Nonnull String regionId, @Nonnull String serviceName, @Nonnull Node node, @Nonnull List<VirtualMachine> virtualMachines) {
+    private void parseDeployment(@Nonnull ProviderContext ctx, @Nonnull ListingContext lookups, @Nonnull String regionId, @Nonnull String serviceName, @Nonnull Node node, @Nonnull List<VirtualMachine> virtualMachines) {
         ArrayList<VirtualMachine> list = new ArrayList<VirtualMachine>();
         NodeList attributes = node.getChildNodes();
         String deploymentSlot = null;
@@ -1205,7 +1269,7 @@ public class AzureVM extends AbstractVMSupport<Azure> {
                     vm.setPlatform(Platform.guess(vm.getProviderMachineImageId()));
                     if( vm.getPlatform().equals(Platform.UNKNOWN) ) {
                         try {
-                            MachineImage img = getProvider().getComputeServices().getImageSupport().getMachineImage(vm.getProviderMachineImageId());
+                            MachineImage img = lookups.getMachineImage(vm.getProviderMachineImageId());
 
                             if( img != null ) {
                                 vm.setPlatform(img.getPlatform());
@@ -1224,7 +1288,13 @@ public class AzureVM extends AbstractVMSupport<Azure> {
                     String providerVlanId = null;
 
                     try {
-                        providerVlanId = getProvider().getNetworkServices().getVlanSupport().getVlan(vlan).getProviderVlanId();
+                        VLAN network = lookups.getVlan(vlan);
+
+                        if( network == null ) {
+                            logger.error("No such vlan " + vlan);
+                            continue;
+                        }
+                        providerVlanId = network.getProviderVlanId();
                         vm.setProviderVlanId(providerVlanId);
                     }
                     catch (CloudException e) {
@@ -1345,210 +1415,206 @@ public class AzureVM extends AbstractVMSupport<Azure> {
         }
     }
 
-    private void parseHostedService(@Nonnull ProviderContext ctx, @Nonnull Node entry, @Nullable String serviceName, @Nonnull List<VirtualMachine> virtualMachines) throws CloudException, InternalException {
-        String regionId = ctx.getRegionId();
-
-        if( regionId == null ) {
-            throw new AzureConfigException("No region ID was specified for this request");
-        }
-
-        NodeList attributes = entry.getChildNodes();
-        String uri = null;
-        long created = 0L;
-        String service = null;
-
-        boolean mediaLocationFound = false;
-        DataCenter dc = null;
-
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attribute = attributes.item(i);
-
-            if(attribute.getNodeType() == Node.TEXT_NODE) {
-                continue;
+    /**
+     * Request-scoped memo of the lookups made while listing virtual machines. Many virtual machines share the
+     * same image, VLAN, affinity group and data center, and each of those lookups may itself list a whole catalog,
+     * so each distinct resource is resolved only once per listing. Failed lookups are remembered as well. The
+     * context is safe to share between the hosted services loaded in parallel; concurrent requests for the same
+     * resource wait for the first one instead of issuing their own.
+     */
+    private class ListingContext {
+        private final ConcurrentHashMap<String,FutureTask<Object>> lookups = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+        private @Nullable Object lookup(@Nonnull String key, @Nonnull Callable<Object> loader) throws CloudException, InternalException {
+            FutureTask<Object> task = lookups.get(key);
+
+            if( task == null ) {
+                FutureTask<Object> created = new FutureTask<Object>(loader);
+
+                task = lookups.putIfAbsent(key, created);
+                if( task == null ) {
+                    task = created;
+                    created.run();
+                }
             }
-            if( attribute.getNodeName().equalsIgnoreCase("url") && attribute.hasChildNodes() ) {
-                uri = attribute.getFirstChild().getNodeValue().trim();
+            try {
+                return task.get();
             }
-            else if( attribute.getNodeName().equalsIgnoreCase("servicename") && attribute.hasChildNodes() ) {
-                service = attribute.getFirstChild().getNodeValue().trim();
-                if( serviceName != null && !service.equals(serviceName) ) {
-                    return;
-                }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException(e);
             }
-            else if( attribute.getNodeName().equalsIgnoreCase("hostedserviceproperties") && attribute.hasChildNodes() ) {
-                NodeList properties = attribute.getChildNodes();
+            catch( ExecutionException e ) {
+                Throwable cause = e.getCause();
 
-                for( int j=0; j<properties.getLength(); j++ ) {
-                    Node property = properties.item(j);
-
-                    if(property.getNodeType() == Node.TEXT_NODE) {
-                        continue;
-                    }
-                    if( property.getNodeName().equalsIgnoreCase("AffinityGroup") && property.hasChildNodes() ) {
-                        //get the region for this affinity group
-                        String affinityGroup = property.getFirstChild().getNodeValue().trim();
-                        if (affinityGroup != null && !affinityGroup.equals("")) {
-                            AffinityGroup affinityGroupModel = getProvider().getComputeServices().getAffinityGroupSupport().get(affinityGroup);
-                            if(affinityGroupModel == null)
-                                return;
-
-                            dc = getProvider().getDataCenterServices().getDataCenter(affinityGroupModel.getDataCenterId());
-                            if (dc != null && dc.getRegionId().equals(regionId)) {
-                                mediaLocationFound = true;
-                            }
-                            else {
-                                // not correct region/datacenter
-                                return;
-                            }
-                        }
-                    }
-                    else if( property.getNodeName().equalsIgnoreCase("location") && property.hasChildNodes() ) {
-                        if( !mediaLocationFound && !regionId.equals(property.getFirstChild().getNodeValue().trim()) ) {
-                            return;
-                        }
-
-                    }
-                    else if( property.getNodeName().equalsIgnoreCase("datecreated") && property.hasChildNodes() ) {
-                        created = getProvider().parseTimestamp(property.getFirstChild().getNodeValue().trim());
-                    }
+                if( cause instanceof CloudException ) {
+                    throw (CloudException)cause;
+                }
+                if( cause instanceof InternalException ) {
+                    throw (InternalException)cause;
                 }
+                throw new CloudException(cause);
             }
         }
-        if( uri == null || service == null ) {
-            return;
-        }
-
-        AzureMethod method = new AzureMethod(getProvider());
-
-        //dmayne 20130416: get the deployment names for each hosted service so we can then extract the detail
-        String deployURL = HOSTED_SERVICES + "/"+ service+"?embed-detail=true";
-        Document deployDoc = method.getAsXML(ctx.getAccountNumber(), deployURL);
 
-        if (deployDoc == null) {
-            return;
+        @Nullable MachineImage getMachineImage(@Nonnull final String imageId) throws CloudException, InternalException {
+            return (MachineImage)lookup("image:" + imageId, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return getProvider().getComputeServices().getImageSupport().getMachineImage(imageId);
+                }
+            });
         }
-        NodeList deployments = deployDoc.getElementsByTagName("Deployments");
-        for (int i = 0; i < deployments.getLength(); i++) {
-            Node deployNode = deployments.item(i);
-            NodeList deployAttributes = deployNode.getChildNodes();
-
-            String deploymentName = "";
-            for (int j = 0; j<deployAttributes.getLength(); j++) {
-                Node deployment = deployAttributes.item(j);
 
-                if(deployment.getNodeType() == Node.TEXT_NODE) {
-                    continue;
+        @Nullable VLAN getVlan(@Nonnull final String vlanName) throws CloudException, InternalException {
+            return (VLAN)lookup("vlan:" + vlanName, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return getProvider().getNetworkServices().getVlanSupport().getVlan(vlanName);
                 }
+            });
+        }
 
-                if( deployment.getNodeName().equalsIgnoreCase("Deployment") && deployment.hasChildNodes() ) {
-                    NodeList dAttribs = deployment.getChildNodes();
-                    for (int k = 0; k<dAttribs.getLength(); k++) {
-                        Node mynode = dAttribs.item(k);
-
-                        if ( mynode.getNodeName().equalsIgnoreCase("name") && mynode.hasChildNodes() ) {
-                            deploymentName = mynode.getFirstChild().getNodeValue().trim();
-
-                            parseDeployment(ctx, regionId, service+":"+deploymentName, deployment, virtualMachines);
-                            for (VirtualMachine vm : virtualMachines) {
-                                if (vm.getCreationTimestamp() < 1L) {
-                                    vm.setCreationTimestamp(created);
-                                }
-                                if (dc != null) {
-                                    vm.setProviderDataCenterId(dc.getProviderDataCenterId());
-                                }
-                                else {
-                                    Collection<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(regionId);
-                                    vm.setProviderDataCenterId(dcs.iterator().next().getProviderDataCenterId());
-                                }
-                            }
-                        }
-                    }
+        @Nullable AffinityGroup getAffinityGroup(@Nonnull final String affinityGroupId) throws CloudException, InternalException {
+            return (AffinityGroup)lookup("affinityGroup:" + affinityGroupId, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return getProvider().getComputeServices().getAffinityGroupSupport().get(affinityGroupId);
                 }
-            }
+            });
         }
-    }
-
-    private void parseHostedServiceForStatus(@Nonnull ProviderContext ctx, @Nonnull Node entry, @Nullable String serviceName, @Nonnull List<ResourceStatus> status) throws CloudException, InternalException {
-        String regionId = ctx.getRegionId();
 
-        if( regionId == null ) {
-            throw new AzureConfigException("No region ID was specified for this request");
+        @Nullable DataCenter getDataCenter(@Nonnull final String dataCenterId) throws CloudException, InternalException {
+            return (DataCenter)lookup("dataCenter:" + dataCenterId, new Callable<Object>() {
+                public Object call() throws Exception {
+                    return getProvider().getDataCenterServices().getDataCenter(dataCenterId);
+                }
+            });
         }
 
-        NodeList attributes = entry.getChildNodes();
-        String uri = null;
-        String service = null;
+        @Nonnull String getDefaultDataCenterId(@Nonnull final String regionId) throws CloudException, InternalException {
+            return (String)lookup("region:" + regionId, new Callable<Object>() {
+                public Object call() throws Exception {
+                    Collection<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(regionId);
 
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node attribute = attributes.item(i);
-
-            if(attribute.getNodeType() == Node.TEXT_NODE) {
-                continue;
-            }
-            if( attribute.getNodeName().equalsIgnoreCase("url") && attribute.hasChildNodes() ) {
-                uri = attribute.getFirstChild().getNodeValue().trim();
-            }
-            else if( attribute.getNodeName().equalsIgnoreCase("servicename") && attribute.hasChildNodes() ) {
-                service = attribute.getFirstChild().getNodeValue().trim();
-                if( serviceName != null && !service.equals(serviceName) ) {
-                    return;
+                    return dcs.iterator().next().getProviderDataCenterId();
                 }
-            }
-            else if( attribute.getNodeName().equalsIgnoreCase("hostedserviceproperties") && attribute.hasChildNodes() ) {
-                NodeList properties = attribute.getChildNodes();
-
-                boolean mediaLocationFound = false;
-                for( int j=0; j<properties.getLength(); j++ ) {
-                    Node property = properties.item(j);
+            });
+        }
+    }
 
-                    if(property.getNodeType() == Node.TEXT_NODE) {
+    /**
+     * The attributes of a hosted service listing entry. They are copied out of the DOM on the calling thread
+     * since the document must not be read concurrently by the detail requests.
+     */
+    static private class HostedServiceEntry {
+        String serviceName;
+        String affinityGroup;
+        String location;
+        String dateCreated;
+        DataCenter dataCenter;
+
+        static @Nonnull List<HostedServiceEntry> parse(@Nonnull Document doc) {
+            NodeList entries = doc.getElementsByTagName("HostedService");
+            List<HostedServiceEntry> list = new ArrayList<HostedServiceEntry>();
+
+            for( int i=0; i<entries.getLength(); i++ ) {
+                NodeList attributes = entries.item(i).getChildNodes();
+                HostedServiceEntry entry = new HostedServiceEntry();
+                String uri = null;
+
+                for( int j=0; j<attributes.getLength(); j++ ) {
+                    Node attribute = attributes.item(j);
+
+                    if(attribute.getNodeType() == Node.TEXT_NODE) {
                         continue;
                     }
-                    if( property.getNodeName().equalsIgnoreCase("AffinityGroup") && property.hasChildNodes() ) {
-                        //get the region for this affinity group
-                        String affinityGroup = property.getFirstChild().getNodeValue().trim();
-                        if (affinityGroup != null && !affinityGroup.equals("")) {
-                            AffinityGroup affinityGroupModel = getProvider().getComputeServices().getAffinityGroupSupport().get(affinityGroup);
-                            if(affinityGroupModel == null)
-                                return;
-
-                            DataCenter dc = getProvider().getDataCenterServices().getDataCenter(affinityGroupModel.getDataCenterId());
-                            if (dc != null && dc.getRegionId().equals(regionId)) {
-                                mediaLocationFound = true;
+                    if( attribute.getNodeName().equalsIgnoreCase("url") && attribute.hasChildNodes() ) {
+                        uri = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                    else if( attribute.getNodeName().equalsIgnoreCase("servicename") && attribute.hasChildNodes() ) {
+                        entry.serviceName = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                    else if( attribute.getNodeName().equalsIgnoreCase("hostedserviceproperties") && attribute.hasChildNodes() ) {
+                        NodeList properties = attribute.getChildNodes();
+
+                        for( int k=0; k<properties.getLength(); k++ ) {
+                            Node property = properties.item(k);
+
+                            if(property.getNodeType() == Node.TEXT_NODE) {
+                                continue;
                             }
-                            else {
-                                // not correct region/datacenter
-                                return;
+                            if( property.getNodeName().equalsIgnoreCase("AffinityGroup") && property.hasChildNodes() ) {
+                                entry.affinityGroup = property.getFirstChild().getNodeValue().trim();
+                            }
+                            else if( property.getNodeName().equalsIgnoreCase("location") && property.hasChildNodes() ) {
+                                entry.location = property.getFirstChild().getNodeValue().trim();
+                            }
+                            else if( property.getNodeName().equalsIgnoreCase("datecreated") && property.hasChildNodes() ) {
+                                entry.dateCreated = property.getFirstChild().getNodeValue().trim();
                             }
-                        }
-                    }
-                    else if( property.getNodeName().equalsIgnoreCase("location") && property.hasChildNodes() ) {
-                        if( !mediaLocationFound && !regionId.equals(property.getFirstChild().getNodeValue().trim()) ) {
-                            return;
                         }
                     }
                 }
+                if( uri != null && entry.serviceName != null ) {
+                    list.add(entry);
+                }
             }
+            return list;
         }
-        if( uri == null || service == null ) {
-            return;
+    }
+
+    /**
+     * Checks whether a hosted service belongs to the region of the current request. For hosted services placed
+     * in an affinity group, the data center of the affinity group is recorded in the entry.
+     * @param lookups the lookups of the current listing
+     * @param regionId the region of the current request
+     * @param entry the hosted service to check
+     * @return true if the hosted service is in the region
+     */
+    private boolean isInRegion(@Nonnull ListingContext lookups, @Nonnull String regionId, @Nonnull HostedServiceEntry entry) throws CloudException, InternalException {
+        if( entry.affinityGroup != null && !entry.affinityGroup.equals("") ) {
+            //get the region for this affinity group
+            AffinityGroup affinityGroupModel = lookups.getAffinityGroup(entry.affinityGroup);
+
+            if( affinityGroupModel == null ) {
+                return false;
+            }
+            DataCenter dc = lookups.getDataCenter(affinityGroupModel.getDataCenterId());
+
+            if( dc == null || !dc.getRegionId().equals(regionId) ) {
+                // not correct region/datacenter
+                return false;
+            }
+            entry.dataCenter = dc;
+            return true;
         }
+        return (entry.location == null || regionId.equals(entry.location));
+    }
 
+    /**
+     * Fetches the deployments of a hosted service with all their details.
+     * @param serviceName the hosted service
+     * @return the deployment nodes keyed by deployment name, in document order
+     */
+    private @Nonnull Map<String,Node> getDeployments(@Nonnull String serviceName) throws CloudException, InternalException {
+        ProviderContext ctx = getProvider().getContext();
+        Map<String,Node> result = new LinkedHashMap<String, Node>();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
         AzureMethod method = new AzureMethod(getProvider());
 
         //dmayne 20130416: get the deployment names for each hosted service so we can then extract the detail
-        String deployURL = HOSTED_SERVICES + "/"+ service+"?embed-detail=true";
+        String deployURL = HOSTED_SERVICES + "/"+ serviceName +"?embed-detail=true";
         Document deployDoc = method.getAsXML(ctx.getAccountNumber(), deployURL);
 
         if (deployDoc == null) {
-            return;
+            return result;
         }
         NodeList deployments = deployDoc.getElementsByTagName("Deployments");
         for (int i = 0; i < deployments.getLength(); i++) {
             Node deployNode = deployments.item(i);
             NodeList deployAttributes = deployNode.getChildNodes();
 
-            String deploymentName = "";
             for (int j = 0; j<deployAttributes.getLength(); j++) {
                 Node deployment = deployAttributes.item(j);
 
@@ -1562,14 +1628,63 @@ public class AzureVM extends AbstractVMSupport<Azure> {
                         Node mynode = dAttribs.item(k);
 
                         if ( mynode.getNodeName().equalsIgnoreCase("name") && mynode.hasChildNodes() ) {
-                            deploymentName = mynode.getFirstChild().getNodeValue().trim();
-
-                            parseStatus(ctx, regionId, service + ":" + deploymentName, deployment, status);
+                            result.put(mynode.getFirstChild().getNodeValue().trim(), deployment);
                         }
                     }
                 }
             }
         }
+        return result;
+    }
+
+    private @Nonnull List<VirtualMachine> loadHostedService(@Nonnull ListingContext lookups, @Nonnull String regionId, @Nonnull HostedServiceEntry entry) throws CloudException, InternalException {
+        ProviderContext ctx = getProvider().getContext();
+        List<VirtualMachine> virtualMachines = new ArrayList<VirtualMachine>();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        if( !isInRegion(lookups, regionId, entry) ) {
+            return virtualMachines;
+        }
+        for( Map.Entry<String,Node> deployment : getDeployments(entry.serviceName).entrySet() ) {
+            parseDeployment(ctx, lookups, regionId, entry.serviceName + ":" + deployment.getKey(), deployment.getValue(), virtualMachines);
+        }
+        if( virtualMachines.isEmpty() ) {
+            return virtualMachines;
+        }
+        long created = getProvider().parseTimestamp(entry.dateCreated);
+        String dataCenterId;
+
+        if( entry.dataCenter != null ) {
+            dataCenterId = entry.dataCenter.getProviderDataCenterId();
+        }
+        else {
+            dataCenterId = lookups.getDefaultDataCenterId(regionId);
+        }
+        for( VirtualMachine vm : virtualMachines ) {
+            if( vm.getCreationTimestamp() < 1L ) {
+                vm.setCreationTimestamp(created);
+            }
+            vm.setProviderDataCenterId(dataCenterId);
+        }
+        return virtualMachines;
+    }
+
+    private @Nonnull List<ResourceStatus> loadHostedServiceStatus(@Nonnull ListingContext lookups, @Nonnull String regionId, @Nonnull HostedServiceEntry entry) throws CloudException, InternalException {
+        ProviderContext ctx = getProvider().getContext();
+        List<ResourceStatus> status = new ArrayList<ResourceStatus>();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        if( !isInRegion(lookups, regionId, entry) ) {
+            return status;
+        }
+        for( Map.Entry<String,Node> deployment : getDeployments(entry.serviceName).entrySet() ) {
+            parseStatus(ctx, regionId, entry.serviceName + ":" + deployment.getKey(), deployment.getValue(), status);
+        }
+        return status;
     }
 
     @Override
@@ -29,7 +29,6 @@ import org.dasein.cloud.azure.AzureMethod;
 import org.dasein.cloud.azure.compute.AzureComputeServices;
 import org.dasein.cloud.azure.compute.vm.AzureRoleDetails;
 import org.dasein.cloud.azure.network.model.*;
-import org.dasein.cloud.compute.VirtualMachine;
 import org.dasein.cloud.network.*;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
@@ -42,6 +41,8 @@ import javax.xml.bind.JAXBException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Created by Vlad_Munthiu on 6/10/2014.
@@ -182,6 +183,7 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
         }
         catch (Exception ex)
         {
+            invalidateSnapshot();
             try {
                 //try to remove previously created profile from TrafficManager
                 azureMethod.invoke("DELETE", this.getContext().getAccountNumber(),
@@ -196,6 +198,7 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
             }
         }
 
+        invalidateSnapshot();
         return options.getName();
 
     }
@@ -208,6 +211,7 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
 
         AzureMethod method = new AzureMethod(this.getProvider());
         method.invoke("DELETE", this.getContext().getAccountNumber(), String.format(RESOURCE_PROFILE, loadBalancerId), null);
+        invalidateSnapshot();
     }
 
     @Override
@@ -221,19 +225,9 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
 
         ArrayList<LoadBalancer> loadBalancers = new ArrayList<LoadBalancer>();
 
-        ProfilesModel profileResponseModels = getProfiles();
-
-        if(profileResponseModels == null)
-            return Collections.emptyList();
-
-        if(profileResponseModels.getProfiles() == null)
-            return Collections.emptyList();
-
-        for (ProfileModel profile : profileResponseModels.getProfiles())
+        for (TrafficManagerSnapshot.Entry entry : TrafficManagerSnapshot.getInstance(getProvider()).getEntries(getProvider()))
         {
-            DefinitionModel definitionModel = getDefinition(profile.getName());
-
-            LoadBalancer loadBalancer = toLoadBalancer(ctx, profile, definitionModel);
+            LoadBalancer loadBalancer = toLoadBalancer(ctx, entry.getProfile(), entry.getDefinition());
 
             loadBalancers.add(loadBalancer);
         }
@@ -249,6 +243,12 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
+        TrafficManagerSnapshot.Entry entry = TrafficManagerSnapshot.getInstance(getProvider()).peekEntry(getProvider(), loadBalancerId);
+
+        if(entry != null)
+            return toLoadBalancer(ctx, entry.getProfile(), entry.getDefinition());
+
+        // no current snapshot, or the profile was created by another client since it was loaded
         ProfileModel profileModel = getProfile(loadBalancerId);
 
         if(profileModel == null)
@@ -290,15 +290,15 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
     public void addServers(@Nonnull String toLoadBalancerId, @Nonnull String ... serverIdsToAdd) throws CloudException, InternalException
     {
         DefinitionModel definitionModel = getDefinition(toLoadBalancerId);
+        VmDnsIndex vmIndex = getCachedVmIndex();
 
         for (String serverToAddId : serverIdsToAdd)
         {
             if(serverToAddId == null)
                 throw new InternalException("Cannot add server to load balancer. Server ID must not be null.");
 
-            String[] parts = serverToAddId.split(":");
             DefinitionModel.EndPointModel endPointModel = new DefinitionModel.EndPointModel();
-            endPointModel.setDomainName(parts[0] + ".cloudapp.net");
+            endPointModel.setDomainName(toDomainName(vmIndex, serverToAddId));
             endPointModel.setStatus("Enabled");
             endPointModel.setType("CloudService");
             if(definitionModel.getPolicy().getEndPoints() == null)
@@ -315,26 +315,17 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
             logger.error(e.getMessage());
             throw new InternalException(e);
         }
+        finally {
+            invalidateSnapshot();
+        }
     }
 
     @Override
     public @Nonnull Iterable<LoadBalancerEndpoint> listEndpoints(@Nonnull String forLoadBalancerId) throws CloudException, InternalException
     {
-        final Azure provider = getProvider();
-
-        // this list VM call can be very slow, so we cache for a short time to help with clients calling
-        // listEndpoints() on many LBs in a short period of time.
-        Cache<VirtualMachine> cache = Cache.getInstance(provider, "LoadBalancerVMs", VirtualMachine.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(1, TimePeriod.MINUTE));
-        Collection<VirtualMachine> virtualMachines = (Collection<VirtualMachine>)cache.get(provider.getContext());
-        if (virtualMachines == null) {
-            virtualMachines = new ArrayList<VirtualMachine>();
-            for (VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines()) {
-                virtualMachines.add(vm);
-            }
-            cache.put(provider.getContext(), virtualMachines);
-        }
+        VmDnsIndex vmIndex = getVmIndex();
 
-        DefinitionModel definitionModel = getDefinition(forLoadBalancerId);
+        DefinitionModel definitionModel = getCurrentDefinition(forLoadBalancerId);
 
         ArrayList<LoadBalancerEndpoint> endpoints = new ArrayList<LoadBalancerEndpoint>();
 
@@ -342,9 +333,8 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
             for (DefinitionModel.EndPointModel endPoint : definitionModel.getPolicy().getEndPoints()) {
                 LbEndpointState lbState = endPoint.getStatus().equalsIgnoreCase("enabled") ? LbEndpointState.ACTIVE : LbEndpointState.INACTIVE;
 
-                ArrayList<VirtualMachine> vmsWithEndpointDNS = findVMsForDNS(virtualMachines, endPoint.getDomainName());
-                for (VirtualMachine vm : vmsWithEndpointDNS) {
-                    LoadBalancerEndpoint lbEndpoint = LoadBalancerEndpoint.getInstance(LbEndpointType.VM, vm.getProviderVirtualMachineId(), lbState);
+                for (String vmId : vmIndex.getVmIds(endPoint.getDomainName())) {
+                    LoadBalancerEndpoint lbEndpoint = LoadBalancerEndpoint.getInstance(LbEndpointType.VM, vmId, lbState);
                     endpoints.add(lbEndpoint);
                 }
             }
@@ -353,15 +343,52 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
         return endpoints;
     }
 
-    private ArrayList<VirtualMachine> findVMsForDNS(Iterable<VirtualMachine> virtualMachines, String dnsName)
+    private Cache<VmDnsIndex> getVmIndexCache() {
+        return Cache.getInstance(getProvider(), "LoadBalancerVMIndex", VmDnsIndex.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(1, TimePeriod.MINUTE));
+    }
+
+    /**
+     * @return the DNS index of the VMs of the region, listing the VMs if the cached index has expired
+     */
+    private VmDnsIndex getVmIndex() throws CloudException, InternalException
     {
-        ArrayList<VirtualMachine> virtualMachinesFound = new ArrayList<VirtualMachine>();
-        for (VirtualMachine virtualMachine : virtualMachines)
-        {
-            if(virtualMachine.getPublicDnsAddress() != null && virtualMachine.getPublicDnsAddress().equalsIgnoreCase(dnsName))
-                virtualMachinesFound.add(virtualMachine);
+        // this list VM call can be very slow, so the index built from it is cached for a short time to help with
+        // clients calling listEndpoints() on many LBs in a short period of time.
+        VmDnsIndex index = getCachedVmIndex();
+
+        if (index == null) {
+            index = new VmDnsIndex(getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachines());
+            getVmIndexCache().put(getProvider().getContext(), Collections.singletonList(index));
         }
-        return virtualMachinesFound;
+        return index;
+    }
+
+    /**
+     * @return the cached DNS index of the VMs of the region, or <code>null</code> if there is none at the moment
+     */
+    private VmDnsIndex getCachedVmIndex()
+    {
+        Iterable<VmDnsIndex> cached = getVmIndexCache().get(getProvider().getContext());
+
+        if (cached != null) {
+            for (VmDnsIndex index : cached)
+                return index;
+        }
+        return null;
+    }
+
+    /**
+     * Maps a server ID to the domain name of its cloud service, as Traffic Manager endpoints refer to it. Servers
+     * missing from the index are assumed to use the default domain of the cloud service named in their ID.
+     */
+    private String toDomainName(VmDnsIndex vmIndex, String serverId)
+    {
+        String dnsName = (vmIndex == null ? null : vmIndex.getDnsName(serverId));
+
+        if (dnsName != null)
+            return dnsName;
+
+        return serverId.split(":")[0] + ".cloudapp.net";
     }
 
     @Override
@@ -369,12 +396,34 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
     {
         DefinitionModel definitionModel = getDefinition(fromLoadBalancerId);
 
-        Collection<DefinitionModel.EndPointModel> itemsToRemove = new ArrayList<DefinitionModel.EndPointModel>();
+        // servers missing from the index are matched by the name of their cloud service, whatever the domain
+        VmDnsIndex vmIndex = getCachedVmIndex();
+        Set<String> domainsToRemove = new HashSet<String>();
+        Set<String> prefixesToRemove = new HashSet<String>();
         for (String serverToRemoveId : serverIdsToRemove) {
-            String[] parts = serverToRemoveId.split(":");
-            for (DefinitionModel.EndPointModel endPoint : definitionModel.getPolicy().getEndPoints()) {
-                if(endPoint.getDomainName().startsWith(parts[0] + ".")){
+            String dnsName = (vmIndex == null ? null : vmIndex.getDnsName(serverToRemoveId));
+
+            if (dnsName != null)
+                domainsToRemove.add(dnsName.toLowerCase());
+            else
+                prefixesToRemove.add(serverToRemoveId.split(":")[0].toLowerCase() + ".");
+        }
+
+        Collection<DefinitionModel.EndPointModel> itemsToRemove = new ArrayList<DefinitionModel.EndPointModel>();
+        for (DefinitionModel.EndPointModel endPoint : definitionModel.getPolicy().getEndPoints()) {
+            if(endPoint.getDomainName() == null)
+                continue;
+
+            String domainName = endPoint.getDomainName().toLowerCase();
+
+            if(domainsToRemove.contains(domainName)) {
+                itemsToRemove.add(endPoint);
+                continue;
+            }
+            for (String prefix : prefixesToRemove) {
+                if(domainName.startsWith(prefix)) {
                     itemsToRemove.add(endPoint);
+                    break;
                 }
             }
         }
@@ -388,6 +437,9 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
             logger.error(e.getMessage());
             throw new InternalException(e);
         }
+        finally {
+            invalidateSnapshot();
+        }
     }
 
     @Override
@@ -399,19 +451,12 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
             throw new AzureConfigException("No context was specified for this request");
         }
 
-        ProfilesModel profilesModel = getProfiles();
-
-        if(profilesModel == null)
-            return Collections.emptyList();
-
-        if(profilesModel.getProfiles() == null)
-            return Collections.emptyList();
-
         ArrayList<LoadBalancerHealthCheck> loadBalancerHealthChecks = new ArrayList<LoadBalancerHealthCheck>();
 
-        for (ProfileModel profile : profilesModel.getProfiles())
+        for (TrafficManagerSnapshot.Entry entry : TrafficManagerSnapshot.getInstance(getProvider()).getEntries(getProvider()))
         {
-            DefinitionModel definitionModel = getDefinition(profile.getName());
+            ProfileModel profile = entry.getProfile();
+            DefinitionModel definitionModel = entry.getDefinition();
 
             if(definitionModel != null && definitionModel.getMonitors() != null && definitionModel.getMonitors().get(0) != null) {
                 DefinitionModel.MonitorModel currentMonitor = definitionModel.getMonitors().get(0);
@@ -444,7 +489,7 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
 
         String profileId = providerLoadBalancerId != null ? providerLoadBalancerId : providerLBHealthCheckId;
 
-        DefinitionModel definitionModel = getDefinition(profileId);
+        DefinitionModel definitionModel = getCurrentDefinition(profileId);
 
         DefinitionModel.MonitorModel currentMonitor = definitionModel.getMonitors().get(0);
         LoadBalancerHealthCheck.HCProtocol protocol =
@@ -502,10 +547,31 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
             logger.error(e.getMessage());
             throw new InternalException(e);
         }
+        finally {
+            invalidateSnapshot();
+        }
 
         return getLoadBalancerHealthCheck(loadBalancerId, null);
     }
 
+    /**
+     * Reads the definition of a profile from the current Traffic Manager snapshot, fetching only this definition
+     * if there is no current snapshot or it does not have the profile. The result may be shared and must not be
+     * modified; use {@link #getDefinition(String)} to fetch a definition to change.
+     */
+    private DefinitionModel getCurrentDefinition(String profileName) throws CloudException, InternalException {
+        TrafficManagerSnapshot.Entry entry = TrafficManagerSnapshot.getInstance(getProvider()).peekEntry(getProvider(), profileName);
+
+        if(entry != null)
+            return entry.getDefinition();
+
+        return getDefinition(profileName);
+    }
+
+    private void invalidateSnapshot() throws CloudException, InternalException {
+        TrafficManagerSnapshot.getInstance(getProvider()).invalidate();
+    }
+
     private DefinitionModel getDefinition(String profileName) throws CloudException, InternalException {
         AzureMethod method = new AzureMethod(this.getProvider());
         return method.get(DefinitionModel.class, String.format(RESOURCE_DEFINITION, profileName));
@@ -515,9 +581,4 @@ public class AzureLoadBalancerSupport extends AbstractLoadBalancerSupport<Azure>
         AzureMethod method = new AzureMethod(this.getProvider());
         return method.get(ProfileModel.class, String.format(RESOURCE_PROFILE, profileName));
     }
-
-    private ProfilesModel getProfiles() throws CloudException, InternalException {
-        AzureMethod method = new AzureMethod(this.getProvider());
-        return method.get(ProfilesModel.class, RESOURCE_PROFILES);
-    }
 }
@@ -24,7 +24,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -45,6 +48,7 @@ import org.dasein.cloud.Tag;
 import org.dasein.cloud.azure.Azure;
 import org.dasein.cloud.azure.AzureConfigException;
 import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.azure.AzureOperationTracker;
 import org.dasein.cloud.compute.AffinityGroup;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.Region;
@@ -62,6 +66,10 @@ import org.dasein.cloud.network.SubnetState;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANCapabilities;
 import org.dasein.cloud.network.VLANState;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.Second;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -194,42 +202,51 @@ public class AzureVlanSupport implements VLANSupport {
                                     Element addressPrefix = doc.createElement("AddressPrefix");
                                     addressPrefix.appendChild(doc.createTextNode(subCidr));
 
-            if (requestId != null) {
-                int httpCode = method.getOperationStatus(requestId);
-                while (httpCode == -1) {
-                    httpCode = method.getOperationStatus(requestId);
-                }
-                if (httpCode == HttpServletResponse.SC_OK) {
-                    try {
-                        return getSubnet(subName);
+                                    subnet.appendChild(addressPrefix);
+                                    subnetList.appendChild(subnet);
+                                    el.appendChild(subnetList);
+                                    break;
+                                }
+                            }
+                        }
                     }
-                    catch( Throwable ignore ) { }
                 }
             }
 
-            String resourceDir = NETWORKING_SERVICES + "/media";
-            String requestId = method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
-
-            if (requestId != null) {
-                int httpCode = method.getOperationStatus(requestId);
-                while (httpCode == -1) {
-                    try {
-                        Thread.sleep(15000L);
-                    }
-                    catch (InterruptedException ignored){}
-                    httpCode = method.getOperationStatus(requestId);
+            String output="";
+            try{
+                TransformerFactory tf = TransformerFactory.newInstance();
+                Transformer transformer = tf.newTransformer();
+                transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+                StringWriter writer = new StringWriter();
+                transformer.transform(new DOMSource(doc), new StreamResult(writer));
+                output = writer.getBuffer().toString().replaceAll("\n|\r", "");
+            }
+            catch (Exception e){
+                logger.error("Unable to write the network configuration for " + vlan.getProviderVlanId() + ": " + e.getMessage());
+                throw new InternalException(e);
+            }
+            xml.append(output);
+            if( logger.isDebugEnabled() ) {
+                try {
+                    method.parseResponse(xml.toString(), false);
                 }
-                if (httpCode == HttpServletResponse.SC_OK) {
-                    try {
-                        return getSubnet(subName+"_"+vlan.getProviderVlanId());
-                    }
-                    catch( Throwable ignore ) { }
+                catch( Exception e ) {
+                    logger.warn("Unable to parse outgoing XML locally: " + e.getMessage());
+                    logger.warn("XML:");
+                    logger.warn(xml.toString());
                 }
-                logger.debug("Http code from job "+httpCode);
             }
-            else {
-                logger.error("Job id not returned from cloud so can't get new object");
+
+            int httpCode = putNetworkConfig(method, ctx, xml.toString());
+
+            if (httpCode == HttpServletResponse.SC_OK) {
+                try {
+                    return getSubnet(subName+"_"+vlan.getProviderVlanId());
+                }
+                catch( Throwable ignore ) { }
             }
+            logger.debug("Http code from job "+httpCode);
             return null;
         }
         finally {
@@ -343,29 +360,15 @@ public class AzureVlanSupport implements VLANSupport {
                 }
             }
 
-            String resourceDir = NETWORKING_SERVICES + "/media";
-            String requestId = method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            int httpCode = putNetworkConfig(method, ctx, xml.toString());
 
-            if (requestId != null) {
-                int httpCode = method.getOperationStatus(requestId);
-                while (httpCode == -1) {
-                    try {
-                        Thread.sleep(15000L);
-                    }
-                    catch (InterruptedException ignored){}
-                    httpCode = method.getOperationStatus(requestId);
-                }
-                if (httpCode == HttpServletResponse.SC_OK) {
-                    try {
-                        return getVlan(name);
-                    }
-                    catch( Throwable ignore ) { }
+            if (httpCode == HttpServletResponse.SC_OK) {
+                try {
+                    return getVlan(name);
                 }
-                logger.debug("Http code from job "+httpCode);
-            }
-            else {
-                logger.error("Job id not returned from cloud so can't get new object");
+                catch( Throwable ignore ) { }
             }
+            logger.debug("Http code from job "+httpCode);
             return null;
         }
         finally {
@@ -423,81 +426,243 @@ public class AzureVlanSupport implements VLANSupport {
         return doc;
     }
 
-	@Override
-	public RoutingTable getRoutingTableForSubnet(String subnetId)throws CloudException, InternalException {
-		return null;
-	}
+    /**
+     * Replaces the network configuration of the subscription and waits, with a deadline, for Azure to apply it.
+     * @param method the method used to build the configuration
+     * @param ctx the context of the request
+     * @param xml the complete new network configuration
+     * @return the HTTP status code of the completed operation, or -2 if Azure did not return an operation to track
+     * @throws CloudException the change was rejected, failed or did not complete in time
+     * @throws InternalException the wait was interrupted
+     */
+    private int putNetworkConfig(@Nonnull AzureMethod method, @Nonnull ProviderContext ctx, @Nonnull String xml) throws CloudException, InternalException {
+        try {
+            String requestId = method.invoke("PUT", ctx.getAccountNumber(), NETWORKING_SERVICES + "/media", xml);
 
-	@Override
-	public RoutingTable getRoutingTableForVlan(String vlanId)throws CloudException, InternalException {
-        return null;
-	}
+            if( requestId == null ) {
+                logger.error("Job id not returned from cloud so can't wait for the network configuration change");
+                return -2;
+            }
+            return AzureOperationTracker.waitFor(provider, requestId);
+        }
+        finally {
+            invalidateVirtualNetworks();
+        }
+    }
 
-	@Override
-	public Subnet getSubnet(String subnetId) throws CloudException,InternalException {
-        logger.debug("Enter getSubnet");
+    /**
+     * Name-indexed snapshot of the virtual network sites of a subscription, so that VLAN and subnet lookups do not
+     * have to download and scan the whole network configuration each time. The snapshot is shared through the
+     * cache, so it only ever hands out copies of its VLANs and subnets.
+     */
+    static private class VirtualNetworks {
+        private final ArrayList<VLAN>     vlans        = new ArrayList<VLAN>();
+        private final HashMap<String,VLAN>   vlansById    = new HashMap<String, VLAN>();
+        private final HashMap<String,VLAN>   vlansByName  = new HashMap<String, VLAN>();
+        private final HashMap<String,Subnet> subnetsById  = new HashMap<String, Subnet>();
+
+        void add(@Nonnull VLAN vlan) {
+            vlans.add(vlan);
+            if( vlan.getProviderVlanId() != null && !vlansById.containsKey(vlan.getProviderVlanId()) ) {
+                vlansById.put(vlan.getProviderVlanId(), vlan);
+            }
+            if( vlan.getName() != null && !vlansByName.containsKey(vlan.getName().toLowerCase()) ) {
+                vlansByName.put(vlan.getName().toLowerCase(), vlan);
+            }
+        }
+
+        void add(@Nonnull Subnet subnet) {
+            String id = subnet.getProviderSubnetId().toLowerCase();
+
+            if( !subnetsById.containsKey(id) ) {
+                subnetsById.put(id, subnet);
+            }
+        }
+
+        @Nonnull List<VLAN> getVlans() {
+            ArrayList<VLAN> copies = new ArrayList<VLAN>();
+
+            for( VLAN vlan : vlans ) {
+                copies.add(copy(vlan));
+            }
+            return copies;
+        }
+
+        @Nullable VLAN getVlan(@Nonnull String vlanId) {
+            VLAN vlan = vlansById.get(vlanId);
+
+            if( vlan == null ) {
+                vlan = vlansByName.get(vlanId.toLowerCase());
+            }
+            return (vlan == null ? null : copy(vlan));
+        }
+
+        @Nullable Subnet getSubnet(@Nonnull String subnetId) {
+            Subnet subnet = subnetsById.get(subnetId.toLowerCase());
+
+            return (subnet == null ? null : copy(subnet));
+        }
+
+        static private @Nonnull VLAN copy(@Nonnull VLAN vlan) {
+            VLAN copy = new VLAN();
+
+            copy.setProviderOwnerId(vlan.getProviderOwnerId());
+            copy.setProviderRegionId(vlan.getProviderRegionId());
+            copy.setProviderDataCenterId(vlan.getProviderDataCenterId());
+            copy.setProviderVlanId(vlan.getProviderVlanId());
+            copy.setName(vlan.getName());
+            copy.setDescription(vlan.getDescription());
+            copy.setCidr(vlan.getCidr());
+            copy.setCurrentState(vlan.getCurrentState());
+            copy.setSupportedTraffic(vlan.getSupportedTraffic());
+            copy.setTags(vlan.getTags() == null ? new HashMap<String, String>() : new HashMap<String, String>(vlan.getTags()));
+            return copy;
+        }
+
+        static private @Nonnull Subnet copy(@Nonnull Subnet subnet) {
+            Subnet copy = Subnet.getInstance(subnet.getProviderOwnerId(), subnet.getProviderRegionId(), subnet.getProviderVlanId(), subnet.getProviderSubnetId(), subnet.getCurrentState(), subnet.getName(), subnet.getDescription(), subnet.getCidr());
+
+            if( subnet.getProviderDataCenterId() != null ) {
+                copy.constrainedToDataCenter(subnet.getProviderDataCenterId());
+            }
+            if( subnet.getTags() != null ) {
+                for( Map.Entry<String,String> tag : subnet.getTags().entrySet() ) {
+                    copy.setTag(tag.getKey(), tag.getValue());
+                }
+            }
+            return copy;
+        }
+    }
+
+    private @Nonnull Cache<VirtualNetworks> getVirtualNetworkCache() {
+        return Cache.getInstance(provider, "virtualNetworks", VirtualNetworks.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Second>(30, TimePeriod.SECOND));
+    }
 
+    /**
+     * Provides the cached virtual network index, loading it if it has expired or was invalidated.
+     * @return the current virtual network index
+     */
+    private @Nonnull VirtualNetworks getVirtualNetworks() throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
         if( ctx == null ) {
             throw new AzureConfigException("No context was specified for this request");
         }
-        AzureMethod method = new AzureMethod(provider);
+        Iterable<VirtualNetworks> cached = getVirtualNetworkCache().get(ctx);
 
-        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
+        if( cached != null ) {
+            Iterator<VirtualNetworks> it = cached.iterator();
 
-        NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
+            if( it.hasNext() ) {
+                return it.next();
+            }
+        }
+        return loadVirtualNetworks();
+    }
 
-        for( int i=0; i<entries.getLength(); i++ ) {
-            logger.debug("Searching vlans");
-            Node entry = entries.item(i);
-            NodeList attributes = entry.getChildNodes();
+    /**
+     * Downloads the virtual network sites and replaces the cached index with them.
+     * @return the fresh virtual network index
+     */
+    private @Nonnull VirtualNetworks loadVirtualNetworks() throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        AzureMethod method = new AzureMethod(provider);
 
-            String vlanId = "";
-            String vlanName = "";
+        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
+        VirtualNetworks networks = new VirtualNetworks();
 
-            for( int j=0; j<attributes.getLength(); j++ ) {
-                Node attribute = attributes.item(j);
-                if(attribute.getNodeType() == Node.TEXT_NODE) continue;
-                String nodeName = attribute.getNodeName();
+        if( doc != null ) {
+            NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
 
-                if (nodeName.equalsIgnoreCase("id") && attribute.hasChildNodes() ) {
-                    vlanId = attribute.getFirstChild().getNodeValue().trim();
-                }
-                else if( nodeName.equalsIgnoreCase("name") && attribute.hasChildNodes() ) {
-                    vlanName = attribute.getFirstChild().getNodeValue().trim();
+            for( int i=0; i<entries.getLength(); i++ ) {
+                Node entry = entries.item(i);
+                Iterable<VLAN> vlans = toVLAN(ctx, entry);
+
+                if( vlans != null ) {
+                    for( VLAN vlan : vlans ) {
+                        networks.add(vlan);
+                    }
                 }
+                NodeList attributes = entry.getChildNodes();
+                String vlanId = "";
+                String vlanName = "";
 
-                else if (nodeName.equalsIgnoreCase("subnets") && attribute.hasChildNodes()) {
-                    NodeList sNets = attribute.getChildNodes();
-                    for (int k=0; k<sNets.getLength(); k++) {
-                        Node sAttrib = sNets.item(k);
+                for( int j=0; j<attributes.getLength(); j++ ) {
+                    Node attribute = attributes.item(j);
+                    if(attribute.getNodeType() == Node.TEXT_NODE) continue;
+                    String nodeName = attribute.getNodeName();
+
+                    if (nodeName.equalsIgnoreCase("id") && attribute.hasChildNodes() ) {
+                        vlanId = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                    else if( nodeName.equalsIgnoreCase("name") && attribute.hasChildNodes() ) {
+                        vlanName = attribute.getFirstChild().getNodeValue().trim();
+                    }
+                    else if (nodeName.equalsIgnoreCase("subnets") && attribute.hasChildNodes()) {
+                        NodeList sNets = attribute.getChildNodes();
+                        for (int k=0; k<sNets.getLength(); k++) {
+                            Node sAttrib = sNets.item(k);
+                            if(sAttrib.getNodeType() == Node.TEXT_NODE) continue;
 
-                        Subnet subnet = toSubnet(ctx, sAttrib, vlanId);
-                        if( subnet != null && subnet.getProviderSubnetId().equalsIgnoreCase(subnetId)) {
-                            subnet.setTag("vlanName", vlanName);
-                            return subnet;
+                            Subnet subnet = toSubnet(ctx, sAttrib, vlanId);
+                            if( subnet != null ) {
+                                subnet.setTag("vlanName", vlanName);
+                                networks.add(subnet);
+                            }
                         }
                     }
                 }
             }
         }
-        logger.warn("Unable to find subnet "+subnetId);
+        getVirtualNetworkCache().put(ctx, Collections.singletonList(networks));
+        return networks;
+    }
+
+    /**
+     * Drops the cached virtual network index after the network configuration was changed.
+     */
+    private void invalidateVirtualNetworks() {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx != null ) {
+            getVirtualNetworkCache().put(ctx, Collections.<VirtualNetworks>emptyList());
+        }
+    }
+
+	@Override
+	public RoutingTable getRoutingTableForSubnet(String subnetId)throws CloudException, InternalException {
 		return null;
 	}
 
+	@Override
+	public RoutingTable getRoutingTableForVlan(String vlanId)throws CloudException, InternalException {
+        return null;
+	}
+
+	@Override
+	public Subnet getSubnet(String subnetId) throws CloudException,InternalException {
+        logger.debug("Enter getSubnet");
+
+        Subnet subnet = getVirtualNetworks().getSubnet(subnetId);
+
+        if( subnet == null ) {
+            logger.warn("Unable to find subnet "+subnetId);
+        }
+		return subnet;
+	}
+
 	@Override
 	public VLAN getVlan(String vlanId) throws CloudException, InternalException {
-		ArrayList<VLAN> list = (ArrayList<VLAN>) listVlans();
-		if(list != null){ 
-			for(VLAN vlan: list){
-				if(vlan.getProviderVlanId().equals(vlanId) || vlan.getName().equalsIgnoreCase(vlanId)){
-					return vlan;
-				}			
-			}
-		}
-        logger.warn("Unable to find vlan "+vlanId);
-		return null;		
+        VLAN vlan = getVirtualNetworks().getVlan(vlanId);
+
+        if( vlan == null ) {
+            logger.warn("Unable to find vlan "+vlanId);
+        }
+		return vlan;
 	}
 
     @Override
@@ -654,27 +819,7 @@ public class AzureVlanSupport implements VLANSupport {
 
     @Override
 	public Iterable<VLAN> listVlans() throws CloudException, InternalException {
-
-        ProviderContext ctx = provider.getContext();
-
-        if( ctx == null ) {
-            throw new AzureConfigException("No context was specified for this request");
-        }
-        AzureMethod method = new AzureMethod(provider);
-
-        Document doc = method.getAsXML(ctx.getAccountNumber(), NETWORKING_SERVICES+"/virtualnetwork");
-                
-        NodeList entries = doc.getElementsByTagName("VirtualNetworkSite");
-        ArrayList<VLAN> list = new ArrayList<VLAN>();
-
-        for( int i=0; i<entries.getLength(); i++ ) {
-            Node entry = entries.item(i);
-            ArrayList<VLAN> vlans = (ArrayList<VLAN>) toVLAN(ctx, entry);
-            if( vlans != null ) {
-            	list.addAll(vlans);
-            }
-        }        
-        return list;
+        return loadVirtualNetworks().getVlans();
 	}
 	
 	@Override
@@ -793,8 +938,7 @@ public class AzureVlanSupport implements VLANSupport {
                 }
             }
 
-            String resourceDir = NETWORKING_SERVICES + "/media";
-            method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            putNetworkConfig(method, ctx, xml.toString());
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -872,8 +1016,7 @@ public class AzureVlanSupport implements VLANSupport {
                 }
             }
 
-            String resourceDir = NETWORKING_SERVICES + "/media";
-            method.invoke("PUT", ctx.getAccountNumber(),resourceDir, xml.toString());
+            putNetworkConfig(method, ctx, xml.toString());
         }
         finally {
             if( logger.isTraceEnabled() ) {
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.network;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureMethod;
+import org.dasein.cloud.azure.AzureParallelRequests;
+import org.dasein.cloud.azure.AzureX509;
+import org.dasein.cloud.azure.network.model.DefinitionModel;
+import org.dasein.cloud.azure.network.model.ProfileModel;
+import org.dasein.cloud.azure.network.model.ProfilesModel;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Traffic Manager profiles of a subscription together with their current definitions, shared by every
+ * provider instance using the same credentials. Listing load balancers or their health checks would otherwise
+ * list the profiles and then fetch the definition of each profile one after the other.
+ * <p>
+ * The definitions are fetched concurrently and the whole snapshot is reloaded once it is older than {@link #TTL}
+ * seconds. Only one thread loads it at a time. Any change made to a profile through this driver drops the
+ * snapshot. If any definition cannot be fetched, the load fails with that error and nothing is kept. Lookups
+ * of a single profile only use a snapshot that is already loaded and never load one. Definitions handed out
+ * from a snapshot are shared and must not be modified; changes must be made to a freshly fetched definition.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class TrafficManagerSnapshot {
+    static private final Logger logger = Azure.getLogger(TrafficManagerSnapshot.class);
+
+    static public final String TTL         = "azure.lb.snapshotSeconds";
+    static public final String PARALLELISM = "azure.lb.definitionParallelism";
+
+    static private final long DEFAULT_TTL         = 60L;
+    static private final long DEFAULT_PARALLELISM = 8L;
+    static private final long LOAD_TIMEOUT        = 120000L;
+
+    static private final ConcurrentHashMap<String,TrafficManagerSnapshot> snapshots = new ConcurrentHashMap<String, TrafficManagerSnapshot>();
+
+    static @Nonnull TrafficManagerSnapshot getInstance(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        // Traffic Manager profiles are global, so the region is not part of the key
+        String key = AzureX509.getFingerprint(provider) + "@" + ctx.getEndpoint() + "|" + ctx.getAccountNumber();
+        TrafficManagerSnapshot snapshot = snapshots.get(key);
+
+        if( snapshot == null ) {
+            snapshot = new TrafficManagerSnapshot();
+
+            TrafficManagerSnapshot existing = snapshots.putIfAbsent(key, snapshot);
+
+            if( existing != null ) {
+                snapshot = existing;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * A profile and its definition as of the time the snapshot was loaded.
+     */
+    static class Entry {
+        private final ProfileModel    profile;
+        private final DefinitionModel definition;
+
+        private Entry(@Nonnull ProfileModel profile, @Nonnull DefinitionModel definition) {
+            this.profile = profile;
+            this.definition = definition;
+        }
+
+        @Nonnull ProfileModel getProfile() {
+            return profile;
+        }
+
+        @Nonnull DefinitionModel getDefinition() {
+            return definition;
+        }
+    }
+
+    static private class Loaded {
+        private final Map<String,Entry> entries;
+        private final long              loadedAt = System.currentTimeMillis();
+
+        private Loaded(@Nonnull Map<String,Entry> entries) {
+            this.entries = entries;
+        }
+    }
+
+    private final Object loadLock = new Object();
+
+    private volatile Loaded loaded = null;
+
+    private TrafficManagerSnapshot() { }
+
+    /**
+     * @param provider the provider on whose behalf the profiles are listed if needed
+     * @return every profile of the subscription with its definition, in listing order
+     * @throws CloudException the profiles or one of their definitions could not be listed
+     * @throws InternalException the profiles or one of their definitions could not be listed due to a local error
+     */
+    @Nonnull List<Entry> getEntries(@Nonnull Azure provider) throws CloudException, InternalException {
+        return new ArrayList<Entry>(getLoaded(provider).entries.values());
+    }
+
+    /**
+     * Looks a profile up in the current snapshot without loading one, since loading fetches the definition of
+     * every profile just to read a single one.
+     * @param provider the provider whose settings determine whether the snapshot has expired
+     * @param profileName the profile
+     * @return the profile with its definition, or <code>null</code> if there is no current snapshot or it has no such profile
+     */
+    @Nullable Entry peekEntry(@Nonnull Azure provider, @Nonnull String profileName) {
+        Loaded current = loaded;
+
+        if( current == null || isExpired(provider, current) ) {
+            return null;
+        }
+        return current.entries.get(profileName.toLowerCase());
+    }
+
+    /**
+     * Drops the snapshot, so that the next read loads the profiles and definitions again.
+     */
+    void invalidate() {
+        synchronized( loadLock ) {
+            loaded = null;
+        }
+    }
+
+    private @Nonnull Loaded getLoaded(@Nonnull Azure provider) throws CloudException, InternalException {
+        Loaded current = loaded;
+
+        if( current != null && !isExpired(provider, current) ) {
+            return current;
+        }
+        synchronized( loadLock ) {
+            if( loaded != null && loaded != current ) {
+                // another thread loaded the snapshot while we were waiting
+                return loaded;
+            }
+            return load(provider);
+        }
+    }
+
+    private boolean isExpired(@Nonnull Azure provider, @Nonnull Loaded snapshot) {
+        return (System.currentTimeMillis() - snapshot.loadedAt) > provider.getSetting(TTL, DEFAULT_TTL) * 1000L;
+    }
+
+    private @Nonnull Loaded load(@Nonnull final Azure provider) throws CloudException, InternalException {
+        ProfilesModel profilesModel = new AzureMethod(provider).get(ProfilesModel.class, AzureLoadBalancerSupport.RESOURCE_PROFILES);
+        Map<String,Callable<DefinitionModel>> tasks = new LinkedHashMap<String, Callable<DefinitionModel>>();
+        Map<String,ProfileModel> profiles = new LinkedHashMap<String, ProfileModel>();
+
+        if( profilesModel != null && profilesModel.getProfiles() != null ) {
+            for( final ProfileModel profile : profilesModel.getProfiles() ) {
+                if( profile.getName() == null ) {
+                    continue;
+                }
+                profiles.put(profile.getName(), profile);
+                tasks.put(profile.getName(), new Callable<DefinitionModel>() {
+                    public DefinitionModel call() throws Exception {
+                        return new AzureMethod(provider).get(DefinitionModel.class, String.format(AzureLoadBalancerSupport.RESOURCE_DEFINITION, profile.getName()));
+                    }
+                });
+            }
+        }
+        int parallelism = (int)Math.max(1L, provider.getSetting(PARALLELISM, DEFAULT_PARALLELISM));
+        LinkedHashMap<String,Entry> entries = new LinkedHashMap<String, Entry>();
+        Throwable failure = null;
+
+        for( AzureParallelRequests.Outcome<DefinitionModel> outcome : AzureParallelRequests.invokeAll(provider, tasks, parallelism, LOAD_TIMEOUT) ) {
+            if( !outcome.isSuccess() ) {
+                failure = outcome.getError();
+                logger.warn("Unable to load the definition of profile " + outcome.getKey() + ": " + failure.getMessage());
+            }
+            else if( outcome.getResult() == null ) {
+                // the profile was deleted after it was listed
+                logger.debug("Profile " + outcome.getKey() + " has no definition");
+            }
+            else {
+                entries.put(outcome.getKey().toLowerCase(), new Entry(profiles.get(outcome.getKey()), outcome.getResult()));
+            }
+        }
+        if( failure != null ) {
+            // keep nothing, so that the next read retries the failed definitions
+            loaded = null;
+            if( failure instanceof CloudException ) {
+                throw (CloudException)failure;
+            }
+            if( failure instanceof InternalException ) {
+                throw (InternalException)failure;
+            }
+            throw new CloudException(failure);
+        }
+        Loaded snapshot = new Loaded(Collections.unmodifiableMap(entries));
+
+        loaded = snapshot;
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Loaded " + entries.size() + " Traffic Manager profiles");
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.network;
+
+import org.dasein.cloud.compute.VirtualMachine;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable index of the virtual machines of a region by public DNS name, and of their DNS names by VM ID,
+ * built once from a VM listing. Traffic Manager endpoints refer to cloud services by DNS name, and several
+ * VMs may share the DNS name of their cloud service.
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class VmDnsIndex {
+    private final Map<String,List<String>> vmIdsByDnsName = new HashMap<String, List<String>>();
+    private final Map<String,String>       dnsNamesByVmId = new HashMap<String, String>();
+
+    VmDnsIndex(@Nonnull Iterable<VirtualMachine> virtualMachines) {
+        for( VirtualMachine vm : virtualMachines ) {
+            String dnsName = vm.getPublicDnsAddress();
+
+            if( dnsName == null || vm.getProviderVirtualMachineId() == null ) {
+                continue;
+            }
+            String key = dnsName.toLowerCase();
+            List<String> ids = vmIdsByDnsName.get(key);
+
+            if( ids == null ) {
+                ids = new ArrayList<String>();
+                vmIdsByDnsName.put(key, ids);
+            }
+            ids.add(vm.getProviderVirtualMachineId());
+            dnsNamesByVmId.put(vm.getProviderVirtualMachineId(), dnsName);
+        }
+    }
+
+    /**
+     * @param dnsName a public DNS name, matched ignoring case
+     * @return the IDs of the VMs reachable under the DNS name, in listing order
+     */
+    @Nonnull List<String> getVmIds(@Nullable String dnsName) {
+        List<String> ids = (dnsName == null ? null : vmIdsByDnsName.get(dnsName.toLowerCase()));
+
+        return (ids == null ? Collections.<String>emptyList() : Collections.unmodifiableList(ids));
+    }
+
+    /**
+     * @param vmId the ID of a VM
+     * @return the public DNS name of the VM, or <code>null</code> if the VM is not indexed or has none
+     */
+    @Nullable String getDnsName(@Nonnull String vmId) {
+        return dnsNamesByVmId.get(vmId);
+    }
+}
@@ -21,9 +21,13 @@ package org.dasein.cloud.azure.platform;
 import org.apache.commons.collections.Closure;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.collections.Predicate;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureParallelRequests;
 import org.dasein.cloud.azure.AzureRequester;
 import org.dasein.cloud.azure.IpUtils;
 import org.dasein.cloud.azure.platform.model.*;
@@ -35,12 +39,28 @@ import org.joda.time.DateTime;
 import javax.annotation.Nonnull;
 import javax.xml.crypto.Data;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * Created by Vlad_Munthiu on 10/28/2014.
  */
 
 public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
+    static private final Logger logger = Azure.getLogger(AzureSqlDatabaseSupport.class);
+
+    /**
+     * Maximum number of per server requests a database or backup listing runs at the same time.
+     */
+    static public final String LIST_PARALLELISM = "azure.sql.listParallelism";
+    /**
+     * Seconds a database or backup listing allows for connecting to and for each read from the requests of a
+     * server before giving up on it.
+     */
+    static public final String LIST_TIMEOUT     = "azure.sql.listTimeoutSeconds";
+
+    static private final long DEFAULT_LIST_PARALLELISM = 8L;
+    static private final long DEFAULT_LIST_TIMEOUT     = 60L;
+
     private Azure provider;
 
     public AzureSqlDatabaseSupport(Azure provider) {
@@ -95,6 +115,7 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
 
         HttpUriRequest createServerRequest =  new AzureSQLDatabaseSupportRequests(provider).createServer(serverToCreate).build();
         ServerNameModel resultServerName = new AzureRequester(provider, createServerRequest).withXmlProcessor(ServerNameModel.class).execute();
+        SqlServerIndex.getInstance(provider).invalidate();
 
         try {
             String productGUID = getProductGUID(product);
@@ -112,6 +133,7 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
             //delete server
             HttpUriRequest deleteServerRequest = new AzureSQLDatabaseSupportRequests(provider).deleteServer(resultServerName.getName()).build();
             new AzureRequester(provider, deleteServerRequest).execute();
+            SqlServerIndex.getInstance(provider).invalidate();
             throw new CloudException("Could not create database. " + ex.getMessage());
         }
     }
@@ -168,21 +190,10 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
         if(providerDatabaseIdParts.size() != 2)
             throw new InternalException("Invalid name for the provider database id");
 
-        HttpUriRequest listServersRequest = new AzureSQLDatabaseSupportRequests(this.provider).listServersNonGen().build();
-
-        ServersModel serversModel = new AzureRequester(provider, listServersRequest).withXmlProcessor(ServersModel.class).execute();
-
-        if(serversModel == null || serversModel.getServers() == null)
-            return null;
+        // the server index is kept by listings, so a known server costs no request of its own
+        String serverLocation = SqlServerIndex.getInstance(provider).getLocation(provider, providerDatabaseIdParts.get(0));
 
-        Object serverFound = CollectionUtils.find(serversModel.getServers(), new Predicate() {
-            @Override
-            public boolean evaluate(Object object) {
-                return providerDatabaseIdParts.get(0).equalsIgnoreCase(((ServerModel)object).getName());
-            }
-        });
-
-        if(serverFound == null)
+        if(serverLocation == null)
             return null;
 
         HttpUriRequest httpUriRequest = new AzureSQLDatabaseSupportRequests(provider)
@@ -196,7 +207,7 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
         }, DatabaseServiceResourceModel.class).execute();
 
         //getDatabase is a global search so set server location for database
-        database.setProviderRegionId(((ServerModel) serverFound).getLocation());
+        database.setProviderRegionId(serverLocation);
         return database;
     }
 
@@ -318,6 +329,7 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
             return databases;
 
         List<ServerModel> servers = serversModel.getServers();
+        SqlServerIndex.getInstance(provider).update(servers);
         CollectionUtils.filter(servers, new Predicate() {
             @Override
             public boolean evaluate(Object object) {
@@ -325,23 +337,107 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
             }
         });
 
-        for (ServerModel serverModel : servers){
-            HttpUriRequest serverHttpUriRequest = new AzureSQLDatabaseSupportRequests(this.provider).listDatabases(serverModel.getName()).build();
-            DatabaseServiceResourcesModel databaseServiceResourcesModel =
-                    new AzureRequester(provider, serverHttpUriRequest).withXmlProcessor(DatabaseServiceResourcesModel.class).execute();
+        Map<String, Callable<List<Database>>> tasks = new LinkedHashMap<String, Callable<List<Database>>>();
 
-            if (databaseServiceResourcesModel == null)
-                continue;
-
-            for (DatabaseServiceResourceModel databaseModel : databaseServiceResourcesModel.getDatabaseServiceResourceModels()){
-                if(!databaseModel.getName().equalsIgnoreCase("master"))
-                    databases.add(databaseFrom(databaseModel, serverModel.getName()));
-            }
+        for (final ServerModel serverModel : servers){
+            tasks.put(serverModel.getName(), new Callable<List<Database>>() {
+                @Override
+                public List<Database> call() throws Exception {
+                    return getDatabasesForServer(serverModel.getName());
+                }
+            });
         }
+        databases.addAll(fetchFromServers(tasks));
+        return databases;
+    }
+
+    private List<Database> getDatabasesForServer(String serverName) throws CloudException, InternalException {
+        ArrayList<Database> databases = new ArrayList<Database>();
+        HttpUriRequest serverHttpUriRequest = withListTimeout(new AzureSQLDatabaseSupportRequests(this.provider).listDatabases(serverName));
+        DatabaseServiceResourcesModel databaseServiceResourcesModel =
+                new AzureRequester(provider, serverHttpUriRequest).withXmlProcessor(DatabaseServiceResourcesModel.class).execute();
 
+        if (databaseServiceResourcesModel == null || databaseServiceResourcesModel.getDatabaseServiceResourceModels() == null)
+            return databases;
+
+        ArrayList<String> names = new ArrayList<String>();
+        for (DatabaseServiceResourceModel databaseModel : databaseServiceResourcesModel.getDatabaseServiceResourceModels()){
+            names.add(databaseModel.getName());
+            if(!databaseModel.getName().equalsIgnoreCase("master"))
+                databases.add(databaseFrom(databaseModel, serverName));
+        }
+        SqlServerIndex.getInstance(provider).setDatabases(serverName, names);
         return databases;
     }
 
+    /**
+     * Builds a per server request of a listing with the {@link #LIST_TIMEOUT} as its connect and socket timeout,
+     * so that a server that stops responding fails its own request rather than holding up the whole listing.
+     * @param request the request to build
+     * @return the request with its own timeouts
+     * @throws CloudException the connection settings of the provider could not be determined
+     * @throws InternalException the connection settings of the provider could not be determined due to a local error
+     */
+    private HttpUriRequest withListTimeout(RequestBuilder request) throws CloudException, InternalException {
+        int timeout = (int)Math.min(Integer.MAX_VALUE, provider.getSetting(LIST_TIMEOUT, DEFAULT_LIST_TIMEOUT) * 1000L);
+        // a request config replaces the default one of the client as a whole, so start from the default
+        RequestConfig config = RequestConfig.copy(provider.getManagementConnectionPool().getRequestConfig())
+                .setConnectTimeout(timeout)
+                .setSocketTimeout(timeout)
+                .build();
+
+        return request.setConfig(config).build();
+    }
+
+    /**
+     * Runs the per server requests of a listing concurrently and merges their results in the order in which the
+     * servers were listed. Each request carries its own timeout (see {@link #withListTimeout(RequestBuilder)}); a
+     * server that fails or times out is logged and left out of the listing, unless every single one failed, in
+     * which case the listing itself fails.
+     * @param tasks the per server requests keyed by server name
+     * @param <T> the type of resource being listed
+     * @return the merged results of the servers that could be loaded
+     * @throws CloudException none of the servers could be loaded
+     * @throws InternalException none of the servers could be loaded due to a local error
+     */
+    private <T> List<T> fetchFromServers(Map<String, Callable<List<T>>> tasks) throws CloudException, InternalException {
+        ArrayList<T> results = new ArrayList<T>();
+
+        if (tasks.isEmpty())
+            return results;
+
+        int parallelism = (int)Math.max(1L, provider.getSetting(LIST_PARALLELISM, DEFAULT_LIST_PARALLELISM));
+        // only a backstop for requests that keep trickling in data; servers are worked off in rounds of at most
+        // parallelism requests, each of which is bounded by its own timeout
+        long rounds = (tasks.size() + parallelism - 1) / parallelism;
+        long timeout = provider.getSetting(LIST_TIMEOUT, DEFAULT_LIST_TIMEOUT) * 1000L * rounds * 2L;
+        List<AzureParallelRequests.Outcome<List<T>>> outcomes = AzureParallelRequests.invokeAll(provider, tasks, parallelism, timeout);
+        Throwable failure = null;
+        int loaded = 0;
+
+        for (AzureParallelRequests.Outcome<List<T>> outcome : outcomes){
+            if (outcome.isSuccess()) {
+                loaded++;
+                if (outcome.getResult() != null)
+                    results.addAll(outcome.getResult());
+            }
+            else {
+                failure = outcome.getError();
+                logger.warn("Unable to list server " + outcome.getKey() + ": " + failure.getMessage());
+                if (logger.isDebugEnabled())
+                    logger.debug("Server " + outcome.getKey() + " failed", failure);
+            }
+        }
+        if (loaded == 0 && failure != null) {
+            if (failure instanceof CloudException)
+                throw (CloudException) failure;
+            if (failure instanceof InternalException)
+                throw (InternalException) failure;
+            throw new CloudException(failure);
+        }
+        return results;
+    }
+
     private Database databaseFrom(DatabaseServiceResourceModel databaseServiceResourceModel, String serverName){
         if(databaseServiceResourceModel == null)
             return null;
@@ -389,18 +485,38 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
 
         new AzureRequester(provider, deleteDatabaseRequest).execute();
 
+        // the delete succeeded, so the database is gone whether or not the index knew about it
+        SqlServerIndex index = SqlServerIndex.getInstance(provider);
+        index.databaseRemoved(providerDatabaseIdParts.get(0), providerDatabaseIdParts.get(1));
+
+        // the index may only spare the listing when it shows databases left on the server; deleting the server
+        // is decided on a fresh listing, so that a stale index can never remove a server that still holds data
+        Set<String> remaining = index.getDatabases(provider, providerDatabaseIdParts.get(0));
+        if(remaining != null && hasUserDatabases(remaining))
+            return;
+
         HttpUriRequest serverHttpUriRequest = new AzureSQLDatabaseSupportRequests(this.provider).listDatabases(providerDatabaseIdParts.get(0)).build();
         DatabaseServiceResourcesModel databaseServiceResourcesModel =
                 new AzureRequester(provider, serverHttpUriRequest).withXmlProcessor(DatabaseServiceResourcesModel.class).execute();
 
-        if(databaseServiceResourcesModel == null || databaseServiceResourcesModel.getDatabaseServiceResourceModels().size() > 1)
+        if(databaseServiceResourcesModel == null || databaseServiceResourcesModel.getDatabaseServiceResourceModels() == null)
             return;
 
-        if(databaseServiceResourcesModel.getDatabaseServiceResourceModels().size() == 1 && !databaseServiceResourcesModel.getDatabaseServiceResourceModels().get(0).getName().equalsIgnoreCase("master"))
+        remaining = new HashSet<String>();
+        for (DatabaseServiceResourceModel databaseModel : databaseServiceResourcesModel.getDatabaseServiceResourceModels())
+            remaining.add(databaseModel.getName().toLowerCase());
+        index.setDatabases(providerDatabaseIdParts.get(0), remaining);
+
+        if(hasUserDatabases(remaining))
             return;
 
         HttpUriRequest deleteServerRequest = new AzureSQLDatabaseSupportRequests(provider).deleteServer(providerDatabaseIdParts.get(0)).build();
         new AzureRequester(provider, deleteServerRequest).execute();
+        index.invalidate();
+    }
+
+    private boolean hasUserDatabases(Set<String> databases) {
+        return databases.size() > 1 || (databases.size() == 1 && !databases.contains("master"));
     }
 
     @Override
@@ -461,13 +577,19 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
             if (serversModel == null)
                 return backups;
 
-            CollectionUtils.forAllDo(serversModel.getServerServiceResourcesModels(), new Closure() {
-                @Override
-                public void execute(Object input) {
-                    final ServerServiceResourceModel serverModel = (ServerServiceResourceModel) input;
-                    backups.addAll(getBackupsForServer(serverModel.getName()));
+            Map<String, Callable<List<DatabaseBackup>>> tasks = new LinkedHashMap<String, Callable<List<DatabaseBackup>>>();
+
+            if (serversModel.getServerServiceResourcesModels() != null) {
+                for (final ServerServiceResourceModel serverModel : serversModel.getServerServiceResourcesModels()) {
+                    tasks.put(serverModel.getName(), new Callable<List<DatabaseBackup>>() {
+                        @Override
+                        public List<DatabaseBackup> call() throws Exception {
+                            return loadBackupsForServer(serverModel.getName());
+                        }
+                    });
                 }
-            });
+            }
+            backups.addAll(fetchFromServers(tasks));
         } else {
             List<String> providerDBIdParts = Arrays.asList(forOptionalProviderDatabaseId.split(":"));
             if(providerDBIdParts.size() != 2)
@@ -490,30 +612,40 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
     }
 
     private ArrayList<DatabaseBackup> getBackupsForServer(final String serverName){
-        final ArrayList<DatabaseBackup> backups = new ArrayList<DatabaseBackup>();
         try {
-            HttpUriRequest serverListBackupsRequest = new AzureSQLDatabaseSupportRequests(provider).getRecoverableDatabases(serverName).build();
-            RecoverableDatabasesModel recoverableDatabasesModel = new AzureRequester(provider, serverListBackupsRequest).withXmlProcessor(RecoverableDatabasesModel.class).execute();
-
-            CollectionUtils.forAllDo(recoverableDatabasesModel.getRecoverableDatabaseModels(), new Closure() {
-                @Override
-                public void execute(Object input) {
-                    RecoverableDatabaseModel recoverableDatabaseModel = (RecoverableDatabaseModel) input;
-
-                    DatabaseBackup databaseBackup = new DatabaseBackup();
-                    databaseBackup.setProviderDatabaseId(String.format("%s:%s", serverName, getDatabaseName(recoverableDatabaseModel)));
-                    databaseBackup.setProviderOwnerId(provider.getContext().getAccountNumber());
-                    databaseBackup.setProviderRegionId(provider.getContext().getRegionId());
-                    databaseBackup.setCurrentState(DatabaseBackupState.AVAILABLE);
-                    databaseBackup.setProviderBackupId(recoverableDatabaseModel.getName());
-                    backups.add(databaseBackup);
-                }
-            });
-
+            return loadBackupsForServer(serverName);
         } catch (CloudException e) {
-            e.printStackTrace();
+            logger.warn("Unable to list the backups of server " + serverName + ": " + e.getMessage());
+        } catch (InternalException e) {
+            logger.warn("Unable to list the backups of server " + serverName + ": " + e.getMessage());
         }
 
+        return new ArrayList<DatabaseBackup>();
+    }
+
+    private ArrayList<DatabaseBackup> loadBackupsForServer(final String serverName) throws CloudException, InternalException {
+        final ArrayList<DatabaseBackup> backups = new ArrayList<DatabaseBackup>();
+        HttpUriRequest serverListBackupsRequest = withListTimeout(new AzureSQLDatabaseSupportRequests(provider).getRecoverableDatabases(serverName));
+        RecoverableDatabasesModel recoverableDatabasesModel = new AzureRequester(provider, serverListBackupsRequest).withXmlProcessor(RecoverableDatabasesModel.class).execute();
+
+        if (recoverableDatabasesModel == null)
+            return backups;
+
+        CollectionUtils.forAllDo(recoverableDatabasesModel.getRecoverableDatabaseModels(), new Closure() {
+            @Override
+            public void execute(Object input) {
+                RecoverableDatabaseModel recoverableDatabaseModel = (RecoverableDatabaseModel) input;
+
+                DatabaseBackup databaseBackup = new DatabaseBackup();
+                databaseBackup.setProviderDatabaseId(String.format("%s:%s", serverName, getDatabaseName(recoverableDatabaseModel)));
+                databaseBackup.setProviderOwnerId(provider.getContext().getAccountNumber());
+                databaseBackup.setProviderRegionId(provider.getContext().getRegionId());
+                databaseBackup.setCurrentState(DatabaseBackupState.AVAILABLE);
+                databaseBackup.setProviderBackupId(recoverableDatabaseModel.getName());
+                backups.add(databaseBackup);
+            }
+        });
+
         return backups;
     }
 
@@ -550,6 +682,7 @@ public class AzureSqlDatabaseSupport implements RelationalDatabaseSupport {
         HttpUriRequest createFromBackupRequest =
                 new AzureSQLDatabaseSupportRequests(provider).createDatabaseFromBackup(serverName, createDatabaseRestoreModel).build();
         new AzureRequester(provider, createFromBackupRequest).execute();
+        SqlServerIndex.getInstance(provider).databasesChanged(serverName);
     }
 
     @Override
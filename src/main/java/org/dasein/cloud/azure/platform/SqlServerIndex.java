@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.platform;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureConfigException;
+import org.dasein.cloud.azure.AzureRequester;
+import org.dasein.cloud.azure.AzureX509;
+import org.dasein.cloud.azure.platform.model.ServerModel;
+import org.dasein.cloud.azure.platform.model.ServersModel;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A short lived index of the SQL servers of a subscription and, where known, the databases on each of them,
+ * shared by every provider instance using the same credentials. Listings refresh the index as a side effect so
+ * that point lookups and deletes can resolve a server without listing all servers again.
+ * <p>
+ * The index is reloaded once it is older than {@link #TTL} seconds, or when a server it does not know about is
+ * asked for. Only one thread reloads it at a time. The databases of a server expire after the same time, counted
+ * from the database listing they were read from. Creating or deleting servers and databases through this driver
+ * updates the index right away.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class SqlServerIndex {
+    static private final Logger logger = Azure.getLogger(SqlServerIndex.class);
+
+    static public final String TTL = "azure.sql.serverCacheSeconds";
+
+    static private final long DEFAULT_TTL = 60L;
+
+    static private final ConcurrentHashMap<String,SqlServerIndex> indexes = new ConcurrentHashMap<String, SqlServerIndex>();
+
+    static @Nonnull SqlServerIndex getInstance(@Nonnull Azure provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        // servers are a subscription wide resource, so the region is not part of the key
+        String key = AzureX509.getFingerprint(provider) + "@" + ctx.getEndpoint() + "|" + ctx.getAccountNumber();
+        SqlServerIndex index = indexes.get(key);
+
+        if( index == null ) {
+            index = new SqlServerIndex();
+
+            SqlServerIndex existing = indexes.putIfAbsent(key, index);
+
+            if( existing != null ) {
+                index = existing;
+            }
+        }
+        return index;
+    }
+
+    static private class Databases {
+        private final Set<String> names;
+        private final long        listedAt;
+
+        private Databases(@Nonnull Set<String> names, long listedAt) {
+            this.names = names;
+            this.listedAt = listedAt;
+        }
+    }
+
+    static private class Server {
+        private final String location;
+        // null while the databases of the server are not known
+        private volatile Databases databases;
+
+        private Server(@Nullable String location, @Nullable Databases databases) {
+            this.location = location;
+            this.databases = databases;
+        }
+    }
+
+    private final Object loadLock = new Object();
+
+    private volatile Map<String,Server> servers  = null;
+    private volatile long               loadedAt = 0L;
+
+    private SqlServerIndex() { }
+
+    /**
+     * Replaces the index with the result of a server listing. Databases already known for servers that are still
+     * listed are kept until they expire.
+     * @param listed the servers of the subscription
+     */
+    void update(@Nonnull Collection<ServerModel> listed) {
+        synchronized( loadLock ) {
+            Map<String,Server> current = servers;
+            HashMap<String,Server> index = new HashMap<String, Server>();
+
+            for( ServerModel server : listed ) {
+                if( server.getName() == null ) {
+                    continue;
+                }
+                String name = server.getName().toLowerCase();
+                Server known = (current == null ? null : current.get(name));
+
+                index.put(name, new Server(server.getLocation(), known == null ? null : known.databases));
+            }
+            servers = Collections.unmodifiableMap(index);
+            loadedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @param provider the provider on whose behalf the servers are listed if needed
+     * @param serverName the server
+     * @return the region of the server, or <code>null</code> if there is no such server
+     * @throws CloudException the servers could not be listed
+     * @throws InternalException the servers could not be listed due to a local error
+     */
+    @Nullable String getLocation(@Nonnull Azure provider, @Nonnull String serverName) throws CloudException, InternalException {
+        Server server = getServer(provider, serverName);
+
+        return (server == null ? null : server.location);
+    }
+
+    /**
+     * @param provider the provider whose settings apply
+     * @param serverName the server
+     * @return the databases on the server, including master, or <code>null</code> if they are not known or were
+     * listed more than {@link #TTL} seconds ago
+     */
+    @Nullable Set<String> getDatabases(@Nonnull Azure provider, @Nonnull String serverName) {
+        Databases databases = getKnownDatabases(serverName);
+
+        if( databases == null || isExpired(provider, databases.listedAt) ) {
+            return null;
+        }
+        return databases.names;
+    }
+
+    private @Nullable Databases getKnownDatabases(@Nonnull String serverName) {
+        Map<String,Server> current = servers;
+        Server server = (current == null ? null : current.get(serverName.toLowerCase()));
+
+        return (server == null ? null : server.databases);
+    }
+
+    /**
+     * Records the databases of a server as read from a database listing of the server.
+     * @param serverName the server
+     * @param databases the databases on the server, including master
+     */
+    void setDatabases(@Nonnull String serverName, @Nonnull Collection<String> databases) {
+        setDatabases(serverName, databases, System.currentTimeMillis());
+    }
+
+    private void setDatabases(@Nonnull String serverName, @Nonnull Collection<String> databases, long listedAt) {
+        Map<String,Server> current = servers;
+        Server server = (current == null ? null : current.get(serverName.toLowerCase()));
+
+        if( server != null ) {
+            HashSet<String> names = new HashSet<String>();
+
+            for( String name : databases ) {
+                names.add(name.toLowerCase());
+            }
+            server.databases = new Databases(Collections.unmodifiableSet(names), listedAt);
+        }
+    }
+
+    /**
+     * Records that a database was deleted.
+     * @param serverName the server of the database
+     * @param databaseName the deleted database
+     */
+    void databaseRemoved(@Nonnull String serverName, @Nonnull String databaseName) {
+        Databases known = getKnownDatabases(serverName);
+
+        if( known != null ) {
+            HashSet<String> names = new HashSet<String>(known.names);
+
+            names.remove(databaseName.toLowerCase());
+            // the rest of the set is no more recent than the listing it came from
+            setDatabases(serverName, names, known.listedAt);
+        }
+    }
+
+    /**
+     * Forgets the databases of a server, for example because one was created on it.
+     * @param serverName the server
+     */
+    void databasesChanged(@Nonnull String serverName) {
+        Map<String,Server> current = servers;
+        Server server = (current == null ? null : current.get(serverName.toLowerCase()));
+
+        if( server != null ) {
+            server.databases = null;
+        }
+    }
+
+    /**
+     * Drops the whole index, so that the next lookup lists the servers again.
+     */
+    void invalidate() {
+        synchronized( loadLock ) {
+            servers = null;
+        }
+    }
+
+    private @Nullable Server getServer(@Nonnull Azure provider, @Nonnull String serverName) throws CloudException, InternalException {
+        String name = serverName.toLowerCase();
+        Map<String,Server> current = servers;
+
+        if( current != null && !isExpired(provider, loadedAt) ) {
+            Server server = current.get(name);
+
+            if( server != null ) {
+                return server;
+            }
+        }
+        synchronized( loadLock ) {
+            if( servers != null && servers != current ) {
+                // another thread reloaded the index while we were waiting
+                return servers.get(name);
+            }
+            load(provider);
+            return servers.get(name);
+        }
+    }
+
+    private boolean isExpired(@Nonnull Azure provider, long since) {
+        return (System.currentTimeMillis() - since) > provider.getSetting(TTL, DEFAULT_TTL) * 1000L;
+    }
+
+    private void load(@Nonnull Azure provider) throws CloudException, InternalException {
+        HttpUriRequest listServersRequest = new AzureSQLDatabaseSupportRequests(provider).listServersNonGen().build();
+        ServersModel serversModel = new AzureRequester(provider, listServersRequest).withXmlProcessor(ServersModel.class).execute();
+        Collection<ServerModel> listed = (serversModel == null || serversModel.getServers() == null ? Collections.<ServerModel>emptyList() : serversModel.getServers());
+
+        update(listed);
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Indexed " + listed.size() + " SQL servers");
+        }
+    }
+}
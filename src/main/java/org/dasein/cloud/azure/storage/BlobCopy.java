@@ -0,0 +1,394 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureOperationTracker;
+import org.dasein.cloud.azure.AzureParallelRequests;
+import org.dasein.cloud.azure.AzureStorageMethod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A server-side copy of a blob. Storage copies a blob in the background and reports the progress of the copy in
+ * the properties of the target blob, so starting a copy returns a handle at once and the handle follows the copy
+ * until it ends.
+ * <p>
+ * Copies are scheduled on the scheduler thread of {@link AzureOperationTracker}, which only decides which copy to
+ * check next; the checks themselves are HEAD requests made on the shared request pool. The interval between the
+ * checks of a copy and the time after which a copy is given up follow the polling settings of the tracker, so that
+ * small copies are noticed within a second and long ones cost few requests. A move, which is a copy followed by
+ * the removal of the source, removes the source as soon as the copy has succeeded.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class BlobCopy implements Future<Void> {
+    static private final Logger logger = Azure.getLogger(BlobCopy.class);
+
+    // the first storage API version that copies asynchronously and reports x-ms-copy-status
+    static private final String COPY_VERSION = "2012-02-12";
+
+    static public final String STATUS_PENDING = "pending";
+    static public final String STATUS_SUCCESS = "success";
+    static public final String STATUS_ABORTED = "aborted";
+    static public final String STATUS_FAILED  = "failed";
+
+    /**
+     * Starts a server-side copy of a blob within the storage account.
+     * @param provider the provider whose storage account holds both blobs
+     * @param sourceBucket the container of the source blob
+     * @param sourceObject the source blob
+     * @param targetBucket the container of the target blob
+     * @param targetObject the target blob
+     * @param removeSource true to remove the source once the copy has succeeded, making the copy a move
+     * @return the handle of the copy, which may already be complete
+     * @throws CloudException the copy could not be started
+     * @throws InternalException the copy could not be started due to a local error
+     */
+    static @Nonnull BlobCopy start(@Nonnull Azure provider, @Nonnull String sourceBucket, @Nonnull String sourceObject, @Nonnull String targetBucket, @Nonnull String targetObject, boolean removeSource) throws CloudException, InternalException {
+        AzureStorageMethod method = new AzureStorageMethod(provider).withVersion(COPY_VERSION);
+        HashMap<String, String> headers = new HashMap<String, String>();
+        String target = targetBucket + "/" + targetObject;
+
+        headers.put("x-ms-copy-source", method.buildUrl(sourceBucket + "/" + sourceObject, null));
+
+        String status = method.getBlobProperty(AzureStorageMethod.Storage_OPERATION_PUT, target, new TreeMap<String, String>(), null, headers, true, "x-ms-copy-status");
+        BlobCopy copy = new BlobCopy(provider, sourceBucket + "/" + sourceObject, target, removeSource);
+
+        if( status == null ) {
+            // the copy API version always reports a status, so there is none only when the copy was answered with 404
+            throw new CloudException("No such object: " + sourceBucket + "/" + sourceObject);
+        }
+        if( status.equalsIgnoreCase(STATUS_SUCCESS) ) {
+            // most copies within an account complete right away; finish them on the caller's thread
+            copy.succeeded();
+            return copy;
+        }
+        if( !status.equalsIgnoreCase(STATUS_PENDING) ) {
+            throw new CloudException("Copy of " + copy.source + " to " + target + " ended with status " + status);
+        }
+        provider.hold();
+        copy.held = true;
+        copy.schedule();
+        return copy;
+    }
+
+    private final Azure          provider;
+    private final String         source;
+    private final String         target;
+    private final boolean        removeSource;
+    private final long           started = System.currentTimeMillis();
+    private final long           timeout;
+    private final long           maxDelay;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private long      delay;
+    private int       checks        = 0;
+    private String    copyId        = null;
+    private long      bytesCopied   = -1L;
+    private long      bytesTotal    = -1L;
+    private boolean   finished      = false;
+    private boolean   cancelled     = false;
+    private boolean   held          = false;
+    private Throwable error         = null;
+
+    private BlobCopy(@Nonnull Azure provider, @Nonnull String source, @Nonnull String target, boolean removeSource) {
+        this.provider = provider;
+        this.source = source;
+        this.target = target;
+        this.removeSource = removeSource;
+        this.delay = AzureOperationTracker.getInitialPoll(provider);
+        this.maxDelay = AzureOperationTracker.getMaxPoll(provider);
+        this.timeout = AzureOperationTracker.getTimeout(provider);
+    }
+
+    /**
+     * @return the source of the copy as container/blob
+     */
+    public @Nonnull String getSource() {
+        return source;
+    }
+
+    /**
+     * @return the target of the copy as container/blob
+     */
+    public @Nonnull String getTarget() {
+        return target;
+    }
+
+    /**
+     * @return the number of bytes copied so far, or -1 if no progress has been reported yet
+     */
+    public synchronized long getBytesCopied() {
+        return bytesCopied;
+    }
+
+    /**
+     * @return the size of the source blob, or -1 if no progress has been reported yet
+     */
+    public synchronized long getBytesTotal() {
+        return bytesTotal;
+    }
+
+    /**
+     * @return the number of status checks made for this copy so far
+     */
+    public synchronized int getStatusChecks() {
+        return checks;
+    }
+
+    private void schedule() {
+        long next;
+
+        synchronized( this ) {
+            next = delay;
+            delay = Math.min(maxDelay, delay * 2L);
+        }
+        AzureOperationTracker.schedule(new Runnable() {
+            public void run() {
+                // the check itself runs on the request pool, so that a slow response cannot delay other copies
+                AzureParallelRequests.submit(provider, new Callable<Void>() {
+                    public Void call() {
+                        check();
+                        return null;
+                    }
+                });
+            }
+        }, next);
+    }
+
+    private void check() {
+        if( isDone() ) {
+            return;
+        }
+        try {
+            Map<String, String> properties = new AzureStorageMethod(provider).withVersion(COPY_VERSION).getBlobProperties(target, new HashMap<String, String>());
+
+            synchronized( this ) {
+                checks++;
+            }
+            if( properties == null ) {
+                fail(new CloudException("The target " + target + " of a pending copy no longer exists"));
+                return;
+            }
+            String status = properties.get("x-ms-copy-status");
+
+            progress(properties.get("x-ms-copy-id"), properties.get("x-ms-copy-progress"));
+            if( status == null || status.equalsIgnoreCase(STATUS_SUCCESS) ) {
+                succeeded();
+                return;
+            }
+            if( !status.equalsIgnoreCase(STATUS_PENDING) ) {
+                String description = properties.get("x-ms-copy-status-description");
+
+                fail(new CloudException("Copy of " + source + " to " + target + " ended with status " + status + (description == null ? "" : ": " + description)));
+                return;
+            }
+        }
+        catch( Throwable t ) {
+            // a failed check says nothing about the copy; try again at the next interval
+            logger.warn("Unable to check the copy of " + source + " to " + target + ": " + t.getMessage());
+        }
+        if( System.currentTimeMillis() - started > timeout ) {
+            fail(new CloudException("Copy of " + source + " to " + target + " did not complete within " + TimeUnit.MILLISECONDS.toMinutes(timeout) + " minutes"));
+            return;
+        }
+        schedule();
+    }
+
+    private synchronized void progress(@Nullable String id, @Nullable String progress) {
+        if( id != null ) {
+            copyId = id;
+        }
+        if( progress != null ) {
+            int idx = progress.indexOf('/');
+
+            if( idx > 0 ) {
+                try {
+                    bytesCopied = Long.parseLong(progress.substring(0, idx).trim());
+                    bytesTotal = Long.parseLong(progress.substring(idx + 1).trim());
+                }
+                catch( NumberFormatException e ) {
+                    logger.warn("Invalid copy progress for " + target + ": " + progress);
+                }
+            }
+        }
+    }
+
+    private void succeeded() {
+        if( removeSource ) {
+            try {
+                new AzureStorageMethod(provider).invoke(AzureStorageMethod.Storage_OPERATION_DELETE, source, new HashMap<String, String>(), null, null, true);
+            }
+            catch( Throwable t ) {
+                fail(new CloudException("Copied " + source + " to " + target + " but could not remove the source: " + t.getMessage()));
+                return;
+            }
+        }
+        finish(null);
+        if( logger.isInfoEnabled() ) {
+            logger.info("Copy of " + source + " to " + target + " completed after " + checks + " status checks in " + (System.currentTimeMillis() - started) + "ms");
+        }
+    }
+
+    private void fail(@Nonnull Throwable t) {
+        logger.error(t.getMessage());
+        finish(t);
+    }
+
+    private void finish(@Nullable Throwable t) {
+        boolean release;
+
+        synchronized( this ) {
+            if( finished ) {
+                return;
+            }
+            finished = true;
+            error = t;
+            release = held;
+        }
+        done.countDown();
+        if( release ) {
+            provider.release();
+        }
+    }
+
+    /**
+     * Stops following the copy and asks storage to abort it. A copy that has already completed is not affected.
+     * @param mayInterruptIfRunning ignored, the copy runs in the storage service rather than in a thread
+     * @return true if the copy was still pending
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized( this ) {
+            if( finished ) {
+                return false;
+            }
+            cancelled = true;
+        }
+        AzureParallelRequests.submit(provider, new Callable<Void>() {
+            public Void call() {
+                abort();
+                return null;
+            }
+        });
+        finish(null);
+        return true;
+    }
+
+    private void abort() {
+        try {
+            AzureStorageMethod method = new AzureStorageMethod(provider).withVersion(COPY_VERSION);
+            String id;
+
+            synchronized( this ) {
+                id = copyId;
+            }
+            if( id == null ) {
+                Map<String, String> properties = method.getBlobProperties(target, new HashMap<String, String>());
+
+                id = (properties == null ? null : properties.get("x-ms-copy-id"));
+            }
+            if( id == null ) {
+                return;
+            }
+            TreeMap<String, String> queries = new TreeMap<String, String>();
+            HashMap<String, String> headers = new HashMap<String, String>();
+
+            queries.put("comp", "copy");
+            queries.put("copyid", id);
+            headers.put("x-ms-copy-action", "abort");
+            method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, target, queries, null, headers, true);
+        }
+        catch( Throwable t ) {
+            // the copy may have completed in the meantime
+            logger.warn("Unable to abort the copy of " + source + " to " + target + ": " + t.getMessage());
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    public synchronized boolean isDone() {
+        return finished;
+    }
+
+    public Void get() throws InterruptedException, ExecutionException {
+        done.await();
+        return getResult();
+    }
+
+    public Void get(long timeout, @Nonnull TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if( !done.await(timeout, unit) ) {
+            throw new TimeoutException("Copy of " + source + " to " + target + " is still pending");
+        }
+        return getResult();
+    }
+
+    private synchronized Void getResult() throws ExecutionException {
+        if( cancelled ) {
+            throw new CancellationException("Copy of " + source + " to " + target + " was cancelled");
+        }
+        if( error != null ) {
+            throw new ExecutionException(error);
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the copy to complete.
+     * @throws CloudException the copy failed or was cancelled
+     * @throws InternalException the wait was interrupted
+     */
+    public void waitFor() throws CloudException, InternalException {
+        try {
+            get();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while waiting for the copy of " + source + " to " + target);
+        }
+        catch( CancellationException e ) {
+            throw new CloudException(e.getMessage());
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            throw new InternalException(cause);
+        }
+    }
+}
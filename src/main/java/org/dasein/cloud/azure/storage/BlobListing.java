@@ -0,0 +1,237 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.storage.Blob;
+import org.dasein.util.Jiterator;
+import org.dasein.util.uom.storage.Byte;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Reads one page of a container listing (<code>restype=container&amp;comp=list</code>) with a streaming parser.
+ * Every blob is pushed to the iterator as soon as its element has been read, so a page of thousands of blobs is
+ * never held in memory as a document and consumers see the first blobs while the rest of the page is still
+ * arriving.
+ * <p>
+ * When the listing was requested with a delimiter, the virtual directories in the page (<code>BlobPrefix</code>)
+ * are pushed as containers named after the bucket and the prefix.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class BlobListing {
+    static private final Logger logger = Azure.getLogger(BlobListing.class);
+
+    static private final String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
+
+    static private final XMLInputFactory factory;
+
+    static {
+        factory = XMLInputFactory.newInstance();
+        // listings never need a DTD, and resolving external entities from a response is never safe
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private final String          regionId;
+    private final String          bucket;
+    private final String          delimiter;
+    private final Jiterator<Blob> iterator;
+    private final DateFormat      rfc1123Format;
+
+    private String containerUrl = null;
+    private int    count        = 0;
+
+    BlobListing(@Nonnull String regionId, @Nonnull String bucket, @Nullable String delimiter, @Nonnull Jiterator<Blob> iterator) {
+        this.regionId = regionId;
+        this.bucket = bucket;
+        this.delimiter = delimiter;
+        this.iterator = iterator;
+        this.rfc1123Format = new SimpleDateFormat(RFC1123_PATTERN, Locale.US);
+        this.rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    }
+
+    /**
+     * @return the number of blobs and prefixes pushed by all the pages read so far
+     */
+    int getCount() {
+        return count;
+    }
+
+    /**
+     * Reads a page of the listing, pushing its entries to the iterator as they are decoded.
+     * @param input the response body of the listing request; it is read to the end of the document but not closed
+     * @return the marker of the next page, or <code>null</code> if this was the last page
+     * @throws CloudException the response was not a valid listing
+     */
+    @Nullable String readPage(@Nonnull InputStream input) throws CloudException {
+        String nextMarker = null;
+        XMLStreamReader reader = null;
+
+        try {
+            reader = factory.createXMLStreamReader(input);
+            while( reader.hasNext() ) {
+                if( reader.next() != XMLStreamConstants.START_ELEMENT ) {
+                    continue;
+                }
+                String name = reader.getLocalName();
+
+                if( name.equals("EnumerationResults") ) {
+                    String url = reader.getAttributeValue(null, "ContainerName");
+
+                    if( url != null && !url.contains("://") ) {
+                        // later API versions split the container URL across two attributes
+                        String endpoint = reader.getAttributeValue(null, "ServiceEndpoint");
+
+                        url = (endpoint == null ? null : (endpoint.endsWith("/") ? endpoint : endpoint + "/") + url);
+                    }
+                    containerUrl = url;
+                }
+                else if( name.equals("Blob") ) {
+                    push(readBlob(reader));
+                }
+                else if( name.equals("BlobPrefix") ) {
+                    push(readPrefix(reader));
+                }
+                else if( name.equals("NextMarker") ) {
+                    nextMarker = reader.getElementText().trim();
+                }
+            }
+        }
+        catch( XMLStreamException e ) {
+            logger.error("Unable to parse the listing of " + bucket + ": " + e.getMessage());
+            throw new CloudException(e);
+        }
+        finally {
+            if( reader != null ) {
+                try { reader.close(); }
+                catch( Throwable ignore ) { }
+            }
+        }
+        return (nextMarker == null || nextMarker.length() < 1 ? null : nextMarker);
+    }
+
+    private void push(@Nullable Blob blob) {
+        if( blob != null ) {
+            iterator.push(blob);
+            count++;
+        }
+    }
+
+    private @Nullable Blob readBlob(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        String object = null, location = null;
+        long size = -1L, creationDate = 0L;
+        int depth = 1;
+
+        while( depth > 0 ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+                continue;
+            }
+            if( event != XMLStreamConstants.START_ELEMENT ) {
+                continue;
+            }
+            String name = reader.getLocalName();
+
+            if( name.equals("Name") ) {
+                object = reader.getElementText();
+            }
+            else if( name.equals("Url") ) {
+                location = reader.getElementText();
+            }
+            else if( name.equalsIgnoreCase("Content-Length") ) {
+                String value = reader.getElementText().trim();
+
+                try {
+                    size = Long.parseLong(value);
+                }
+                catch( NumberFormatException e ) {
+                    logger.warn("Invalid size: " + value);
+                }
+            }
+            else if( name.equalsIgnoreCase("Last-Modified") ) {
+                String value = reader.getElementText().trim();
+
+                try {
+                    creationDate = rfc1123Format.parse(value).getTime();
+                }
+                catch( ParseException e ) {
+                    logger.warn("Invalid date: " + value);
+                }
+            }
+            else {
+                // Properties, Metadata and anything else that may contain further elements
+                depth++;
+            }
+        }
+        if( object == null ) {
+            return null;
+        }
+        return Blob.getInstance(regionId, location, bucket, object, creationDate, new Storage<Byte>(size, Storage.BYTE));
+    }
+
+    private @Nullable Blob readPrefix(@Nonnull XMLStreamReader reader) throws XMLStreamException {
+        String prefix = null;
+        int depth = 1;
+
+        while( depth > 0 ) {
+            int event = reader.next();
+
+            if( event == XMLStreamConstants.END_ELEMENT ) {
+                depth--;
+            }
+            else if( event == XMLStreamConstants.START_ELEMENT ) {
+                if( reader.getLocalName().equals("Name") ) {
+                    prefix = reader.getElementText();
+                }
+                else {
+                    depth++;
+                }
+            }
+        }
+        if( prefix == null ) {
+            return null;
+        }
+        if( delimiter != null && prefix.endsWith(delimiter) && prefix.length() > delimiter.length() ) {
+            prefix = prefix.substring(0, prefix.length() - delimiter.length());
+        }
+        String location = (containerUrl == null ? null : containerUrl + "/" + prefix);
+
+        return Blob.getInstance(regionId, location, bucket + "/" + prefix, 0L);
+    }
+}
@@ -19,7 +19,6 @@
 package org.dasein.cloud.azure.storage;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -28,14 +27,15 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
 import java.util.TreeMap;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.log4j.Logger;
 import org.dasein.cloud.*;
 import org.dasein.cloud.azure.Azure;
@@ -47,7 +47,6 @@ import org.dasein.cloud.storage.Blob;
 import org.dasein.cloud.storage.BlobStoreCapabilities;
 import org.dasein.cloud.storage.FileTransfer;
 import org.dasein.cloud.util.NamingConstraints;
-import org.dasein.util.CalendarWrapper;
 import org.dasein.util.Jiterator;
 import org.dasein.util.JiteratorPopulator;
 import org.dasein.util.PopulatorThread;
@@ -68,6 +67,11 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
     static public final int                                       MAX_OBJECTS     = -1;
     static public final Storage<org.dasein.util.uom.storage.Byte> MAX_OBJECT_SIZE = new Storage<org.dasein.util.uom.storage.Byte>(5000000000L, Storage.BYTE);
 
+    static public final String LIST_PAGE_SIZE = "azure.storage.listPageSize";
+
+    // the largest page the listing operations return
+    static private final long MAX_PAGE_SIZE = 5000L;
+
     private Azure provider = null;
 
     public BlobStore(Azure provider) {
@@ -112,78 +116,55 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         return capabilities;
     }
 
-    private void commitBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull Collection<String> blockIds) throws InternalException, CloudException {
-        String resource = bucket + "/" + object ;
-
-        TreeMap <String, String> headers = new TreeMap <String, String>();
-        TreeMap <String, String> queries = new TreeMap <String, String>();
-
-        queries.put("comp", "blocklist");
-
-        //Create post body
-        Document doc = AzureStorageMethod.createDoc();
-        Element blockList = doc.createElement("BlockList");
-
-        for(String id: blockIds){
-            Element uncommitted = doc.createElement("Uncommitted");
-            uncommitted.setTextContent(id);
-            blockList.appendChild(uncommitted);
-        }
-        doc.appendChild(blockList);
-
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-
-        method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, AzureStorageMethod.convertDomToString(doc), headers, true);
-    }
-
     public void copyFile(@Nullable String sourceBucket, @Nonnull String sourceObject, @Nullable String targetBucket, @Nonnull String targetObject) throws InternalException, CloudException {
         logger.debug("ENTER - " + BlobStore.class.getName() + ".copyFile(" + sourceBucket + "," + sourceObject + "," + targetBucket + "," + targetObject + ")");
         try {
-            ProviderContext ctx = provider.getContext();
-
-            if( ctx == null ) {
-                throw new AzureConfigException("No context was set for this request");
-            }
-            String regionId = ctx.getRegionId();
-
-            if( regionId == null ) {
-                throw new AzureConfigException("No region ID was specified for this request");
-            }
-            HashMap<String,String> headers = new HashMap<String,String>();
-
-            String storageService = provider.getStorageService();
-            if( storageService == null || storageService.isEmpty()) {
-                throw new CloudException("Unable to find storage service in the current region: " + ctx.getRegionId());
-            }
-
-            headers.put("x-ms-copy-source", "/" + storageService + "/" + sourceBucket + "/" + sourceObject);
-            TreeMap <String, String> queryParams = new TreeMap <String, String>();
-            AzureStorageMethod method = new AzureStorageMethod(provider);
-
-            method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, targetBucket + "/" + targetObject, queryParams, null, headers, true);
-
-            long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 30L);
-
-            while( timeout > System.currentTimeMillis() ) {
-                try {
-                    Blob blob = getObject(targetBucket, targetObject);
-
-                    if( blob != null ) {
-                        return;
-                    }
-                }
-                catch( Throwable ignore ) {
-                    // ignore
-                }
-                try { Thread.sleep(60000L); }
-                catch( InterruptedException ignore ) { }
-            }
+            copyAsync(sourceBucket, sourceObject, targetBucket, targetObject).waitFor();
         }
         finally {
             logger.debug("EXIT - " + BlobStore.class.getName() + ".copyFile()");
         }
     }
 
+    /**
+     * Starts a server-side copy of an object and returns without waiting for it to complete.
+     * @param sourceBucket the bucket of the object to copy
+     * @param sourceObject the object to copy
+     * @param targetBucket the bucket to copy the object to
+     * @param targetObject the name of the copy
+     * @return the handle of the copy, which reports its progress and completion
+     * @throws CloudException the copy could not be started
+     * @throws InternalException the copy could not be started due to a local error
+     */
+    public @Nonnull BlobCopy copyAsync(@Nullable String sourceBucket, @Nonnull String sourceObject, @Nullable String targetBucket, @Nonnull String targetObject) throws InternalException, CloudException {
+        return startCopy(sourceBucket, sourceObject, targetBucket, targetObject, false);
+    }
+
+    /**
+     * Starts moving an object to another bucket or name and returns without waiting for it to complete. The object
+     * is copied on the server side and removed once the copy has succeeded.
+     * @param sourceBucket the bucket of the object to move
+     * @param sourceObject the object to move
+     * @param targetBucket the bucket to move the object to
+     * @param targetObject the new name of the object
+     * @return the handle of the move, which reports its progress and completion
+     * @throws CloudException the move could not be started
+     * @throws InternalException the move could not be started due to a local error
+     */
+    public @Nonnull BlobCopy moveAsync(@Nullable String sourceBucket, @Nonnull String sourceObject, @Nullable String targetBucket, @Nonnull String targetObject) throws InternalException, CloudException {
+        return startCopy(sourceBucket, sourceObject, targetBucket, targetObject, true);
+    }
+
+    private @Nonnull BlobCopy startCopy(@Nullable String sourceBucket, @Nonnull String sourceObject, @Nullable String targetBucket, @Nonnull String targetObject, boolean removeSource) throws InternalException, CloudException {
+        if( sourceBucket == null ) {
+            throw new CloudException("No source bucket was specified");
+        }
+        if( targetBucket == null ) {
+            throw new CloudException("No target bucket was specified");
+        }
+        return BlobCopy.start(provider, sourceBucket, sourceObject, targetBucket, targetObject, removeSource);
+    }
+
     @Override
     public @Nonnull Blob createBucket(@Nonnull String bucketName, boolean findFreeName) throws InternalException, CloudException {
         logger.debug("ENTER - " + BlobStore.class.getName() + ".createBucket(" + bucketName + "," + findFreeName);
@@ -232,32 +213,11 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
 
     @Override
     public boolean exists(@Nonnull String bucketName) throws InternalException, CloudException {
-        TreeMap <String, String> queries = new TreeMap <String, String>();
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-
-        queries.put("comp", "list");
-
-        Document doc = method.getAsDoc(AzureStorageMethod.Storage_OPERATION_GET, "", queries, null, null, true);
-        NodeList matches = doc.getElementsByTagName("Container");
-
-        if( matches != null ){
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node bucket = matches.item(i);
+        HashMap<String, String> queries = new HashMap<String, String>();
 
-                if( bucket.hasChildNodes() ) {
-                    NodeList attributes = bucket.getChildNodes();
-
-                    for( int j=0; j<attributes.getLength(); j++ ) {
-                        Node attr = attributes.item(j);
-
-                        if( attr.getNodeName().equalsIgnoreCase("name") && attr.hasChildNodes() && attr.getFirstChild().getNodeValue().trim().equals(bucketName) ) {
-                            return true;
-                        }
-                    }
-                }
-            }
-        }
-        return false;
+        queries.put("restype", "container");
+        // a HEAD on the container rather than a listing of every container in the account
+        return (new AzureStorageMethod(provider).getBlobProperties(bucketName, queries) != null);
     }
 
     private @Nonnull Collection<String> getBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull String blocklistType, @Nonnull String blockTypeTag) throws  InternalException, CloudException{
@@ -304,16 +264,21 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
 
     @Override
     public Blob getBucket(@Nonnull String bucketName) throws InternalException, CloudException {
-        for( Blob blob : list(null) ) {
-            if( blob.isContainer() ) {
-                String name = blob.getBucketName();
+        ProviderContext ctx = provider.getContext();
 
-                if( name != null && name.equals(bucketName) ) {
-                    return blob;
-                }
-            }
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
         }
-        return null;
+        AzureStorageMethod method = new AzureStorageMethod(provider);
+        HashMap<String, String> queries = new HashMap<String, String>();
+
+        queries.put("restype", "container");
+        Map<String, String> properties = method.getBlobProperties(bucketName, queries);
+
+        if( properties == null ) {
+            return null;
+        }
+        return Blob.getInstance(ctx.getRegionId(), method.buildUrl(bucketName, null), bucketName, parseLastModified(properties.get("Last-Modified")));
     }
 
     @Override
@@ -321,20 +286,47 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         if( bucketName == null ) {
             return null;
         }
-        for( Blob blob : list(bucketName) ) {
-            String name = blob.getObjectName();
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new AzureConfigException("No context was specified for this request");
+        }
+        String resource = bucketName + "/" + objectName;
+        AzureStorageMethod method = new AzureStorageMethod(provider);
+
+        // the properties of the blob come back as response headers, without a listing of the container or the blob body
+        Map<String, String> properties = method.getBlobProperties(resource, new HashMap<String, String>());
+
+        if( properties == null ) {
+            return null;
+        }
+        String length = properties.get("Content-Length");
+        long size = -1L;
 
-            if( name != null && name.equals(objectName) ) {
-                return blob;
+        if( length != null ) {
+            try {
+                size = Long.parseLong(length);
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid content length for " + resource + ": " + length);
             }
         }
-        return null;
+        return Blob.getInstance(ctx.getRegionId(), method.buildUrl(resource, null), bucketName, objectName, parseLastModified(properties.get("Last-Modified")), new Storage<Byte>(size, Storage.BYTE));
     }
 
     @Nullable
     @Override
     public String getSignedObjectUrl(@Nonnull String bucket, @Nonnull String object, @Nonnull String expiresEpochInSeconds) throws InternalException, CloudException {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+        long expires;
+
+        try {
+            expires = Long.parseLong(expiresEpochInSeconds.trim()) * 1000L;
+        }
+        catch( NumberFormatException e ) {
+            throw new InternalException("Invalid expiration time: " + expiresEpochInSeconds);
+        }
+        // a read-only service SAS, so that clients download straight from the storage service
+        return new AzureStorageMethod(provider).getSignedUrl(bucket + "/" + object, "r", new Date(expires));
     }
 
     @Override
@@ -342,12 +334,12 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         String resource = bucket + "/" + object;
 
         AzureStorageMethod method = new AzureStorageMethod(provider);
-        String blobProperty = "Content-Length";
 
-        String result = method.getBlobProperty(AzureStorageMethod.Storage_OPERATION_GET, resource, new HashMap<String, String>(), null, null, true, blobProperty);
+        // a HEAD request, so that the size of a blob can be read without downloading it
+        Map<String, String> properties = method.getBlobProperties(resource, new HashMap<String, String>());
 
-        if( result != null ) {
-            return new Storage<org.dasein.util.uom.storage.Byte>(Long.valueOf(result), Storage.BYTE);
+        if( properties != null && properties.get("Content-Length") != null ) {
+            return new Storage<org.dasein.util.uom.storage.Byte>(Long.valueOf(properties.get("Content-Length")), Storage.BYTE);
         }
         return null;
     }
@@ -366,6 +358,18 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
             if( bucket == null ) {
                 throw new CloudException("No bucket was specified");
             }
+            // one HEAD request for both the size and the ETag a ranged download needs
+            Map<String, String> properties = new AzureStorageMethod(provider).getBlobProperties(bucket + "/" + object, new HashMap<String, String>());
+
+            if( properties == null || properties.get("Content-Length") == null ) {
+                throw new CloudException("No such file: " + bucket + "/" + object);
+            }
+            long size = Long.parseLong(properties.get("Content-Length"));
+
+            if( size > RangeDownloader.getRangeSize(provider) ) {
+                new RangeDownloader(provider, bucket, object).download(toFile, size, properties.get("ETag"), transfer);
+                return;
+            }
             StringBuilder resource = new StringBuilder();
 
             resource.append(bucket);
@@ -440,7 +444,12 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
 
         InputStream input = method.getAsStream(AzureStorageMethod.Storage_OPERATION_GET, resource, queries, null, null, false);
 
-        return (input != null);
+        if( input == null ) {
+            return false;
+        }
+        try { input.close(); }
+        catch( IOException ignore ) { }
+        return true;
     }
 
     @Override
@@ -460,6 +469,21 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
 
     @Override
     public @Nonnull Collection<Blob> list(final @Nullable String bucket) throws CloudException, InternalException {
+        return list(bucket, null, null);
+    }
+
+    /**
+     * Lists the blobs of a bucket whose names start with the specified prefix. With a delimiter, blobs whose names
+     * contain the delimiter after the prefix are rolled up into one container per distinct name segment, named
+     * after the bucket and the segment, as with a directory listing. Without a bucket, lists the buckets.
+     * @param bucket the bucket to list, or <code>null</code> to list the buckets
+     * @param prefix only list blobs whose names start with this prefix, or <code>null</code> for all of them
+     * @param delimiter the separator of virtual directories in blob names, or <code>null</code> for a flat listing
+     * @return the blobs and virtual directories, populated in the background as the listing pages arrive
+     * @throws CloudException the listing could not be started
+     * @throws InternalException the listing could not be started due to a local error
+     */
+    public @Nonnull Collection<Blob> list(final @Nullable String bucket, final @Nullable String prefix, final @Nullable String delimiter) throws CloudException, InternalException {
         final ProviderContext ctx = provider.getContext();
         PopulatorThread <Blob> populator;
 
@@ -475,7 +499,12 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         populator = new PopulatorThread<Blob>(new JiteratorPopulator<Blob>() {
             public void populate(@Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
                 try {
-                    list(regionId, bucket, iterator);
+                    if( bucket == null ) {
+                        loadBuckets(regionId, iterator);
+                    }
+                    else {
+                        loadObjects(regionId, bucket, prefix, delimiter, iterator);
+                    }
                 }
                 finally {
                     provider.release();
@@ -486,15 +515,6 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         return populator.getResult();
     }
 
-    private void list(@Nonnull String regionId, @Nullable String bucket, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
-        if( bucket == null ) {
-            loadBuckets(regionId, iterator);
-        }
-        else {
-            loadObjects(regionId, bucket, iterator);
-        }
-    }
-
     private void loadBuckets(@Nonnull String regionId, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
         if( logger.isTraceEnabled() ) {
             logger.trace("ENTER - " + BlobStore.class.getName() + ".listBuckets()");
@@ -526,27 +546,44 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         }
     }
 
-    private void loadObjects(@Nonnull String regionId, @Nonnull String bucket, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
-        TreeMap <String, String> queries = new TreeMap <String, String>();
+    private void loadObjects(@Nonnull String regionId, @Nonnull String bucket, @Nullable String prefix, @Nullable String delimiter, @Nonnull Jiterator<Blob> iterator) throws CloudException, InternalException {
+        long pageSize = Math.max(1L, Math.min(MAX_PAGE_SIZE, provider.getSetting(LIST_PAGE_SIZE, MAX_PAGE_SIZE)));
+        BlobListing listing = new BlobListing(regionId, bucket, delimiter, iterator);
         AzureStorageMethod method = new AzureStorageMethod(provider);
+        String marker = null;
+        int pages = 0;
 
-        queries.put("restype", "container");
-        queries.put("comp", "list");
-
-
-        Document doc = method.getAsDoc(AzureStorageMethod.Storage_OPERATION_GET, bucket, queries, null, null, true);
-        if(doc == null) return;
-
-        NodeList matches = doc.getElementsByTagName("Blob");
+        do {
+            TreeMap <String, String> queries = new TreeMap <String, String>();
 
-        if(matches != null){
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Blob file = toBlob(regionId, matches.item(i), bucket, false);
+            queries.put("restype", "container");
+            queries.put("comp", "list");
+            queries.put("maxresults", String.valueOf(pageSize));
+            if( prefix != null && prefix.length() > 0 ) {
+                queries.put("prefix", prefix);
+            }
+            if( delimiter != null && delimiter.length() > 0 ) {
+                queries.put("delimiter", delimiter);
+            }
+            if( marker != null ) {
+                queries.put("marker", marker);
+            }
+            InputStream input = method.getAsStream(AzureStorageMethod.Storage_OPERATION_GET, bucket, queries, null, null, true);
 
-                if( file != null ) {
-                    iterator.push(file);
-                }
+            if( input == null ) {
+                return;
             }
+            try {
+                marker = listing.readPage(input);
+            }
+            finally {
+                try { input.close(); }
+                catch( Throwable ignore ) { }
+            }
+            pages++;
+        } while( marker != null );
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Listed " + listing.getCount() + " entries of " + bucket + " in " + pages + " pages");
         }
     }
 
@@ -589,8 +626,8 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         if( object == null ) {
             throw new CloudException("No source object was specified");
         }
-        copy(sourceBucket, object, targetBucket, object);
-        removeObject(sourceBucket, object);
+        // waits for the move to complete; moveAsync() hands out the copy instead
+        moveAsync(sourceBucket, object, targetBucket, object).waitFor();
     }
 
     @Override
@@ -599,41 +636,21 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
             throw new CloudException("No bucket was specified");
         }
 
-        try {
-            InputStream input;
-
-            try {
-                input =  new FileInputStream(file);
-            }
-            catch( IOException e ) {
-                logger.error("Error reading input file " + file + ": " + e.getMessage());
-                throw new InternalException(e);
-            }
-
-            int fileSize = input.available();
-
-            if( fileSize > (63 * 1024 * 1024) ) {
-                putBlocks(bucket, object, input);
-            }
-            else {
-                TreeMap <String, String> queries = new TreeMap <String, String>();
-                TreeMap <String, String> headers = new TreeMap <String, String>();
-                AzureStorageMethod method = new AzureStorageMethod(provider);
-                String resource = bucket + "/" + object ;
-
-                queries.put("timeout", "600");
-
-                headers.put("x-ms-blob-type", "BlockBlob");
-                headers.put("content-type", "application/octet-stream");
-                method.putWithFile(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, file, headers, true);
-            }
-        }
-        catch( IOException e ) {
-            logger.error("Error uploading file " + file + ": " + e.getMessage());
-            throw new CloudException(e);
+        if( file.length() > (63 * 1024 * 1024) ) {
+            putBlocks(bucket, object, file);
         }
+        else {
+            TreeMap <String, String> queries = new TreeMap <String, String>();
+            TreeMap <String, String> headers = new TreeMap <String, String>();
+            AzureStorageMethod method = new AzureStorageMethod(provider);
+            String resource = bucket + "/" + object ;
 
+            queries.put("timeout", "600");
 
+            headers.put("x-ms-blob-type", "BlockBlob");
+            headers.put("content-type", "application/octet-stream");
+            method.putWithFile(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, file, headers, true);
+        }
     }
 
     @Override
@@ -648,44 +665,12 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, bucket + "/" + object, new HashMap<String, String>(), content, headers, true);
     }
 
-    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull InputStream input) throws  InternalException, CloudException {
+    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull File file) throws  InternalException, CloudException {
         if( logger.isTraceEnabled() ) {
-            logger.trace("ENTER - " + BlobStore.class.getName() + ".putBlocks(" + bucket + "," + object + ",<<INPUT STREAM>>)");
+            logger.trace("ENTER - " + BlobStore.class.getName() + ".putBlocks(" + bucket + "," + object + "," + file + ")");
         }
         try {
-            int basicId = 1000;
-            int blockSize = 4 * 1024 * 1024;
-            byte[] bytes = new byte[blockSize];
-            int read;
-
-            try{
-                try {
-                    while ((read = input.read(bytes)) != -1) {
-                        String blockId = Base64.encodeBase64String(String.valueOf(basicId).getBytes());
-
-                        if( read < blockSize ) {
-                            byte [] subArray = Arrays.copyOfRange(bytes, 0, read);
-
-                            putBlocks(bucket, object, subArray, blockId);
-                        }
-                        else {
-                            putBlocks(bucket, object, bytes, blockId);
-                        }
-                        basicId ++;
-                    }
-                }
-                catch( IOException e ) {
-                    throw new CloudException(e);
-                }
-            }
-            finally{
-                try { input.close(); }
-                catch( Throwable ignore ) { }
-
-                ArrayList<String> blockIds = (ArrayList<String>)getBlocks(object, bucket, "all", "UncommittedBlocks");
-
-                commitBlocks(object, bucket, blockIds);
-            }
+            new BlockUploader(provider, bucket, object).upload(file);
         }
         finally{
             if( logger.isTraceEnabled() ) {
@@ -694,22 +679,6 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         }
     }
 
-    private void putBlocks(@Nonnull String bucket, @Nonnull String object, @Nonnull byte[] content, @Nonnull String blockId) throws  InternalException, CloudException {
-        TreeMap <String, String> queries = new TreeMap <String, String>();
-        TreeMap <String, String> headers = new TreeMap <String, String>();
-        AzureStorageMethod method = new AzureStorageMethod(provider);
-        String resource = bucket + "/" + object;
-
-        queries.put("blockid", blockId);
-        queries.put("comp", "block");
-
-        headers.put("x-ms-blob-type", "BlockBlob");
-        headers.put("content-type", "text/plain");
-
-
-        method.putWithBytes(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, content, headers, true);
-    }
-
     @Override
     public void removeBucket(@Nonnull String bucket) throws CloudException, InternalException {
         TreeMap <String, String> queries = new TreeMap <String, String>();
@@ -730,6 +699,72 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         method.invoke(AzureStorageMethod.Storage_OPERATION_DELETE, resource, new HashMap<String, String>(), null, null, true);
     }
 
+    /**
+     * Deletes many objects of a bucket concurrently. Objects that do not exist count as deleted.
+     * @param bucket the bucket holding the objects
+     * @param names the objects to delete; they are consumed as the deletes progress
+     * @param listener receives the result of every single delete, may be <code>null</code>
+     * @return the completed batch, with the number of objects deleted and the ones that could not be
+     * @throws CloudException the names could not be listed
+     * @throws InternalException the batch was interrupted
+     */
+    public @Nonnull BulkDelete removeObjects(@Nonnull String bucket, @Nonnull Iterable<String> names, @Nullable BulkDelete.Listener listener) throws CloudException, InternalException {
+        BulkDelete batch = new BulkDelete(provider, bucket, listener);
+
+        batch.run(names);
+        return batch;
+    }
+
+    /**
+     * Deletes every object of a bucket whose name starts with the specified prefix. The bucket is listed and
+     * cleared at the same time, with deletes starting as soon as the first page of the listing arrives.
+     * @param bucket the bucket holding the objects
+     * @param prefix the prefix of the objects to delete, or <code>null</code> to delete all objects of the bucket
+     * @param listener receives the result of every single delete, may be <code>null</code>
+     * @return the completed batch, with the number of objects deleted and the ones that could not be
+     * @throws CloudException the bucket could not be listed
+     * @throws InternalException the batch was interrupted
+     */
+    public @Nonnull BulkDelete removeObjectsWithPrefix(@Nonnull String bucket, @Nullable String prefix, @Nullable BulkDelete.Listener listener) throws CloudException, InternalException {
+        final Collection<Blob> blobs = list(bucket, prefix, null);
+
+        return removeObjects(bucket, new Iterable<String>() {
+            public @Nonnull Iterator<String> iterator() {
+                final Iterator<Blob> it = blobs.iterator();
+
+                return new Iterator<String>() {
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    public String next() {
+                        return it.next().getObjectName();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        }, listener);
+    }
+
+    /**
+     * Deletes many buckets concurrently, together with everything in them. Buckets that do not exist count as
+     * deleted.
+     * @param buckets the buckets to delete
+     * @param listener receives the result of every single delete, may be <code>null</code>
+     * @return the completed batch, with the number of buckets deleted and the ones that could not be
+     * @throws CloudException the batch could not be started
+     * @throws InternalException the batch was interrupted
+     */
+    public @Nonnull BulkDelete removeBuckets(@Nonnull Iterable<String> buckets, @Nullable BulkDelete.Listener listener) throws CloudException, InternalException {
+        BulkDelete batch = new BulkDelete(provider, null, listener);
+
+        batch.run(buckets);
+        return batch;
+    }
+
     @Override
     public @Nonnull String renameBucket(@Nonnull String oldName, @Nonnull String newName, boolean findFreeName) throws CloudException, InternalException {
         Blob bucket = createBucket(newName, findFreeName);
@@ -769,8 +804,8 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         if( bucket == null ) {
             throw new CloudException("No bucket was specified");
         }
-        copy(bucket, object, bucket, newName);
-        removeObject(bucket, object);
+        // waits for the rename to complete; moveAsync() hands out the copy instead
+        moveAsync(bucket, object, bucket, newName).waitFor();
     }
 
 
@@ -797,6 +832,22 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
         return NamingConstraints.getAlphaNumeric(1, 255).constrainedBy(new char[] { '-', '.', ',', '#', '+' }).limitedToLatin1().lowerCaseOnly();
     }
 
+    private long parseLastModified(@Nullable String value) {
+        if( value == null ) {
+            return 0L;
+        }
+        DateFormat rfc1123Format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+
+        rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            return rfc1123Format.parse(value).getTime();
+        }
+        catch( ParseException e ) {
+            logger.warn("Invalid date: " + value);
+            return 0L;
+        }
+    }
+
     private @Nullable Blob toBlob(@Nonnull String regionId, @Nullable Node node, @Nonnull String bucket, boolean isContainer) {
         if( node == null ) {
             return null;
@@ -845,16 +896,7 @@ public class BlobStore extends AbstractBlobStoreSupport<Azure> {
                         size = Long.valueOf(propertyValue);
                     }
                     else if( propertyName.equalsIgnoreCase("Last-Modified") ) {
-                        String RFC1123_PATTERN = "EEE, dd MMM yyyy HH:mm:ss z";
-                        DateFormat rfc1123Format = new SimpleDateFormat(RFC1123_PATTERN);
-
-                        rfc1123Format.setTimeZone(TimeZone.getTimeZone("GMT"));
-                        try {
-                            creationDate = rfc1123Format.parse(propertyValue).getTime();
-                        }
-                        catch (ParseException e) {
-                            logger.warn("Invalid date: " + propertyValue);
-                        }
+                        creationDate = parseLastModified(propertyValue);
                     }
                 }
             }
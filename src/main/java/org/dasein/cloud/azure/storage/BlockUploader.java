@@ -0,0 +1,250 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.storage;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpEntity;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureParallelRequests;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Uploads a file as a block blob, keeping several blocks in flight at the same time. Each block is sent straight
+ * from its own range of the file (see {@link FileRangeEntity}), so the file is never buffered in memory, however
+ * large it is.
+ * <p>
+ * Failed blocks are retried with a growing delay. The blob is committed from the block IDs generated by the
+ * upload itself, and only once every block has been stored.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class BlockUploader {
+    static private final Logger logger = Azure.getLogger(BlockUploader.class);
+
+    static public final String BLOCK_SIZE  = "azure.storage.blockSizeBytes";
+    static public final String CONCURRENCY = "azure.storage.uploadConcurrency";
+    static public final String RETRIES     = "azure.storage.blockRetries";
+
+    // the largest block accepted by storage API versions before LARGE_BLOCK_VERSION, and the default block size
+    static public final int MAX_BLOCK_SIZE       = 4 * 1024 * 1024;
+    // the largest block accepted from LARGE_BLOCK_VERSION on
+    static public final int MAX_LARGE_BLOCK_SIZE = 100 * 1024 * 1024;
+    static public final int MIN_BLOCK_SIZE       = 64 * 1024;
+
+    static public final String LARGE_BLOCK_VERSION = "2016-05-31";
+
+    static private final long DEFAULT_CONCURRENCY = 4L;
+    static private final long DEFAULT_RETRIES     = 3L;
+    static private final long RETRY_DELAY         = 1000L;
+
+    static private final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Azure  provider;
+    private final String bucket;
+    private final String object;
+    private final String version;
+    private final int    blockSize;
+    private final int    concurrency;
+    private final int    retries;
+
+    BlockUploader(@Nonnull Azure provider, @Nonnull String bucket, @Nonnull String object) throws CloudException {
+        this.provider = provider;
+        this.bucket = bucket;
+        this.object = object;
+        // every request of the upload is sent with this version, so the blocks never exceed what it accepts
+        this.version = new AzureStorageMethod(provider).getVersion();
+        this.blockSize = (int)Math.max(MIN_BLOCK_SIZE, Math.min(getMaxBlockSize(version), provider.getSetting(BLOCK_SIZE, MAX_BLOCK_SIZE)));
+        this.concurrency = (int)Math.max(1L, provider.getSetting(CONCURRENCY, DEFAULT_CONCURRENCY));
+        this.retries = (int)Math.max(0L, provider.getSetting(RETRIES, DEFAULT_RETRIES));
+    }
+
+    /**
+     * @param version a storage API version, such as <code>2015-04-05</code>
+     * @return the largest block the version accepts, in bytes
+     */
+    static int getMaxBlockSize(@Nonnull String version) {
+        // versions are dates, so they compare in order as strings
+        return (version.compareTo(LARGE_BLOCK_VERSION) >= 0 ? MAX_LARGE_BLOCK_SIZE : MAX_BLOCK_SIZE);
+    }
+
+    /**
+     * Uploads the content of the file and commits it as the blob. Blocks are sent straight from disjoint ranges of
+     * the file, so no buffers are needed and the number of blocks in flight alone is bounded by the concurrency.
+     * @param file the content of the blob
+     * @throws CloudException a block could not be stored or the block list could not be committed
+     * @throws InternalException the file could not be read or the upload was interrupted
+     */
+    void upload(@Nonnull File file) throws CloudException, InternalException {
+        ArrayList<Future<Void>> blocks = new ArrayList<Future<Void>>();
+        ArrayList<String> blockIds = new ArrayList<String>();
+        boolean complete = false;
+        FileInputStream input;
+
+        try {
+            input = new FileInputStream(file);
+        }
+        catch( IOException e ) {
+            logger.error("Error reading input file " + file + ": " + e.getMessage());
+            throw new InternalException(e);
+        }
+        try {
+            final FileChannel channel = input.getChannel();
+            long size = file.length();
+
+            for( long position=0L; position<size; position += blockSize ) {
+                if( blocks.size() >= concurrency ) {
+                    // wait for the oldest block before starting another one
+                    blocks.remove(0).get();
+                }
+                final String blockId = toBlockId(blockIds.size());
+                final FileRangeEntity range = new FileRangeEntity(channel, position, Math.min(blockSize, size - position));
+
+                blockIds.add(blockId);
+                blocks.add(AzureParallelRequests.submit(provider, new Callable<Void>() {
+                    public Void call() throws CloudException, InternalException {
+                        putBlock(blockId, range);
+                        return null;
+                    }
+                }));
+            }
+            for( Future<Void> block : blocks ) {
+                block.get();
+            }
+            complete = true;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while uploading " + bucket + "/" + object);
+        }
+        catch( ExecutionException e ) {
+            throw unwrap(e);
+        }
+        finally {
+            if( !complete ) {
+                for( Future<Void> block : blocks ) {
+                    block.cancel(true);
+                }
+            }
+            try { input.close(); }
+            catch( Throwable ignore ) { }
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Uploaded " + blockIds.size() + " blocks of " + blockSize + " bytes from " + file + " to " + bucket + "/" + object + ", committing");
+        }
+        commitBlocks(blockIds);
+    }
+
+    private void putBlock(@Nonnull String blockId, @Nonnull HttpEntity content) throws CloudException, InternalException {
+        TreeMap<String, String> queries = new TreeMap<String, String>();
+        TreeMap<String, String> headers = new TreeMap<String, String>();
+        String resource = bucket + "/" + object;
+
+        queries.put("blockid", blockId);
+        queries.put("comp", "block");
+
+        headers.put("x-ms-blob-type", "BlockBlob");
+        headers.put("content-type", "text/plain");
+
+        for( int attempt=0; ; attempt++ ) {
+            try {
+                new AzureStorageMethod(provider).withVersion(version).putWithEntity(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, content, headers, true);
+                return;
+            }
+            catch( CloudException e ) {
+                // client errors will not go away by sending the same block again
+                if( attempt >= retries || (e.getHttpCode() >= 400 && e.getHttpCode() < 500) ) {
+                    throw e;
+                }
+                logger.warn("Block " + blockId + " of " + resource + " failed, retrying: " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_DELAY << attempt);
+                }
+                catch( InterruptedException ignore ) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void commitBlocks(@Nonnull List<String> blockIds) throws CloudException, InternalException {
+        String resource = bucket + "/" + object;
+
+        TreeMap<String, String> headers = new TreeMap<String, String>();
+        TreeMap<String, String> queries = new TreeMap<String, String>();
+
+        queries.put("comp", "blocklist");
+
+        //Create post body
+        Document doc = AzureStorageMethod.createDoc();
+        Element blockList = doc.createElement("BlockList");
+
+        for( String id : blockIds ) {
+            Element uncommitted = doc.createElement("Uncommitted");
+            uncommitted.setTextContent(id);
+            blockList.appendChild(uncommitted);
+        }
+        doc.appendChild(blockList);
+
+        AzureStorageMethod method = new AzureStorageMethod(provider).withVersion(version);
+
+        method.invoke(AzureStorageMethod.Storage_OPERATION_PUT, resource, queries, AzureStorageMethod.convertDomToString(doc), headers, true);
+    }
+
+    /**
+     * Block IDs must all have the same length within a blob, so they are generated from a zero-padded counter.
+     */
+    static @Nonnull String toBlockId(int index) {
+        return Base64.encodeBase64String(String.format("%08d", index).getBytes(UTF8));
+    }
+
+    /**
+     * Rethrows a cloud failure of a block upload as it is, and returns any other failure as an internal exception.
+     */
+    static private @Nonnull InternalException unwrap(@Nonnull ExecutionException e) throws CloudException {
+        Throwable cause = e.getCause();
+
+        if( cause instanceof CloudException ) {
+            throw (CloudException)cause;
+        }
+        if( cause instanceof InternalException ) {
+            return (InternalException)cause;
+        }
+        return new InternalException(cause);
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureParallelRequests;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.dasein.util.JiteratorLoadException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes many blobs, or many containers, with a bounded number of delete requests in flight on the shared
+ * request pool and storage connection pool. Names are consumed as they are produced, so a listing of a container
+ * can feed the deletes while it is still paging.
+ * <p>
+ * Storage answers 503 (ServerBusy) or 500 (OperationTimedOut) when an account is throttled. Such deletes are
+ * retried with a growing, jittered delay, and the delay also pauses every other delete of the batch so that the
+ * batch as a whole backs off instead of making the throttling worse. A blob or container that no longer exists
+ * counts as deleted.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+public class BulkDelete {
+    static private final Logger logger = Azure.getLogger(BulkDelete.class);
+
+    static public final String CONCURRENCY = "azure.storage.deleteConcurrency";
+    static public final String RETRIES     = "azure.storage.deleteRetries";
+
+    static private final long DEFAULT_CONCURRENCY = 16L;
+    static private final long DEFAULT_RETRIES     = 5L;
+    static private final long RETRY_DELAY         = 500L;
+    static private final long MAX_RETRY_DELAY     = 30000L;
+
+    /**
+     * Receives the result of every single delete of a batch. Listeners are called from the threads making the
+     * requests, concurrently, and must not block.
+     */
+    public interface Listener {
+        /**
+         * @param name the blob or container
+         * @param error the reason the delete failed, or <code>null</code> if it was deleted
+         */
+        void completed(@Nonnull String name, @Nullable Throwable error);
+    }
+
+    private final Azure    provider;
+    private final String   bucket;
+    private final Listener listener;
+    private final int      concurrency;
+    private final int      retries;
+    private final Random   random = new Random();
+
+    private final AtomicInteger          deleted  = new AtomicInteger(0);
+    private final Map<String,Throwable>  failures = Collections.synchronizedMap(new LinkedHashMap<String, Throwable>());
+
+    // no delete of the batch is sent before this time while storage is throttling the account
+    private volatile long pauseUntil = 0L;
+
+    /**
+     * @param provider the provider whose storage account is cleaned up
+     * @param bucket the container of the blobs to delete, or <code>null</code> to delete containers
+     * @param listener receives the result of every delete, may be <code>null</code>
+     */
+    BulkDelete(@Nonnull Azure provider, @Nullable String bucket, @Nullable Listener listener) {
+        this.provider = provider;
+        this.bucket = bucket;
+        this.listener = listener;
+        this.concurrency = (int)Math.max(1L, provider.getSetting(CONCURRENCY, DEFAULT_CONCURRENCY));
+        this.retries = (int)Math.max(0L, provider.getSetting(RETRIES, DEFAULT_RETRIES));
+    }
+
+    /**
+     * @return the number of blobs or containers deleted so far
+     */
+    public int getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * @return the blobs or containers that could not be deleted, with the reason, in the order they failed
+     */
+    public @Nonnull Map<String,Throwable> getFailures() {
+        synchronized( failures ) {
+            return new LinkedHashMap<String, Throwable>(failures);
+        }
+    }
+
+    /**
+     * Deletes the named blobs or containers and waits for every delete to complete. Failures of single deletes
+     * are reported through {@link #getFailures()} and the listener rather than thrown.
+     * @param names the blobs or containers to delete
+     * @throws CloudException the names could not be listed; deletes already sent complete before this is thrown
+     * @throws InternalException the batch was interrupted; deletes already sent still complete
+     */
+    void run(@Nonnull Iterable<String> names) throws CloudException, InternalException {
+        final Semaphore slots = new Semaphore(concurrency);
+        long started = System.currentTimeMillis();
+        JiteratorLoadException listingError = null;
+
+        try {
+            try {
+                for( final String name : names ) {
+                    slots.acquire();
+                    try {
+                        AzureParallelRequests.submit(provider, new Callable<Void>() {
+                            public Void call() {
+                                try {
+                                    delete(name);
+                                }
+                                finally {
+                                    slots.release();
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                    catch( RuntimeException e ) {
+                        slots.release();
+                        throw e;
+                    }
+                }
+            }
+            catch( JiteratorLoadException e ) {
+                // a lazy listing failed on a later page
+                listingError = e;
+            }
+            // every slot free means every delete has completed
+            slots.acquire(concurrency);
+            slots.release(concurrency);
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while deleting from " + (bucket == null ? "the storage account" : bucket));
+        }
+        if( logger.isInfoEnabled() ) {
+            logger.info("Deleted " + deleted.get() + " " + (bucket == null ? "containers" : "blobs from " + bucket) + " in " + (System.currentTimeMillis() - started) + "ms with " + failures.size() + " failures");
+        }
+        if( listingError != null ) {
+            Throwable cause = (listingError.getCause() == null ? listingError : listingError.getCause());
+
+            logger.error("Unable to list what to delete from " + (bucket == null ? "the storage account" : bucket) + ": " + cause.getMessage());
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new CloudException(cause);
+        }
+    }
+
+    private void delete(@Nonnull String name) {
+        HashMap<String, String> queries = new HashMap<String, String>();
+        String resource;
+
+        if( bucket == null ) {
+            resource = name;
+            queries.put("restype", "container");
+        }
+        else {
+            resource = bucket + "/" + name;
+        }
+        for( int attempt=0; ; attempt++ ) {
+            try {
+                pause();
+                new AzureStorageMethod(provider).invoke(AzureStorageMethod.Storage_OPERATION_DELETE, resource, queries, null, null, true);
+                completed(name, null);
+                return;
+            }
+            catch( CloudException e ) {
+                int code = e.getHttpCode();
+
+                if( code == 404 ) {
+                    // already gone, which is what was asked for
+                    completed(name, null);
+                    return;
+                }
+                if( (code != 503 && code != 500) || attempt >= retries ) {
+                    completed(name, e);
+                    return;
+                }
+                long delay = Math.min(MAX_RETRY_DELAY, RETRY_DELAY << attempt);
+
+                synchronized( random ) {
+                    delay += random.nextInt((int)(delay / 2L) + 1);
+                }
+                throttled(delay);
+                logger.warn("Storage is busy (" + code + ") deleting " + resource + ", backing off for " + delay + "ms");
+            }
+            catch( InternalException e ) {
+                completed(name, e);
+                return;
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                completed(name, new InternalException("Interrupted while deleting " + resource));
+                return;
+            }
+        }
+    }
+
+    private synchronized void throttled(long delay) {
+        pauseUntil = Math.max(pauseUntil, System.currentTimeMillis() + delay);
+    }
+
+    private void pause() throws InterruptedException {
+        long wait;
+
+        while( (wait = pauseUntil - System.currentTimeMillis()) > 0L ) {
+            Thread.sleep(wait);
+        }
+    }
+
+    private void completed(@Nonnull String name, @Nullable Throwable error) {
+        if( error == null ) {
+            deleted.incrementAndGet();
+        }
+        else {
+            failures.put(name, error);
+        }
+        if( listener != null ) {
+            try {
+                listener.completed(name, error);
+            }
+            catch( Throwable t ) {
+                logger.warn("Delete listener failed for " + name + ": " + t.getMessage());
+            }
+        }
+    }
+}
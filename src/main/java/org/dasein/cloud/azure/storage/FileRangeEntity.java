@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.storage;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Request body made of a range of a file. The range is sent with {@link FileChannel#transferTo}, which reads at
+ * an explicit position rather than the position of the channel, so any number of entities can stream disjoint
+ * ranges of the same open file concurrently, and no block of the file is ever copied onto the heap.
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class FileRangeEntity extends AbstractHttpEntity {
+    private final FileChannel channel;
+    private final long        offset;
+    private final long        length;
+
+    FileRangeEntity(@Nonnull FileChannel channel, long offset, long length) {
+        this.channel = channel;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public long getContentLength() {
+        return length;
+    }
+
+    public boolean isStreaming() {
+        return false;
+    }
+
+    public @Nonnull InputStream getContent() throws IOException {
+        return new InputStream() {
+            private long position = offset;
+            private final long end = offset + length;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+
+                return (read(b, 0, 1) < 1 ? -1 : (b[0] & 0xff));
+            }
+
+            @Override
+            public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+                if( position >= end ) {
+                    return -1;
+                }
+                int count = channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, end - position)), position);
+
+                if( count > 0 ) {
+                    position += count;
+                }
+                return count;
+            }
+        };
+    }
+
+    public void writeTo(@Nonnull OutputStream output) throws IOException {
+        WritableByteChannel target = Channels.newChannel(output);
+        long position = offset;
+        long remaining = length;
+
+        while( remaining > 0 ) {
+            long count = channel.transferTo(position, remaining, target);
+
+            if( count < 1 ) {
+                throw new IOException("File ended at " + position + " before the end of the range at " + (offset + length));
+            }
+            position += count;
+            remaining -= count;
+        }
+    }
+}
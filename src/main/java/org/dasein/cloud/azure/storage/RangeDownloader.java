@@ -0,0 +1,339 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.storage;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureParallelRequests;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.dasein.cloud.storage.FileTransfer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a blob to a local file as a number of ranges fetched concurrently. The target file is preallocated
+ * and every range is written at its own position through a shared {@link FileChannel}, so ranges may complete
+ * in any order.
+ * <p>
+ * Each completed range is recorded in a progress file next to the target. If a download fails, the partial file
+ * and its progress file are kept. The next download of the same, unchanged blob to the same file only fetches
+ * the ranges still missing. A changed blob (different size or ETag) starts over, and the ETag is also sent with
+ * every range request so that a blob changing mid-download fails rather than producing a mixed file.
+ * </p>
+ * @since 2015.06.4
+ * @version 2015.06.4
+ */
+class RangeDownloader {
+    static private final Logger logger = Azure.getLogger(RangeDownloader.class);
+
+    static public final String RANGE_SIZE  = "azure.storage.downloadRangeBytes";
+    static public final String CONCURRENCY = "azure.storage.downloadConcurrency";
+    static public final String RETRIES     = "azure.storage.rangeRetries";
+
+    static private final long DEFAULT_RANGE_SIZE  = 4L * 1024L * 1024L;
+    static private final long MIN_RANGE_SIZE      = 64L * 1024L;
+    static private final long DEFAULT_CONCURRENCY = 4L;
+    static private final long DEFAULT_RETRIES     = 3L;
+    static private final long RETRY_DELAY         = 1000L;
+    static private final int  COPY_BUFFER_SIZE    = 64 * 1024;
+
+    static private final String PROGRESS_SUFFIX = ".progress";
+
+    /**
+     * @param provider the provider whose settings apply
+     * @return the size of the ranges fetched by a download; smaller blobs are not worth splitting
+     */
+    static long getRangeSize(@Nonnull Azure provider) {
+        return Math.max(MIN_RANGE_SIZE, provider.getSetting(RANGE_SIZE, DEFAULT_RANGE_SIZE));
+    }
+
+    private final Azure  provider;
+    private final String bucket;
+    private final String object;
+    private final long   rangeSize;
+    private final int    concurrency;
+    private final int    retries;
+
+    RangeDownloader(@Nonnull Azure provider, @Nonnull String bucket, @Nonnull String object) {
+        this.provider = provider;
+        this.bucket = bucket;
+        this.object = object;
+        this.rangeSize = getRangeSize(provider);
+        this.concurrency = (int)Math.max(1L, provider.getSetting(CONCURRENCY, DEFAULT_CONCURRENCY));
+        this.retries = (int)Math.max(0L, provider.getSetting(RETRIES, DEFAULT_RETRIES));
+    }
+
+    /**
+     * Downloads the blob to the specified file, resuming an earlier partial download of the same blob if there is one.
+     * @param toFile the target file
+     * @param size the size of the blob in bytes
+     * @param etag the ETag of the blob as of reading its size, may be <code>null</code>
+     * @param transfer receives the progress of the download, may be <code>null</code>
+     * @throws CloudException a range could not be fetched
+     * @throws InternalException the target file could not be written or the download was interrupted
+     */
+    void download(@Nonnull File toFile, long size, @Nullable final String etag, @Nullable final FileTransfer transfer) throws CloudException, InternalException {
+        // ranges are recorded by index, so a different range size cannot resume either
+        String version = size + " " + rangeSize + " " + etag;
+        File progressFile = new File(toFile.getPath() + PROGRESS_SUFFIX);
+        Set<Long> completed = loadProgress(toFile, progressFile, size, version);
+        ArrayList<Future<Void>> ranges = new ArrayList<Future<Void>>();
+        final AtomicLong transferred = new AtomicLong(0L);
+        RandomAccessFile target = null;
+        final Writer progress;
+
+        for( Long index : completed ) {
+            transferred.addAndGet(Math.min(rangeSize, size - index * rangeSize));
+        }
+        if( transfer != null ) {
+            transfer.setBytesToTransfer(size);
+            transfer.setBytesTransferred(transferred.get());
+        }
+        if( !completed.isEmpty() && logger.isInfoEnabled() ) {
+            logger.info("Resuming download of " + bucket + "/" + object + " to " + toFile + " with " + completed.size() + " ranges already present");
+        }
+        boolean complete = false;
+
+        try {
+            target = new RandomAccessFile(toFile, "rw");
+            target.setLength(size);
+            progress = new FileWriter(progressFile, !completed.isEmpty());
+            if( completed.isEmpty() ) {
+                progress.write(version + "\n");
+                progress.flush();
+            }
+        }
+        catch( IOException e ) {
+            close(target);
+            logger.error("Could not prepare " + toFile + " for download: " + e.getMessage());
+            throw new InternalException(e);
+        }
+        try {
+            final FileChannel channel = target.getChannel();
+
+            for( long i=0L; i*rangeSize < size; i++ ) {
+                if( completed.contains(i) ) {
+                    continue;
+                }
+                if( ranges.size() >= concurrency ) {
+                    // wait for the oldest range before starting another one
+                    ranges.remove(0).get();
+                }
+                final long index = i;
+                final long start = i * rangeSize;
+                final long end = Math.min(size, start + rangeSize) - 1;
+
+                ranges.add(AzureParallelRequests.submit(provider, new Callable<Void>() {
+                    public Void call() throws CloudException, InternalException {
+                        fetchRange(channel, start, end, etag, transferred, transfer);
+                        synchronized( progress ) {
+                            try {
+                                progress.write(index + "\n");
+                                progress.flush();
+                            }
+                            catch( IOException e ) {
+                                // only costs re-fetching the range if the download has to be resumed
+                                logger.warn("Unable to record progress of range " + index + ": " + e.getMessage());
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for( Future<Void> range : ranges ) {
+                range.get();
+            }
+            complete = true;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException("Interrupted while downloading " + bucket + "/" + object);
+        }
+        catch( ExecutionException e ) {
+            Throwable cause = e.getCause();
+
+            if( cause instanceof CloudException ) {
+                throw (CloudException)cause;
+            }
+            if( cause instanceof InternalException ) {
+                throw (InternalException)cause;
+            }
+            throw new InternalException(cause);
+        }
+        finally {
+            if( !complete ) {
+                for( Future<Void> range : ranges ) {
+                    range.cancel(true);
+                }
+            }
+            close(progress);
+            close(target);
+        }
+        if( !progressFile.delete() ) {
+            logger.warn("Unable to remove " + progressFile);
+        }
+    }
+
+    private void fetchRange(@Nonnull FileChannel channel, long start, long end, @Nullable String etag, @Nonnull AtomicLong transferred, @Nullable FileTransfer transfer) throws CloudException, InternalException {
+        String resource = bucket + "/" + object;
+
+        for( int attempt=0; ; attempt++ ) {
+            long written = 0L;
+
+            try {
+                TreeMap<String, String> headers = new TreeMap<String, String>();
+
+                headers.put("x-ms-range", "bytes=" + start + "-" + end);
+                if( etag != null ) {
+                    headers.put("If-Match", etag);
+                }
+                InputStream input = new AzureStorageMethod(provider).getAsStream(AzureStorageMethod.Storage_OPERATION_GET, resource, new HashMap<String, String>(), null, headers, true);
+
+                if( input == null ) {
+                    throw new CloudException("No such file: " + resource);
+                }
+                try {
+                    byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                    long position = start;
+                    int count;
+
+                    while( position <= end && (count = input.read(buffer)) != -1 ) {
+                        // never write past the range, which belongs to another worker
+                        count = (int)Math.min(count, end - position + 1);
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+
+                        while( bytes.hasRemaining() ) {
+                            position += channel.write(bytes, position);
+                        }
+                        written += count;
+                        progress(transferred.addAndGet(count), transfer);
+                    }
+                    if( position <= end ) {
+                        throw new IOException("Range " + start + "-" + end + " ended at " + position);
+                    }
+                }
+                finally {
+                    input.close();
+                }
+                return;
+            }
+            catch( IOException e ) {
+                progress(transferred.addAndGet(-written), transfer);
+                if( attempt >= retries ) {
+                    logger.error("Could not fetch range " + start + "-" + end + " of " + resource + ": " + e.getMessage());
+                    throw new CloudException(e);
+                }
+                logger.warn("Range " + start + "-" + end + " of " + resource + " failed, retrying: " + e.getMessage());
+            }
+            catch( CloudException e ) {
+                progress(transferred.addAndGet(-written), transfer);
+                // client errors, including a blob changed since the download started, will not go away
+                if( attempt >= retries || (e.getHttpCode() >= 400 && e.getHttpCode() < 500) ) {
+                    throw e;
+                }
+                logger.warn("Range " + start + "-" + end + " of " + resource + " failed, retrying: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(RETRY_DELAY << attempt);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException("Interrupted while downloading " + resource);
+            }
+        }
+    }
+
+    private void progress(long total, @Nullable FileTransfer transfer) {
+        if( transfer != null ) {
+            synchronized( transfer ) {
+                transfer.setBytesTransferred(total);
+            }
+        }
+    }
+
+    /**
+     * Reads the ranges recorded as complete by an earlier download of the same blob version to the same file.
+     * Anything that does not match exactly is discarded so that the download starts over.
+     */
+    private @Nonnull Set<Long> loadProgress(@Nonnull File toFile, @Nonnull File progressFile, long size, @Nonnull String version) {
+        HashSet<Long> completed = new HashSet<Long>();
+
+        if( !progressFile.exists() || !toFile.exists() || toFile.length() != size ) {
+            return completed;
+        }
+        BufferedReader reader = null;
+
+        try {
+            reader = new BufferedReader(new FileReader(progressFile));
+            if( !version.equals(reader.readLine()) ) {
+                return completed;
+            }
+            String line;
+
+            while( (line = reader.readLine()) != null ) {
+                line = line.trim();
+                if( line.length() > 0 ) {
+                    completed.add(Long.valueOf(line));
+                }
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read " + progressFile + ", starting over: " + e.getMessage());
+            completed.clear();
+        }
+        catch( NumberFormatException e ) {
+            logger.warn("Invalid progress in " + progressFile + ", starting over");
+            completed.clear();
+        }
+        finally {
+            close(reader);
+        }
+        return completed;
+    }
+
+    static private void close(@Nullable Closeable closeable) {
+        if( closeable != null ) {
+            try { closeable.close(); }
+            catch( Throwable ignore ) { }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.benchmarks;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.dasein.cloud.azure.StorageKeySigner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many SharedKeyLite signatures one {@link StorageKeySigner} produces per second and core when all
+ * cores sign at the same time.
+ */
+public class StorageSigningBenchmark {
+    private static final byte[] KEY = Base64.encodeBase64("0123456789abcdef0123456789abcdef".getBytes());
+
+    private static final int  WARMUP   = 10000;
+    private static final long DURATION = 500L;
+
+    public static void main(String ... args) throws Exception {
+        final StorageKeySigner signer = StorageKeySigner.getInstance("throughput", KEY);
+        final HttpRequestBase request = new HttpGet("https://account.blob.core.windows.net/bucket/object?comp=list&restype=container");
+        final Map<String, String> queries = new TreeMap<String, String>();
+        final AtomicLong failures = new AtomicLong(0L);
+        final List<Long> counts = Collections.synchronizedList(new ArrayList<Long>());
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Thread> workers = new ArrayList<Thread>();
+
+        request.addHeader("Date", "Mon, 01 Jun 2015 00:00:00 GMT");
+        request.addHeader("x-ms-version", "2009-09-19");
+        request.addHeader("content-type", "text/plain");
+        queries.put("restype", "container");
+        queries.put("comp", "list");
+
+        for( int i=0; i<threads; i++ ) {
+            Thread t = new Thread() {
+                public void run() {
+                    try {
+                        for( int j=0; j<WARMUP; j++ ) {
+                            signer.signSharedKeyLite(request, queries);
+                        }
+                        long count = 0L;
+                        long end = System.currentTimeMillis() + DURATION;
+
+                        while( System.currentTimeMillis() < end ) {
+                            signer.signSharedKeyLite(request, queries);
+                            count++;
+                        }
+                        counts.add(count);
+                    }
+                    catch( Throwable t ) {
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            workers.add(t);
+            t.start();
+        }
+        long total = 0L;
+
+        for( Thread t : workers ) {
+            t.join();
+        }
+        for( Long count : counts ) {
+            total += count;
+        }
+        if( failures.get() > 0L ) {
+            System.out.println(failures.get() + " of " + threads + " threads failed");
+        }
+        System.out.println("SharedKeyLite signatures per second per core: " + (total * 1000L / DURATION / threads) + " (" + threads + " threads)");
+    }
+}
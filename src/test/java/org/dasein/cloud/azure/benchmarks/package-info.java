@@ -0,0 +1,25 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+/**
+ * Micro-benchmarks for hot paths of the driver. They are not unit tests and are not run by the build. Each one is
+ * a class with a <code>main</code> method, run by hand from the test classpath, for example with
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.dasein.cloud.azure.benchmarks.XmlParserBenchmark</code>.
+ * Their results are rough figures for comparing approaches, not precise measurements.
+ */
+package org.dasein.cloud.azure.benchmarks;
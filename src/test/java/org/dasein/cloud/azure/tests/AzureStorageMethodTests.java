@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.tests;
+
+import mockit.*;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.dasein.cloud.azure.StorageAccountCache;
+import org.dasein.cloud.azure.StorageKeySigner;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AzureStorageMethodTests {
+    private static final byte[] OLD_KEY = Base64.encodeBase64("0123456789abcdef0123456789abcdef".getBytes());
+    private static final byte[] NEW_KEY = Base64.encodeBase64("fedcba9876543210fedcba9876543210".getBytes());
+
+    @Mocked ProviderContext mockedProviderContext;
+    @Mocked StorageAccountCache mockedAccountCache;
+    @Injectable Azure mockedProvider;
+    @Injectable HttpClient mockedClient;
+
+    private final byte[][] contextKey = { OLD_KEY };
+
+    /**
+     * Sets up a provider whose context holds {@link #OLD_KEY} and whose storage account now has the specified key.
+     */
+    private void expectStorageAccount(final String account, final byte[] currentKey) throws Exception {
+        new NonStrictExpectations() {
+            { mockedProvider.getContext(); result = mockedProviderContext; }
+            { mockedProvider.getSetting(anyString); result = null; }
+            { mockedProvider.getStorageService(); result = account; }
+            { mockedProvider.getStorageKey(); result = currentKey; }
+            { StorageAccountCache.getInstance((Azure)any); result = mockedAccountCache; }
+            { mockedProviderContext.getStoragePrivate(); result = new Delegate() {
+                byte[] getStoragePrivate() { return contextKey[0]; }
+            }; }
+            { mockedProviderContext.setStoragePrivate((byte[])any); result = new Delegate() {
+                void setStoragePrivate(byte[] key) { contextKey[0] = key; }
+            }; }
+        };
+    }
+
+    private HttpGet createRequest(String account, Map<String, String> queries) throws Exception {
+        HttpGet request = new HttpGet("https://" + account + ".blob.core.windows.net/bucket/object");
+
+        request.addHeader("Date", "Mon, 01 Jun 2015 00:00:00 GMT");
+        request.addHeader("x-ms-version", AzureStorageMethod.VERSION);
+        request.addHeader("Authorization", StorageKeySigner.getInstance(account, OLD_KEY).signSharedKeyLite(request, queries));
+        return request;
+    }
+
+    @Test
+    public void refusedRequestIsRetriedWithNewKey() throws Exception {
+        // every account may refresh its key once a minute, so each test uses its own
+        final String account = "rotatedaccount";
+        final HttpResponse forbidden = new BasicHttpResponse(HttpVersion.HTTP_1_1, 403, "Forbidden");
+        final HttpResponse ok = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        Map<String, String> queries = new TreeMap<String, String>();
+        HttpGet request = createRequest(account, queries);
+
+        expectStorageAccount(account, NEW_KEY);
+        new NonStrictExpectations() {
+            { mockedClient.execute((HttpUriRequest)any); returns(forbidden, ok); }
+        };
+
+        HttpResponse response = Deencapsulation.invoke(new AzureStorageMethod(mockedProvider), "execute", mockedClient, request, queries);
+
+        assertSame("the retried response should be returned", ok, response);
+        assertArrayEquals("the context should hold the new key", NEW_KEY, contextKey[0]);
+        assertEquals("the retry should be signed with the new key", StorageKeySigner.getInstance(account, NEW_KEY).signSharedKeyLite(request, queries), request.getFirstHeader("Authorization").getValue());
+        new Verifications() {
+            { mockedAccountCache.invalidateKey(OLD_KEY); times = 1; }
+            { mockedClient.execute((HttpUriRequest)any); times = 2; }
+        };
+    }
+
+    @Test
+    public void refusedRequestIsNotRetriedWithSameKey() throws Exception {
+        final String account = "unchangedaccount";
+        final HttpResponse forbidden = new BasicHttpResponse(HttpVersion.HTTP_1_1, 403, "Forbidden");
+        Map<String, String> queries = new TreeMap<String, String>();
+        HttpGet request = createRequest(account, queries);
+
+        expectStorageAccount(account, OLD_KEY.clone());
+        new NonStrictExpectations() {
+            { mockedClient.execute((HttpUriRequest)any); result = forbidden; }
+        };
+
+        HttpResponse response = Deencapsulation.invoke(new AzureStorageMethod(mockedProvider), "execute", mockedClient, request, queries);
+
+        assertSame("the refusal should be returned", forbidden, response);
+        assertArrayEquals("the context should keep its key", OLD_KEY, contextKey[0]);
+        new Verifications() {
+            { mockedClient.execute((HttpUriRequest)any); times = 1; }
+            { mockedProviderContext.setStoragePrivate((byte[])any); times = 0; }
+        };
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.tests;
+
+import org.dasein.cloud.azure.AzureXmlParser;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AzureXmlParserTests {
+    private static final String RESPONSE =
+            "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+            "<Disks xmlns=\"http://schemas.microsoft.com/windowsazure\">" +
+            "<Disk><Name>disk-1</Name><LogicalDiskSizeInGB>30</LogicalDiskSizeInGB></Disk>" +
+            "<Disk><Name>disk-2</Name><LogicalDiskSizeInGB>127</LogicalDiskSizeInGB></Disk>" +
+            "</Disks>";
+
+    @Test
+    public void parseReturnsDocument() throws Exception {
+        Document doc = AzureXmlParser.parse(new ByteArrayInputStream(RESPONSE.getBytes("UTF-8")));
+
+        assertEquals(2, doc.getElementsByTagName("Disk").getLength());
+    }
+
+    @Test
+    public void builderIsReusedWithinThread() throws Exception {
+        DocumentBuilder first = AzureXmlParser.getDocumentBuilder();
+        DocumentBuilder second = AzureXmlParser.getDocumentBuilder();
+
+        assertSame(first, second);
+    }
+
+    @Test
+    public void externalEntitiesAreRejected() throws Exception {
+        File secret = File.createTempFile("azure-xxe", ".txt");
+        FileWriter writer = new FileWriter(secret);
+
+        try {
+            writer.write("secret");
+            writer.close();
+
+            String xml = "<?xml version=\"1.0\"?>" +
+                    "<!DOCTYPE Error [<!ENTITY xxe SYSTEM \"" + secret.toURI() + "\">]>" +
+                    "<Error><Message>&xxe;</Message></Error>";
+
+            try {
+                Document doc = AzureXmlParser.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+
+                fail("Document with a DOCTYPE was parsed: " + doc.getDocumentElement().getTextContent());
+            }
+            catch( SAXException expected ) {
+                // the declaration is refused before any entity is resolved
+            }
+            // a rejected document must not poison the builder for the next parse
+            parseReturnsDocument();
+        }
+        finally {
+            secret.delete();
+        }
+    }
+}
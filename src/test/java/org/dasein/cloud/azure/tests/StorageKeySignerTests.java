@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.tests;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.dasein.cloud.azure.StorageKeySigner;
+import org.dasein.cloud.azure.StorageSas;
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.net.URLEncoder;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class StorageKeySignerTests {
+    private static final byte[] KEY       = Base64.encodeBase64("0123456789abcdef0123456789abcdef".getBytes());
+    private static final byte[] OTHER_KEY = Base64.encodeBase64("fedcba9876543210fedcba9876543210".getBytes());
+
+    private HttpRequestBase createRequest() {
+        HttpRequestBase request = new HttpGet("https://account.blob.core.windows.net/bucket/object?comp=list&restype=container");
+
+        request.addHeader("Date", "Mon, 01 Jun 2015 00:00:00 GMT");
+        request.addHeader("x-ms-version", "2009-09-19");
+        request.addHeader("X-MS-Meta-Name", "  first\nline  ");
+        request.addHeader("x-ms-meta-name", "second");
+        request.addHeader("content-type", "text/plain");
+        return request;
+    }
+
+    private Map<String, String> createQueries() {
+        Map<String, String> queries = new TreeMap<String, String>();
+
+        queries.put("restype", "container");
+        queries.put("comp", "list");
+        return queries;
+    }
+
+    @Test
+    public void stringToSignIsCanonical() throws Exception {
+        StorageKeySigner signer = StorageKeySigner.getInstance("canonical", KEY);
+        String expected = "GET\n\ntext/plain\nMon, 01 Jun 2015 00:00:00 GMT\n" +
+                "x-ms-meta-name:first line,second\n" +
+                "x-ms-version:2009-09-19\n" +
+                "/canonical/bucket/object?comp=list";
+
+        assertEquals(expected, signer.getSharedKeyLiteStringToSign(createRequest(), createQueries()));
+    }
+
+    @Test
+    public void sharedKeyStringToSignIsCanonical() throws Exception {
+        StorageKeySigner signer = StorageKeySigner.getInstance("sharedkey", KEY);
+        HttpPut request = new HttpPut("https://account.blob.core.windows.net/bucket/object?comp=block&blockid=AAAA");
+
+        request.addHeader("Date", "Mon, 01 Jun 2015 00:00:00 GMT");
+        request.addHeader("x-ms-version", "2015-04-05");
+        request.addHeader("content-type", "text/plain");
+        request.addHeader("If-Match", "\"0x1\"");
+        request.setEntity(new ByteArrayEntity(new byte[10]));
+
+        Map<String, String> queries = new TreeMap<String, String>();
+
+        queries.put("comp", "block");
+        queries.put("blockid", "AAAA");
+
+        String expected = "PUT\n\n\n10\n\ntext/plain\nMon, 01 Jun 2015 00:00:00 GMT\n\n\"0x1\"\n\n\n\n" +
+                "x-ms-version:2015-04-05\n" +
+                "/sharedkey/bucket/object\nblockid:AAAA\ncomp:block";
+
+        assertEquals(expected, signer.getSharedKeyStringToSign(request, queries, "2015-04-05"));
+        // an empty body is signed as an empty length from 2015-02-21 on, and as 0 before
+        request.setEntity(null);
+        assertTrue(signer.getSharedKeyStringToSign(request, queries, "2015-04-05").startsWith("PUT\n\n\n\n"));
+        assertTrue(signer.getSharedKeyStringToSign(request, queries, "2009-09-19").startsWith("PUT\n\n\n0\n"));
+    }
+
+    @Test
+    public void serviceSasIsSignedWithAccountKey() throws Exception {
+        StorageKeySigner signer = StorageKeySigner.getInstance("sas", KEY);
+        Date expiry = new Date(1433116800000L); // 2015-06-01T00:00:00Z
+        String sas = StorageSas.getServiceSas(signer, "bucket", "object", "r", null, expiry, StorageSas.PROTOCOL_HTTPS);
+        String stringToSign = "r\n\n2015-06-01T00:00:00Z\n/blob/sas/bucket/object\n\n\nhttps\n" + StorageSas.VERSION + "\n\n\n\n\n";
+        String signature = URLEncoder.encode(signer.sign(stringToSign), "utf-8");
+
+        assertEquals("sv=" + StorageSas.VERSION + "&sr=b&se=2015-06-01T00%3A00%3A00Z&sp=r&spr=https&sig=" + signature, sas);
+    }
+
+    @Test
+    public void signatureIsHmacOfStringToSign() throws Exception {
+        StorageKeySigner signer = StorageKeySigner.getInstance("hmac", KEY);
+        HttpRequestBase request = createRequest();
+        Map<String, String> queries = createQueries();
+        Mac mac = Mac.getInstance("HmacSHA256");
+
+        mac.init(new SecretKeySpec(Base64.decodeBase64(KEY), "HmacSHA256"));
+        String expected = new String(Base64.encodeBase64(mac.doFinal(signer.getSharedKeyLiteStringToSign(request, queries).getBytes("UTF-8"))));
+
+        assertEquals("SharedKeyLite hmac:" + expected, signer.signSharedKeyLite(request, queries));
+        // the per-thread mac must be reset between signatures
+        assertEquals("SharedKeyLite hmac:" + expected, signer.signSharedKeyLite(request, queries));
+    }
+
+    @Test
+    public void signerIsReplacedWhenKeyChanges() throws Exception {
+        StorageKeySigner signer = StorageKeySigner.getInstance("rotation", KEY);
+
+        assertSame(signer, StorageKeySigner.getInstance("rotation", KEY.clone()));
+        assertNotSame(signer, StorageKeySigner.getInstance("rotation", OTHER_KEY));
+    }
+}
@@ -41,7 +41,9 @@ import org.junit.Test;
 import javax.xml.bind.JAXBException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import static mockit.Deencapsulation.getField;
 import static org.junit.Assert.* ;
@@ -113,9 +115,21 @@ public class AzureLoadBalancerSupportTest {
         expectedDefinitionModel.setMonitors(Arrays.asList(expectedMonitorModel));
 
 
+        // the Traffic Manager snapshot is shared by all instances using the same credentials
+        clearTrafficManagerSnapshots();
         lbSupport = new AzureLoadBalancerSupport(azureMock);
     }
 
+    private void clearTrafficManagerSnapshots() {
+        try {
+            Map<?,?> snapshots = Deencapsulation.getField(Class.forName("org.dasein.cloud.azure.network.TrafficManagerSnapshot"), "snapshots");
+            snapshots.clear();
+        }
+        catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Test
     public void testGetDefinition() throws CloudException, InternalException {
         CheckGetMethodCall("getDefinition", DefinitionModel.class, String.format(AzureLoadBalancerSupport.RESOURCE_DEFINITION, LOAD_BALANCER_ID), LOAD_BALANCER_ID);
@@ -127,10 +141,32 @@ public class AzureLoadBalancerSupportTest {
         CheckGetMethodCall("getProfile", ProfileModel.class, String.format(AzureLoadBalancerSupport.RESOURCE_PROFILE, LOAD_BALANCER_ID), LOAD_BALANCER_ID);
     }
 
-    @Test
-    public void testGetProfiles()
+    /**
+     * Serves the profile listing and the definitions of the Traffic Manager snapshot.
+     * @param profiles the profile listing, may be null
+     * @param definitionError the error fetching a definition fails with, or null to return the expected definition
+     * @return the resources requested, in order
+     */
+    private List<String> mockSnapshotRequests(final ProfilesModel profiles, final CloudException definitionError)
     {
-        CheckGetMethodCall("getProfiles", ProfilesModel.class, AzureLoadBalancerSupport.RESOURCE_PROFILES, null);
+        final List<String> requested = Collections.synchronizedList(new ArrayList<String>());
+
+        new MockUp<AzureMethod>(){
+            @Mock
+            void $init(Azure provider){ assertEquals(provider, azureMock);}
+
+            @Mock
+            <T> T get(Class<T> model, String resource) throws CloudException {
+                requested.add(resource);
+                if(resource.equals(AzureLoadBalancerSupport.RESOURCE_PROFILES))
+                    return model.cast(profiles);
+                assertEquals("Definition requested for wrong profile", String.format(AzureLoadBalancerSupport.RESOURCE_DEFINITION, LOAD_BALANCER_ID), resource);
+                if(definitionError != null)
+                    throw definitionError;
+                return model.cast(expectedDefinitionModel);
+            }
+        };
+        return requested;
     }
 
     private void CheckGetMethodCall(String methodName, final Class expectedClassz, final String expectdResource, String parameter)
@@ -226,6 +262,36 @@ public class AzureLoadBalancerSupportTest {
         lbSupport.removeServers(LOAD_BALANCER_ID, "endpointtoremove");
     }
 
+    @Test
+    public void testRemoveServerOutsidePublicCloud() throws CloudException, InternalException {
+
+        DefinitionModel.EndPointModel expectedEndPointToRemove = new DefinitionModel.EndPointModel();
+        expectedEndPointToRemove.setDomainName("endpointtoremove.chinacloudapp.cn");
+        expectedEndPointToRemove.setStatus("Enabled");
+        expectedEndPointToRemove.setType("CloudService");
+        expectedEndPointToRemove.setWeight("1");
+
+        expectedDefinitionModel.getPolicy().getEndPoints().add(expectedEndPointToRemove);
+
+        new NonStrictExpectations(lbSupport){
+            {invoke(lbSupport, "getDefinition", LOAD_BALANCER_ID); result = expectedDefinitionModel; times = 1;}
+        };
+
+        new MockUp<AzureMethod>(){
+            @Mock(invocations = 1)
+            void $init(Azure provider){  assertEquals(provider, azureMock);}
+
+            @Mock(invocations = 1)
+            String post(String resource, Object definitionResponseModel){
+                assertEquals("Server not removed from the policy definition", ((DefinitionModel)definitionResponseModel).getPolicy().getEndPoints().size(), 1);
+                assertEquals("A server with the wrong id has been removed", ((DefinitionModel)definitionResponseModel).getPolicy().getEndPoints().get(0).getDomainName(), "endpoint1.cloudapp.net");
+                return "test";
+            }
+        };
+
+        lbSupport.removeServers(LOAD_BALANCER_ID, "endpointtoremove:endpointtoremove");
+    }
+
     @Test
     public void getLoadBalancerByIdReturnsALoadBalancerWithSameId() throws CloudException, InternalException {
         new NonStrictExpectations(lbSupport){
@@ -246,9 +312,8 @@ public class AzureLoadBalancerSupportTest {
     @Test
     @Ignore("This should pass when merge to develop due to bug fixed in LoadBalancerHealthCheck.getInstance")
     public void testlistLBHealthChecks(@Injectable final HealthCheckFilterOptions optionsMoked) throws CloudException, InternalException {
-        new NonStrictExpectations(lbSupport){
-            {invoke(lbSupport, "getProfiles"); result = expectedProfilesModel; times = 1;}
-            {invoke(lbSupport, "getDefinition", LOAD_BALANCER_ID); result = expectedDefinitionModel; times = 1;}
+        mockSnapshotRequests(expectedProfilesModel, null);
+        new NonStrictExpectations(){
             {optionsMoked.matches(withInstanceOf(LoadBalancerHealthCheck.class)); result = true;}
         };
 
@@ -329,9 +394,7 @@ public class AzureLoadBalancerSupportTest {
 
     @Test
     public void testListLBReturnsEmptyArrayWhenNullProfilesAreRetrieved() throws CloudException, InternalException {
-        new NonStrictExpectations(lbSupport){
-            {invoke(lbSupport, "getProfiles"); result = null; times = 1;}
-        };
+        mockSnapshotRequests(null, null);
         Iterable<LoadBalancer> loadBalancers = lbSupport.listLoadBalancers();
 
         int actualCount = 0;
@@ -345,9 +408,7 @@ public class AzureLoadBalancerSupportTest {
 
     @Test
     public void testListLBReturnsEmptyArrayWhenEmptyProfilesCollectionIsRetrieved() throws CloudException, InternalException {
-        new NonStrictExpectations(lbSupport){
-            {invoke(lbSupport, "getProfiles"); result = new ProfilesModel(); times = 1;}
-        };
+        mockSnapshotRequests(new ProfilesModel(), null);
         Iterable<LoadBalancer> loadBalancers = lbSupport.listLoadBalancers();
 
         int actualCount = 0;
@@ -361,12 +422,10 @@ public class AzureLoadBalancerSupportTest {
 
     @Test
     public void testListLBReturnsCorrectListOfLoadBalancers() throws CloudException, InternalException {
-        new NonStrictExpectations(lbSupport){
-            {invoke(lbSupport, "getProfiles"); result = expectedProfilesModel; times = 1;}
-            {invoke(lbSupport, "getDefinition", LOAD_BALANCER_ID); result = expectedDefinitionModel; times = 1;}
-        };
+        List<String> requested = mockSnapshotRequests(expectedProfilesModel, null);
         ArrayList<LoadBalancer> loadBalancers = (ArrayList<LoadBalancer>) lbSupport.listLoadBalancers();
 
+        assertEquals(Arrays.asList(AzureLoadBalancerSupport.RESOURCE_PROFILES, String.format(AzureLoadBalancerSupport.RESOURCE_DEFINITION, LOAD_BALANCER_ID)), requested);
         assertEquals(1, loadBalancers.size());
 
         assertNotNull("LoadBalancer should not be null", loadBalancers.get(0));
@@ -377,6 +436,56 @@ public class AzureLoadBalancerSupportTest {
         assertEquals(ACCOUNT_NO, loadBalancers.get(0).getProviderOwnerId());
     }
 
+    @Test
+    public void testListLBFailsWhenADefinitionCannotBeRetrieved() throws CloudException, InternalException {
+        CloudException expectedError = new CloudException("definition unavailable");
+        mockSnapshotRequests(expectedProfilesModel, expectedError);
+
+        try {
+            lbSupport.listLoadBalancers();
+            fail("listLoadBalancers should fail when a definition cannot be retrieved");
+        }
+        catch (CloudException e) {
+            assertSame(expectedError, e);
+        }
+    }
+
+    @Test
+    public void testGetLoadBalancerUsesListedSnapshot() throws CloudException, InternalException {
+        new NonStrictExpectations(){
+            {azureMock.getSetting(anyString, anyLong); result = 60L;}
+        };
+        List<String> requested = mockSnapshotRequests(expectedProfilesModel, null);
+
+        lbSupport.listLoadBalancers();
+        LoadBalancer loadBalancer = lbSupport.getLoadBalancer(LOAD_BALANCER_ID);
+
+        assertNotNull(loadBalancer);
+        assertEquals(LOAD_BALANCER_ID, loadBalancer.getProviderLoadBalancerId());
+        assertEquals("getLoadBalancer should not fetch what was just listed", 2, requested.size());
+    }
+
+    @Test
+    public void testGetLoadBalancerDoesNotListProfiles() throws CloudException, InternalException {
+        new MockUp<AzureMethod>(){
+            @Mock
+            void $init(Azure provider){ assertEquals(provider, azureMock);}
+
+            @Mock(invocations = 2)
+            <T> T get(Class<T> model, String resource){
+                if(resource.equals(String.format(AzureLoadBalancerSupport.RESOURCE_PROFILE, LOAD_BALANCER_ID)))
+                    return model.cast(expectedProfileModel);
+                assertEquals("getLoadBalancer should only fetch its own profile", String.format(AzureLoadBalancerSupport.RESOURCE_DEFINITION, LOAD_BALANCER_ID), resource);
+                return model.cast(expectedDefinitionModel);
+            }
+        };
+
+        LoadBalancer loadBalancer = lbSupport.getLoadBalancer(LOAD_BALANCER_ID);
+
+        assertNotNull(loadBalancer);
+        assertEquals(LOAD_BALANCER_ID, loadBalancer.getProviderLoadBalancerId());
+    }
+
     @Test
     public void testModifyLBHealthCheck() throws CloudException, InternalException {
         new NonStrictExpectations(lbSupport){
@@ -0,0 +1,101 @@
+/**
+ * Copyright (C) 2013-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.azure.tests.storage;
+
+import mockit.Mock;
+import mockit.MockUp;
+import mockit.Mocked;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.azure.Azure;
+import org.dasein.cloud.azure.AzureStorageMethod;
+import org.dasein.cloud.azure.storage.BlobStore;
+import org.dasein.cloud.azure.storage.BulkDelete;
+import org.dasein.util.JiteratorLoadException;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class BulkDeleteTests {
+    @Mocked Azure azureMock;
+
+    @Test
+    public void listingFailingPartwayWaitsForSentDeletesAndThrows() throws Exception {
+        final CloudException listingError = new CloudException("listing failed");
+        final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+
+        new MockUp<AzureStorageMethod>(){
+            @Mock
+            void $init(Azure provider){ }
+
+            @Mock
+            void invoke(String strMethod, String resource, Map<String, String> queries, String body, Map<String, String> headerMap, boolean authorization) throws InterruptedException {
+                // slow enough that the listing fails while the deletes are still in flight
+                Thread.sleep(200L);
+            }
+        };
+
+        // the second page of the listing fails after the first two names
+        Iterable<String> names = new Iterable<String>() {
+            public @Nonnull Iterator<String> iterator() {
+                final Iterator<String> it = Arrays.asList("blob1", "blob2").iterator();
+
+                return new Iterator<String>() {
+                    public boolean hasNext() {
+                        if( !it.hasNext() ) {
+                            throw new JiteratorLoadException(listingError);
+                        }
+                        return true;
+                    }
+
+                    public String next() {
+                        return it.next();
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+
+        try {
+            new BlobStore(azureMock).removeObjects("bucket", names, new BulkDelete.Listener() {
+                public void completed(@Nonnull String name, @Nullable Throwable error) {
+                    deleted.add(name);
+                }
+            });
+            fail("removeObjects should fail when the listing fails");
+        }
+        catch( CloudException e ) {
+            assertSame("the listing error should be thrown", listingError, e);
+        }
+        assertEquals("the deletes already sent should complete first", Arrays.asList("blob1", "blob2"), deleted);
+    }
+}